@@ -53,6 +53,35 @@ public class ConTextSpan extends Span {
         this.winEnd = winEnd;
     }
 
+    /**
+     * Reset this span to a new match, so that the same object can be reused instead of allocating a new one.
+     *
+     * @param begin  begin position
+     * @param end    end position
+     * @param ruleId matched rule id
+     * @return this span
+     */
+    public ConTextSpan reset(int begin, int end, int ruleId) {
+        this.begin = begin;
+        this.end = end;
+        this.width = end - begin;
+        initiate(-1, -1, ruleId);
+        this.matchedDirection = null;
+        return this;
+    }
+
+    /**
+     * @param other the span to copy from
+     * @return this span
+     */
+    public ConTextSpan copyFrom(ConTextSpan other) {
+        reset(other.begin, other.end, other.ruleId);
+        this.winBegin = other.winBegin;
+        this.winEnd = other.winEnd;
+        this.matchedDirection = other.matchedDirection;
+        return this;
+    }
+
 
 
     public String toString() {
@@ -24,21 +24,31 @@ import edu.utah.bmi.nlp.fastcontext.FastContext;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * @author Jianlin_Shi on 7/28/15.
  */
 public class IOUtil {
     private static int defaultWindowSize = 8;
+    //  by default, the rule lists of at least this many lines are split into cells in parallel
+    public static final int PARALLEL_PARSE_THRESHOLD = 10000;
 
 
     public static void readAgnosticRuleResource(String ruleFileOrString, String splitter, HashMap<Integer, ContextRule> rules,
@@ -149,40 +159,55 @@ public class IOUtil {
 //    }
 
 
+    /**
+     * Read the rules from the first sheet of an xlsx file. The sheet is streamed through SAX (POI's event model)
+     * instead of being loaded into a workbook, and every row is parsed as soon as it ends, so the memory doesn't grow
+     * with the number of rows. The cells read the same as they did from the workbook: the cells that are in the row
+     * (an empty one as ""), and the numbers as doubles, e.g. "30.0".
+     *
+     * @param xlsxFileName the xlsx rule file
+     */
     public static void readXLSXRuleFile(String xlsxFileName, HashMap<Integer, ContextRule> rules,
                                         HashMap<String, TypeDefinition> conceptFeaturesMap,
                                         HashMap<String, String> featureDefaultValueMap,
                                         HashMap<String, String> valueFeatureNameMap) {
+        OPCPackage xlsx = null;
         try {
-            FileInputStream inputStream = new FileInputStream(new File(xlsxFileName));
-            Workbook workbook = new XSSFWorkbook(inputStream);
-            Sheet firstSheet = workbook.getSheetAt(0);
-            Iterator<Row> iterator = firstSheet.iterator();
-            int id = 0;
-            while (iterator.hasNext()) {
-                Row nextRow = iterator.next();
-                Iterator<Cell> cellIterator = nextRow.cellIterator();
-                ArrayList<String> cells = new ArrayList<>();
-                while (cellIterator.hasNext()) {
-                    Cell cell = cellIterator.next();
-                    switch (cell.getCellTypeEnum()) {
-                        case NUMERIC:
-                            cells.add(cell.getNumericCellValue() + "");
-                            break;
-                        default:
-                            cells.add(cell.getStringCellValue());
-                            break;
-                    }
+            xlsx = OPCPackage.open(xlsxFileName, PackageAccess.READ);
+            XSSFReader reader = new XSSFReader(xlsx);
+            SAXParser parser = newSAXParser();
+            SharedStringsHandler sharedStrings = new SharedStringsHandler();
+            InputStream sharedStringsData = reader.getSharedStringsData();
+            if (sharedStringsData != null) {
+                try (InputStream inputStream = sharedStringsData) {
+                    parser.parse(inputStream, sharedStrings);
                 }
-                if (cells.size() > 0 && cells.get(0).trim().length() > 0)
-                    parseCells(cells, id, rules, conceptFeaturesMap, featureDefaultValueMap, valueFeatureNameMap);
-                id++;
             }
-        } catch (IOException e) {
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (sheets.hasNext()) {
+                try (InputStream inputStream = sheets.next()) {
+                    parser.reset();
+                    parser.parse(inputStream, new SheetHandler(sharedStrings.strings, rules, conceptFeaturesMap,
+                            featureDefaultValueMap, valueFeatureNameMap));
+                }
+            }
+        } catch (IOException | OpenXML4JException | SAXException | ParserConfigurationException e) {
             e.printStackTrace();
+        } finally {
+            //  close without saving, the package is read only
+            if (xlsx != null)
+                xlsx.revert();
         }
     }
 
+    private static SAXParser newSAXParser() throws ParserConfigurationException, SAXException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        return factory.newSAXParser();
+    }
+
     public static void readCSVFile(String csvFileName, String splitter, HashMap<Integer, ContextRule> rules,
                                    HashMap<String, TypeDefinition> conceptFeaturesMap,
                                    HashMap<String, String> featureDefaultValueMap,
@@ -216,22 +241,49 @@ public class IOUtil {
                                       HashMap<String, TypeDefinition> conceptFeaturesMap,
                                       HashMap<String, String> featureDefaultValueMap,
                                       HashMap<String, String> valueFeatureNameMap) {
+        readStringList(ruleStringList, splitter, rules, conceptFeaturesMap, featureDefaultValueMap, valueFeatureNameMap,
+                PARALLEL_PARSE_THRESHOLD);
+    }
+
+    /**
+     * @param parallelThreshold split the lines into cells in parallel if there are at least this many lines: 0 to
+     *                          always, Integer.MAX_VALUE to never
+     */
+    public static void readStringList(ArrayList<String> ruleStringList, String splitter, HashMap<Integer, ContextRule> rules,
+                                      HashMap<String, TypeDefinition> conceptFeaturesMap,
+                                      HashMap<String, String> featureDefaultValueMap,
+                                      HashMap<String, String> valueFeatureNameMap, int parallelThreshold) {
         CSVFormat csvFormat = getCSVFormat(splitter);
-        for (int i = 0; i < ruleStringList.size(); i++) {
-            String line = ruleStringList.get(i);
-            if (line.startsWith("#") || line.trim().length() == 0) {
-                continue;
-            }
-            try {
-                CSVRecord record = CSVParser.parse(line, csvFormat).iterator().next();
-                ArrayList<String> cells = new ArrayList<>();
-                for (String cell : record) {
-                    cells.add(cell);
-                }
-                parseCells(cells, i, rules, conceptFeaturesMap, featureDefaultValueMap, valueFeatureNameMap);
-            } catch (IOException e) {
-                e.printStackTrace();
+        IntStream lineIds = IntStream.range(0, ruleStringList.size());
+        //  the lines of a large rule list are split into cells in parallel chunks, but the cells are still parsed in
+        //  the line order: the settings lines decide which of the later rules are kept
+        if (ruleStringList.size() >= parallelThreshold)
+            lineIds = lineIds.parallel();
+        List<ArrayList<String>> lineCells = lineIds.mapToObj(i -> splitCells(ruleStringList.get(i), csvFormat))
+                .collect(Collectors.toList());
+        for (int i = 0; i < lineCells.size(); i++) {
+            if (lineCells.get(i) != null)
+                parseCells(lineCells.get(i), i, rules, conceptFeaturesMap, featureDefaultValueMap, valueFeatureNameMap);
+        }
+    }
+
+    /**
+     * @return the cells of a rule line, null for a comment, a blank line or a line that cannot be read
+     */
+    private static ArrayList<String> splitCells(String line, CSVFormat csvFormat) {
+        if (line.startsWith("#") || line.trim().length() == 0) {
+            return null;
+        }
+        try {
+            CSVRecord record = CSVParser.parse(line, csvFormat).iterator().next();
+            ArrayList<String> cells = new ArrayList<>();
+            for (String cell : record) {
+                cells.add(cell);
             }
+            return cells;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
     }
 
@@ -369,4 +421,152 @@ public class IOUtil {
         }
         return csvFormat;
     }
+
+    /**
+     * Collects the shared strings of an xlsx file (sharedStrings.xml): the text of each string item, without the
+     * phonetic runs.
+     */
+    private static class SharedStringsHandler extends DefaultHandler {
+        final ArrayList<String> strings = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        private boolean inText = false;
+        private int phoneticDepth = 0;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "si":
+                    text.setLength(0);
+                    break;
+                case "rPh":
+                    phoneticDepth++;
+                    break;
+                case "t":
+                    inText = phoneticDepth == 0;
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            switch (localName) {
+                case "si":
+                    strings.add(text.toString());
+                    break;
+                case "rPh":
+                    phoneticDepth--;
+                    break;
+                case "t":
+                    inText = false;
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inText)
+                text.append(ch, start, length);
+        }
+    }
+
+    /**
+     * Reads the cells of a worksheet (sheetN.xml) row by row, and parses each row when it ends. A row counts for the
+     * rule ids even if it is empty, the same as the rows of the workbook.
+     */
+    private static class SheetHandler extends DefaultHandler {
+        private final ArrayList<String> sharedStrings;
+        private final HashMap<Integer, ContextRule> rules;
+        private final HashMap<String, TypeDefinition> conceptFeaturesMap;
+        private final HashMap<String, String> featureDefaultValueMap;
+        private final HashMap<String, String> valueFeatureNameMap;
+        private int id = 0;
+        private ArrayList<String> cells = new ArrayList<>();
+        //  the cell type ("s": shared string, "inlineStr", "str": formula string, "b": boolean, "e": error, otherwise
+        //  a number) and value
+        private String cellType;
+        private final StringBuilder value = new StringBuilder();
+        private boolean inValue = false, inInlineString = false;
+        private int phoneticDepth = 0;
+
+        SheetHandler(ArrayList<String> sharedStrings, HashMap<Integer, ContextRule> rules,
+                     HashMap<String, TypeDefinition> conceptFeaturesMap, HashMap<String, String> featureDefaultValueMap,
+                     HashMap<String, String> valueFeatureNameMap) {
+            this.sharedStrings = sharedStrings;
+            this.rules = rules;
+            this.conceptFeaturesMap = conceptFeaturesMap;
+            this.featureDefaultValueMap = featureDefaultValueMap;
+            this.valueFeatureNameMap = valueFeatureNameMap;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "row":
+                    cells = new ArrayList<>();
+                    break;
+                case "c":
+                    cellType = attributes.getValue("t");
+                    value.setLength(0);
+                    break;
+                case "v":
+                    inValue = true;
+                    break;
+                case "is":
+                    inInlineString = true;
+                    break;
+                case "rPh":
+                    phoneticDepth++;
+                    break;
+                case "t":
+                    inValue = inInlineString && phoneticDepth == 0;
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            switch (localName) {
+                case "v":
+                case "t":
+                    inValue = false;
+                    break;
+                case "is":
+                    inInlineString = false;
+                    break;
+                case "rPh":
+                    phoneticDepth--;
+                    break;
+                case "c":
+                    cells.add(getCellValue());
+                    break;
+                case "row":
+                    if (cells.size() > 0 && cells.get(0).trim().length() > 0)
+                        parseCells(cells, id, rules, conceptFeaturesMap, featureDefaultValueMap, valueFeatureNameMap);
+                    id++;
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inValue)
+                value.append(ch, start, length);
+        }
+
+        private String getCellValue() {
+            String text = value.toString();
+            if (text.length() == 0)
+                return "";
+            if (cellType == null || cellType.equals("n"))
+                return Double.parseDouble(text) + "";
+            switch (cellType) {
+                case "s":
+                    return sharedStrings.get(Integer.parseInt(text.trim()));
+                case "b":
+                    return text.trim().equals("1") ? "TRUE" : "FALSE";
+                default:
+                    return text;
+            }
+        }
+    }
 }
@@ -0,0 +1,588 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.context.common.ContextRule;
+import edu.utah.bmi.nlp.context.common.ContextValueSet.TriggerTypes;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The rules of a ContextRuleProcessor compiled for matching: the rule trie, a private copy of the rules indexed by id,
+ * and the matching options. Nothing changes it once it is constructed, so one instance can be safely published to,
+ * and shared by, any number of threads.
+ * <p>
+ * All the state of a match lives in the caller's {@link InternedTokens} and {@link DeterminantMatches} (or
+ * {@link ConTextWorkspace}), which are cheap per-thread handles. Both remember the compiled rules they were made
+ * with, so that a match always reads one consistent version of the rules.
+ */
+public final class CompiledContextRules {
+    protected final DoubleArrayRuleTrie trie;
+    //  the rules by id, the rules removed by ContextRuleProcessor#removeRule are kept, so that a match that is still
+    //  running on an older version can look them up
+    protected final ContextRule[] rulesById;
+    //  whether the rule tokens were lower cased when they were compiled, the edited rules are lower cased the same way
+    protected final boolean lowerCaseRules;
+    //  false: look up the tokens with case folding
+    protected final boolean caseSensitive;
+    //  the one pass matcher over the same trie, null if the trie walk is used
+    protected final TokenAutomaton tokenAutomaton;
+    //  [FORWARD or BACKWARD][trigger type] -> the largest window size and the largest number of rule tokens, so that
+    //  the matching can skip the tokens that no rule window reaches. The rules that are matched as "forward_..."
+    //  determinants (forward and both) count as FORWARD, all the others as BACKWARD, the same as the conflict resolution
+    protected final int[][] maxWindowSizes, maxRuleLengths;
+    protected static final int FORWARD = 0, BACKWARD = 1, BOTH = 2;
+    //  whether the pre/post-context is matched outward from the concept, see ContextRuleProcessor#processPreContext
+    protected final boolean scanOutward;
+    //  determinant id -> whether the outward matching has to wait for the determinant to be blocked by a termination
+    //  before it stops early, and the number of such determinants [FORWARD or BACKWARD]
+    protected final boolean[] outwardStops;
+    protected final int[] outwardStopCounts;
+    //  [FORWARD or BACKWARD] -> whether every such determinant has a termination rule, so that the outward matching
+    //  can stop early at all
+    protected final boolean[] outwardStoppable;
+    //  the fields that the conflict resolution reads for every match, as flat tables: determinant id -> the first
+    //  character of the determinant ('f' for "forward_...", 'b' for "backward_..."), and rule id -> the ordinal of its
+    //  trigger type (-1 if there is no such rule) and its window size
+    protected final char[] determinantDirections;
+    protected final byte[] ruleTriggerTypes;
+    protected final int[] ruleWindowSizes;
+    //  [FORWARD or BACKWARD] -> the trie of only the determinants that the pre-context (FORWARD) or the post-context
+    //  (BACKWARD) resolves, and its automaton; null if the full trie is used on both sides. They are compiled from the
+    //  full trie, and share its token, determinant and rule ids
+    protected final DoubleArrayRuleTrie[] directionTries;
+    protected final TokenAutomaton[] directionAutomata;
+    //  the compiled rules of all the modifiers that this is a view of (see withModifiers), this if it is not a view;
+    //  and the modifiers of the view, null if it is not a view
+    protected final CompiledContextRules fullRules;
+    protected final Set<String> modifiers;
+
+    /**
+     * @param rules            the parsed rules, they are copied, not changed
+     * @param lowerCaseRules   whether to lower case the rule tokens (case-insensitive rules)
+     * @param caseSensitive    whether to look up the tokens without case folding
+     * @param useTokenAutomaton whether to match with a {@link TokenAutomaton} instead of the trie walk
+     */
+    public CompiledContextRules(Collection<ContextRule> rules, boolean lowerCaseRules, boolean caseSensitive,
+                                boolean useTokenAutomaton) {
+        this(rules, lowerCaseRules, caseSensitive, useTokenAutomaton, DoubleArrayRuleTrie.PARALLEL_BUILD_THRESHOLD);
+    }
+
+    /**
+     * The same as {@link #CompiledContextRules(Collection, boolean, boolean, boolean)}, with the rule count from which
+     * the trie is built in parallel, see {@link DoubleArrayRuleTrie#PARALLEL_BUILD_THRESHOLD}.
+     */
+    public CompiledContextRules(Collection<ContextRule> rules, boolean lowerCaseRules, boolean caseSensitive,
+                                boolean useTokenAutomaton, int parallelBuildThreshold) {
+        this.trie = new DoubleArrayRuleTrie(rules, lowerCaseRules, parallelBuildThreshold);
+        int maxId = -1;
+        for (ContextRule rule : rules)
+            maxId = Math.max(maxId, rule.id);
+        this.rulesById = new ContextRule[maxId + 1];
+        for (ContextRule rule : rules)
+            if (rule.id >= 0)
+                rulesById[rule.id] = rule.clone();
+        this.lowerCaseRules = lowerCaseRules;
+        this.caseSensitive = caseSensitive;
+        this.tokenAutomaton = useTokenAutomaton ? new TokenAutomaton(trie) : null;
+        int triggerTypes = TriggerTypes.values().length;
+        this.maxWindowSizes = new int[][]{new int[triggerTypes], new int[triggerTypes]};
+        this.maxRuleLengths = new int[][]{new int[triggerTypes], new int[triggerTypes]};
+        for (ContextRule rule : rules) {
+            //  the same split as the rule trie, numeric comparators and thresholds count as tokens as well
+            int length = DoubleArrayRuleTrie.TOKEN_SEPARATOR.split(rule.rule).length;
+            if (rule.direction == TriggerTypes.forward || rule.direction == TriggerTypes.both)
+                updateBounds(FORWARD, rule, length);
+            if (rule.direction != TriggerTypes.forward)
+                updateBounds(BACKWARD, rule, length);
+        }
+        this.scanOutward = false;
+        //  only the determinants that have trigger rules show up in the contexts, they are what the outward matching
+        //  waits for
+        int determinantCount = trie.getDeterminantCount();
+        boolean[] triggered = new boolean[determinantCount], terminated = new boolean[determinantCount];
+        for (int state = 0; state < trie.size(); state++) {
+            if (!trie.hasEnd(state))
+                continue;
+            for (int i = 0; i < trie.getEndCount(state); i++) {
+                ContextRule rule = getRule(trie.getEndRuleId(state, i));
+                if (rule == null)
+                    continue;
+                if (rule.triggerType == TriggerTypes.trigger)
+                    triggered[trie.getEndDeterminantId(state, i)] = true;
+                else if (rule.triggerType == TriggerTypes.termination)
+                    terminated[trie.getEndDeterminantId(state, i)] = true;
+            }
+        }
+        this.outwardStops = new boolean[determinantCount];
+        this.outwardStopCounts = new int[2];
+        this.outwardStoppable = new boolean[]{true, true};
+        setOutwardStops(trie, triggered, terminated, outwardStops, outwardStopCounts, outwardStoppable);
+        this.determinantDirections = getDeterminantDirections(trie);
+        this.ruleTriggerTypes = new byte[rulesById.length];
+        this.ruleWindowSizes = new int[rulesById.length];
+        setRuleTables(rulesById, ruleTriggerTypes, ruleWindowSizes);
+        this.directionTries = null;
+        this.directionAutomata = null;
+        this.fullRules = this;
+        this.modifiers = null;
+    }
+
+    private static char[] getDeterminantDirections(DoubleArrayRuleTrie trie) {
+        char[] directions = new char[trie.getDeterminantCount()];
+        for (int determinantId = 0; determinantId < directions.length; determinantId++)
+            directions[determinantId] = trie.getDeterminant(determinantId).charAt(0);
+        return directions;
+    }
+
+    /**
+     * @return the FORWARD and the BACKWARD tries of the trie, kept in the same form (off the heap, or generated) as it
+     */
+    private static DoubleArrayRuleTrie[] getDirectionTries(DoubleArrayRuleTrie trie, char[] determinantDirections) {
+        boolean[] forward = new boolean[determinantDirections.length], backward = new boolean[forward.length];
+        for (int determinantId = 0; determinantId < forward.length; determinantId++) {
+            forward[determinantId] = determinantDirections[determinantId] == 'f';
+            backward[determinantId] = !forward[determinantId];
+        }
+        return new DoubleArrayRuleTrie[]{inFormOf(trie.filterDeterminants(forward), trie),
+                inFormOf(trie.filterDeterminants(backward), trie)};
+    }
+
+    /**
+     * @return the trie copied off the heap, or generated, if the other trie is
+     */
+    private static DoubleArrayRuleTrie inFormOf(DoubleArrayRuleTrie trie, DoubleArrayRuleTrie other) {
+        if (other instanceof OffHeapRuleTrie)
+            return OffHeapRuleTrie.copyOf(trie);
+        if (other instanceof GeneratedRuleTrie)
+            return RuleMatcherGenerator.generate(trie);
+        return trie;
+    }
+
+    private static TokenAutomaton[] getDirectionAutomata(DoubleArrayRuleTrie[] directionTries) {
+        return new TokenAutomaton[]{new TokenAutomaton(directionTries[FORWARD]),
+                new TokenAutomaton(directionTries[BACKWARD])};
+    }
+
+    private static void setRuleTables(ContextRule[] rulesById, byte[] ruleTriggerTypes, int[] ruleWindowSizes) {
+        for (int id = 0; id < rulesById.length; id++) {
+            ContextRule rule = rulesById[id];
+            ruleTriggerTypes[id] = rule == null ? -1 : (byte) rule.triggerType.ordinal();
+            ruleWindowSizes[id] = rule == null ? 0 : rule.windowSize;
+        }
+    }
+
+    /**
+     * @param triggered         determinant id -&gt; whether the determinant has a trigger rule
+     * @param terminated        determinant id -&gt; whether the determinant has a termination rule
+     * @param outwardStops      filled: determinant id -&gt; whether the outward matching waits for the determinant
+     * @param outwardStopCounts filled: [FORWARD or BACKWARD] -&gt; the number of such determinants
+     * @param outwardStoppable  filled: [FORWARD or BACKWARD] -&gt; whether the outward matching can stop early, all
+     *                          true when it is passed in
+     */
+    protected static void setOutwardStops(DoubleArrayRuleTrie trie, boolean[] triggered, boolean[] terminated,
+                                          boolean[] outwardStops, int[] outwardStopCounts, boolean[] outwardStoppable) {
+        for (int determinantId = 0; determinantId < trie.getDeterminantCount(); determinantId++) {
+            if (!triggered[determinantId])
+                continue;
+            char direction = trie.getDeterminant(determinantId).charAt(0);
+            int index = direction == 'f' ? FORWARD : BACKWARD;
+            //  only "forward_..." and "backward_..." determinants are resolved against the earlier matches
+            if (!terminated[determinantId] || (direction != 'f' && direction != 'b'))
+                outwardStoppable[index] = false;
+            outwardStops[determinantId] = true;
+            outwardStopCounts[index]++;
+        }
+    }
+
+    private void updateBounds(int direction, ContextRule rule, int length) {
+        int triggerType = rule.triggerType.ordinal();
+        maxWindowSizes[direction][triggerType] = Math.max(maxWindowSizes[direction][triggerType], rule.windowSize);
+        maxRuleLengths[direction][triggerType] = Math.max(maxRuleLengths[direction][triggerType], length);
+    }
+
+    /**
+     * Restore the compiled rules from the arrays of a {@link ContextRuleSnapshot}, or put together the rules edited by
+     * a {@link ContextRuleEditor}. The arrays are not copied.
+     */
+    protected CompiledContextRules(DoubleArrayRuleTrie trie, ContextRule[] rulesById, boolean lowerCaseRules,
+                                   boolean caseSensitive, boolean useTokenAutomaton, boolean scanOutward,
+                                   boolean directionTries, int[][] maxWindowSizes, int[][] maxRuleLengths,
+                                   boolean[] outwardStops, int[] outwardStopCounts, boolean[] outwardStoppable) {
+        this.trie = trie;
+        this.rulesById = rulesById;
+        this.lowerCaseRules = lowerCaseRules;
+        this.caseSensitive = caseSensitive;
+        this.tokenAutomaton = useTokenAutomaton ? new TokenAutomaton(trie) : null;
+        this.maxWindowSizes = maxWindowSizes;
+        this.maxRuleLengths = maxRuleLengths;
+        this.scanOutward = scanOutward;
+        this.outwardStops = outwardStops;
+        this.outwardStopCounts = outwardStopCounts;
+        this.outwardStoppable = outwardStoppable;
+        this.determinantDirections = getDeterminantDirections(trie);
+        this.ruleTriggerTypes = new byte[rulesById.length];
+        this.ruleWindowSizes = new int[rulesById.length];
+        setRuleTables(rulesById, ruleTriggerTypes, ruleWindowSizes);
+        this.directionTries = directionTries ? getDirectionTries(trie, determinantDirections) : null;
+        this.directionAutomata = directionTries && useTokenAutomaton ? getDirectionAutomata(this.directionTries) : null;
+        this.fullRules = this;
+        this.modifiers = null;
+    }
+
+    private CompiledContextRules(CompiledContextRules compiled, DoubleArrayRuleTrie trie, boolean caseSensitive,
+                                 boolean useTokenAutomaton, boolean scanOutward, boolean directionTries) {
+        this.trie = trie;
+        this.rulesById = compiled.rulesById;
+        this.lowerCaseRules = compiled.lowerCaseRules;
+        this.caseSensitive = caseSensitive;
+        this.maxWindowSizes = compiled.maxWindowSizes;
+        this.maxRuleLengths = compiled.maxRuleLengths;
+        this.scanOutward = scanOutward;
+        this.outwardStops = compiled.outwardStops;
+        this.outwardStopCounts = compiled.outwardStopCounts;
+        this.outwardStoppable = compiled.outwardStoppable;
+        this.determinantDirections = compiled.determinantDirections;
+        this.ruleTriggerTypes = compiled.ruleTriggerTypes;
+        this.ruleWindowSizes = compiled.ruleWindowSizes;
+        if (!useTokenAutomaton)
+            this.tokenAutomaton = null;
+        else
+            this.tokenAutomaton = compiled.tokenAutomaton == null || compiled.trie != trie ? new TokenAutomaton(trie)
+                    : compiled.tokenAutomaton;
+        if (!directionTries)
+            this.directionTries = null;
+        else
+            this.directionTries = compiled.directionTries == null || compiled.trie != trie
+                    ? getDirectionTries(trie, determinantDirections) : compiled.directionTries;
+        if (!directionTries || !useTokenAutomaton)
+            this.directionAutomata = null;
+        else
+            this.directionAutomata = compiled.directionAutomata == null || compiled.directionTries != this.directionTries
+                    ? getDirectionAutomata(this.directionTries) : compiled.directionAutomata;
+        this.fullRules = this;
+        this.modifiers = null;
+    }
+
+    /**
+     * A view of the rules of some modifiers: the trie keeps only the ENDs of their determinants (the paths that none
+     * of them ends under are pruned), and the window bounds and the outward stops are those of their rules, so that
+     * the outward matching stops once the determinants of these modifiers are blocked. The ids are the same as the
+     * full rules'.
+     */
+    private CompiledContextRules(CompiledContextRules full, Set<String> modifiers) {
+        DoubleArrayRuleTrie fullTrie = full.trie;
+        int determinantCount = fullTrie.getDeterminantCount();
+        boolean[] kept = new boolean[determinantCount];
+        for (int state = 0; state < fullTrie.size(); state++) {
+            if (!fullTrie.hasEnd(state))
+                continue;
+            for (int i = 0; i < fullTrie.getEndCount(state); i++) {
+                ContextRule rule = full.getRule(fullTrie.getEndRuleId(state, i));
+                if (rule != null && modifiers.contains(rule.modifier))
+                    kept[fullTrie.getEndDeterminantId(state, i)] = true;
+            }
+        }
+        this.trie = inFormOf(fullTrie.filterDeterminants(kept), fullTrie);
+        this.rulesById = full.rulesById;
+        this.lowerCaseRules = full.lowerCaseRules;
+        this.caseSensitive = full.caseSensitive;
+        this.tokenAutomaton = full.tokenAutomaton != null ? new TokenAutomaton(trie) : null;
+        this.scanOutward = full.scanOutward;
+        this.determinantDirections = full.determinantDirections;
+        this.ruleTriggerTypes = full.ruleTriggerTypes;
+        this.ruleWindowSizes = full.ruleWindowSizes;
+        int triggerTypes = TriggerTypes.values().length;
+        this.maxWindowSizes = new int[][]{new int[triggerTypes], new int[triggerTypes]};
+        this.maxRuleLengths = new int[][]{new int[triggerTypes], new int[triggerTypes]};
+        boolean[] triggered = new boolean[determinantCount], terminated = new boolean[determinantCount];
+        for (int state = 0; state < trie.size(); state++) {
+            if (!trie.hasEnd(state))
+                continue;
+            for (int i = 0; i < trie.getEndCount(state); i++) {
+                ContextRule rule = getRule(trie.getEndRuleId(state, i));
+                if (rule == null)
+                    continue;
+                int determinantId = trie.getEndDeterminantId(state, i);
+                updateBounds(determinantDirections[determinantId] == 'f' ? FORWARD : BACKWARD, rule,
+                        DoubleArrayRuleTrie.TOKEN_SEPARATOR.split(rule.rule).length);
+                if (rule.triggerType == TriggerTypes.trigger)
+                    triggered[determinantId] = true;
+                else if (rule.triggerType == TriggerTypes.termination)
+                    terminated[determinantId] = true;
+            }
+        }
+        this.outwardStops = new boolean[determinantCount];
+        this.outwardStopCounts = new int[2];
+        this.outwardStoppable = new boolean[]{true, true};
+        setOutwardStops(trie, triggered, terminated, outwardStops, outwardStopCounts, outwardStoppable);
+        this.directionTries = full.directionTries != null ? getDirectionTries(trie, determinantDirections) : null;
+        this.directionAutomata = directionTries != null && tokenAutomaton != null
+                ? getDirectionAutomata(directionTries) : null;
+        this.fullRules = full;
+        this.modifiers = modifiers;
+    }
+
+    /**
+     * @param caseSensitive whether to look up the tokens without case folding
+     * @return the same compiled rules (sharing the trie) with a different token lookup
+     */
+    public CompiledContextRules withCaseSensitive(boolean caseSensitive) {
+        if (caseSensitive == this.caseSensitive)
+            return this;
+        if (fullRules != this)
+            return fullRules.withCaseSensitive(caseSensitive).withModifiers(modifiers);
+        return new CompiledContextRules(this, trie, caseSensitive, tokenAutomaton != null, scanOutward,
+                directionTries != null);
+    }
+
+    /**
+     * @param useTokenAutomaton whether to match with a {@link TokenAutomaton} instead of the trie walk
+     * @return the same compiled rules (sharing the trie) with a different matcher
+     */
+    public CompiledContextRules withTokenAutomaton(boolean useTokenAutomaton) {
+        if (useTokenAutomaton == (tokenAutomaton != null))
+            return this;
+        if (fullRules != this)
+            return fullRules.withTokenAutomaton(useTokenAutomaton).withModifiers(modifiers);
+        return new CompiledContextRules(this, trie, caseSensitive, useTokenAutomaton, scanOutward,
+                directionTries != null);
+    }
+
+    /**
+     * @param scanOutward whether to match the pre/post-context outward from the concept, and stop early once every
+     *                    determinant is blocked by a termination
+     * @return the same compiled rules (sharing the trie) with a different scan order
+     */
+    public CompiledContextRules withScanOutward(boolean scanOutward) {
+        if (scanOutward == this.scanOutward)
+            return this;
+        if (fullRules != this)
+            return fullRules.withScanOutward(scanOutward).withModifiers(modifiers);
+        return new CompiledContextRules(this, trie, caseSensitive, tokenAutomaton != null, scanOutward,
+                directionTries != null);
+    }
+
+    /**
+     * @param offHeapTrie true: read the trie from a direct buffer (see {@link OffHeapRuleTrie}); false: from heap
+     *                    arrays
+     * @return the same compiled rules with the trie copied on or off the heap
+     */
+    public CompiledContextRules withOffHeapTrie(boolean offHeapTrie) {
+        if (offHeapTrie == trie instanceof OffHeapRuleTrie)
+            return this;
+        if (fullRules != this)
+            return fullRules.withOffHeapTrie(offHeapTrie).withModifiers(modifiers);
+        DoubleArrayRuleTrie copy = offHeapTrie ? OffHeapRuleTrie.copyOf(trie) : ((OffHeapRuleTrie) trie).toHeap();
+        return new CompiledContextRules(this, copy, caseSensitive, tokenAutomaton != null, scanOutward,
+                directionTries != null);
+    }
+
+    public boolean isOffHeapTrie() {
+        return trie instanceof OffHeapRuleTrie;
+    }
+
+    /**
+     * @param generatedMatcher true: step through the literal tokens with a class generated for this rule set (see
+     *                         {@link RuleMatcherGenerator}), which keeps the trie on the heap; false: with the array
+     *                         lookups of the trie
+     * @return the same compiled rules with the trie generated or not
+     * @throws IllegalStateException if the class cannot be generated, e.g. there is no Java compiler at runtime
+     */
+    public CompiledContextRules withGeneratedMatcher(boolean generatedMatcher) {
+        if (generatedMatcher == trie instanceof GeneratedRuleTrie)
+            return this;
+        if (fullRules != this)
+            return fullRules.withGeneratedMatcher(generatedMatcher).withModifiers(modifiers);
+        DoubleArrayRuleTrie copy = generatedMatcher ? RuleMatcherGenerator.generate(trie) : new DoubleArrayRuleTrie(trie);
+        return new CompiledContextRules(this, copy, caseSensitive, tokenAutomaton != null, scanOutward,
+                directionTries != null);
+    }
+
+    /**
+     * @param generated a trie generated at build time (see {@link RuleMatcherGenerator#writeSource}) from the same
+     *                  rules
+     * @return the same compiled rules stepping through the generated trie
+     * @throws IllegalArgumentException if the trie is not generated from these rules
+     */
+    public CompiledContextRules withGeneratedMatcher(GeneratedRuleTrie generated) {
+        if (fullRules != this)
+            return fullRules.withGeneratedMatcher(generated).withModifiers(modifiers);
+        if (GeneratedRuleTrie.getFingerprint(generated) != GeneratedRuleTrie.getFingerprint(trie))
+            throw new IllegalArgumentException("The generated trie is not compiled from the same rules.");
+        return new CompiledContextRules(this, generated, caseSensitive, tokenAutomaton != null, scanOutward,
+                directionTries != null);
+    }
+
+    public boolean isGeneratedMatcher() {
+        return trie instanceof GeneratedRuleTrie;
+    }
+
+    /**
+     * @param directionTries true: match the pre-context with a trie of only the determinants that it resolves (the
+     *                       "forward_..." ones), and the post-context with a trie of all the others, each about the
+     *                       size of its own rules; false: match both with the trie of all the rules
+     * @return the same compiled rules with the tries split by direction or not
+     */
+    public CompiledContextRules withDirectionTries(boolean directionTries) {
+        if (directionTries == (this.directionTries != null))
+            return this;
+        if (fullRules != this)
+            return fullRules.withDirectionTries(directionTries).withModifiers(modifiers);
+        return new CompiledContextRules(this, trie, caseSensitive, tokenAutomaton != null, scanOutward,
+                directionTries);
+    }
+
+    public boolean isDirectionTries() {
+        return directionTries != null;
+    }
+
+    /**
+     * @param modifiers the modifier values (e.g. "negated") to match, null for all of them
+     * @return a view of the rules of the modifiers (the same if it is one already), or the full rules for null. The
+     * other options of a view are set through the full rules, so the view is built again for them.
+     */
+    public CompiledContextRules withModifiers(Collection<String> modifiers) {
+        if (modifiers == null)
+            return fullRules;
+        Set<String> modifierSet = Collections.unmodifiableSet(new HashSet<>(modifiers));
+        return modifierSet.equals(this.modifiers) ? this : new CompiledContextRules(fullRules, modifierSet);
+    }
+
+    /**
+     * @return the modifiers of the view, null if it matches all the modifiers
+     */
+    public Set<String> getModifiers() {
+        return modifiers;
+    }
+
+    /**
+     * @return the compiled rules of all the modifiers, this if it is not a view
+     */
+    public CompiledContextRules getFullRules() {
+        return fullRules;
+    }
+
+    public DoubleArrayRuleTrie getTrie() {
+        return trie;
+    }
+
+    /**
+     * @param direction forward for the trie that matches the pre-context, backward for the post-context
+     * @return the trie of the direction, or the full trie if the tries are not split by direction
+     */
+    public DoubleArrayRuleTrie getTrie(TriggerTypes direction) {
+        return directionTries == null ? trie : directionTries[direction == TriggerTypes.forward ? FORWARD : BACKWARD];
+    }
+
+    /**
+     * @param id rule id
+     * @return the compiled copy of the rule, or null if there is no such rule
+     */
+    public ContextRule getRule(int id) {
+        return id >= 0 && id < rulesById.length ? rulesById[id] : null;
+    }
+
+    /**
+     * @param id rule id
+     * @return the ordinal of the trigger type of the rule, or -1 if there is no such rule
+     */
+    public int getRuleTriggerType(int id) {
+        return id >= 0 && id < ruleTriggerTypes.length ? ruleTriggerTypes[id] : -1;
+    }
+
+    /**
+     * @param id rule id, of a rule that {@link #getRuleTriggerType(int)} finds
+     * @return the window size of the rule
+     */
+    public int getRuleWindowSize(int id) {
+        return ruleWindowSizes[id];
+    }
+
+    /**
+     * @param determinantId determinant id
+     * @return the first character of the determinant, 'f' for forward and 'b' for backward
+     */
+    public char getDeterminantDirection(int determinantId) {
+        return determinantDirections[determinantId];
+    }
+
+    public boolean isCaseSensitive() {
+        return caseSensitive;
+    }
+
+    public boolean isScanOutward() {
+        return scanOutward;
+    }
+
+    public TokenAutomaton getTokenAutomaton() {
+        return tokenAutomaton;
+    }
+
+    /**
+     * @param direction   forward for the rules matched in the pre-context, backward for the post-context
+     * @param triggerType trigger, termination or pseudo
+     * @return the largest window size of the rules, 0 if there is no such rule
+     */
+    public int getMaxWindowSize(TriggerTypes direction, TriggerTypes triggerType) {
+        return maxWindowSizes[direction == TriggerTypes.forward ? FORWARD : BACKWARD][triggerType.ordinal()];
+    }
+
+    /**
+     * @param direction   forward for the rules matched in the pre-context, backward for the post-context
+     * @param triggerType trigger, termination or pseudo
+     * @return the largest number of tokens of the rules (numeric comparators and thresholds included), 0 if there is
+     * no such rule
+     */
+    public int getMaxRuleLength(TriggerTypes direction, TriggerTypes triggerType) {
+        return maxRuleLengths[direction == TriggerTypes.forward ? FORWARD : BACKWARD][triggerType.ordinal()];
+    }
+
+    /**
+     * @param direction forward for the rules matched in the pre-context, backward for the post-context
+     * @return the largest window size of the rules of any trigger type
+     */
+    public int getMaxWindowSize(TriggerTypes direction) {
+        int max = 0;
+        for (int windowSize : maxWindowSizes[direction == TriggerTypes.forward ? FORWARD : BACKWARD])
+            max = Math.max(max, windowSize);
+        return max;
+    }
+
+    /**
+     * @param direction forward for the rules matched in the pre-context, backward for the post-context
+     * @return the largest number of tokens of the rules of any trigger type
+     */
+    public int getMaxRuleLength(TriggerTypes direction) {
+        int max = 0;
+        for (int length : maxRuleLengths[direction == TriggerTypes.forward ? FORWARD : BACKWARD])
+            max = Math.max(max, length);
+        return max;
+    }
+
+    public int getDeterminantCount() {
+        return trie.getDeterminantCount();
+    }
+
+    public String getDeterminant(int determinantId) {
+        return trie.getDeterminant(determinantId);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.context.common.ConTextSpan;
+import edu.utah.bmi.nlp.context.common.ContextRule;
+import edu.utah.bmi.nlp.core.TypeDefinition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Caller-owned scratch and result state for
+ * {@link FastContext#getFullContextFeatures(String, InternedTokens, int, int, ConTextWorkspace)}. All the match slots
+ * and result spans are allocated here once, and are overwritten by the next call, so that matching a concept in the
+ * steady state doesn't allocate anything.
+ * <p>
+ * A workspace is bound to the FastContext that created it ({@link FastContext#newWorkspace()}), and is not thread-safe:
+ * keep one per thread. Copy the spans out if they need to outlive the next call. If the rules of the FastContext are
+ * edited, the workspace rebinds itself to the version of the rules that the tokens are interned with.
+ */
+public class ConTextWorkspace {
+    protected final ContextRuleProcessor crp;
+    //  the compiled rules that the workspace is bound to, and the matches of them and of each view of them (e.g. the
+    //  rules of a concept type, see FastContext#getConceptRules), created on first use
+    protected CompiledContextRules rules;
+    protected final IdentityHashMap<CompiledContextRules, DeterminantMatches[]> viewMatches = new IdentityHashMap<>();
+    protected DeterminantMatches preMatches, postMatches;
+
+    //  matched contexts, indexed by modifier id
+    protected final HashMap<String, Integer> modifierIds = new HashMap<>();
+    protected String[] modifiers;
+    protected ConTextSpan[] contextSpans;
+    protected boolean[] hasContext;
+    protected int[] contextOrder;
+    protected int contextCount = 0;
+    //  rule id -> modifier id of the rule (-1 if there is no such rule), and modifier id -> its weight among the values
+    //  of its feature (see ContextRuleProcessor#valueWeightMap), so that resolving the features only reads arrays
+    protected int[] ruleModifierIds;
+    protected int[] modifierWeights;
+
+    //  context features, indexed by feature id
+    protected final HashMap<String, Integer> featureIds = new HashMap<>();
+    protected String[] featureNames;
+    protected int[] modifierFeatureIds;
+    protected ConTextSpan[] featureSpans;
+    protected boolean[] hasFeature;
+    protected int[] featureOrder;
+    protected int featureCount = 0;
+
+    //  concept type name -> ids of the features that need to be filled for it
+    protected final HashMap<String, int[]> conceptFeatureIds = new HashMap<>();
+
+    protected ConTextWorkspace(ContextRuleProcessor crp) {
+        this.crp = crp;
+        bind(crp.getCompiledRules());
+    }
+
+    /**
+     * Make the workspace ready for a version of the compiled rules, nothing is done if it is ready already.
+     *
+     * @param rules the compiled rules that the tokens are interned with
+     */
+    protected void bind(CompiledContextRules rules) {
+        if (this.rules == rules)
+            return;
+        this.rules = rules;
+        viewMatches.clear();
+        selectRules(rules);
+
+        modifierIds.clear();
+        ArrayList<String> modifierList = new ArrayList<>();
+        for (String modifier : crp.valueFeatureNameMap.keySet())
+            addId(modifierIds, modifierList, modifier);
+        //  the removed rules as well, a match may still find them
+        for (ContextRule rule : rules.rulesById)
+            if (rule != null)
+                addId(modifierIds, modifierList, rule.modifier);
+        modifiers = modifierList.toArray(new String[0]);
+        contextCount = 0;
+        ruleModifierIds = new int[rules.rulesById.length];
+        for (int id = 0; id < ruleModifierIds.length; id++)
+            ruleModifierIds[id] = rules.rulesById[id] == null ? -1 : modifierIds.get(rules.rulesById[id].modifier);
+        modifierWeights = new int[modifiers.length];
+        for (int i = 0; i < modifiers.length; i++)
+            modifierWeights[i] = crp.valueWeightMap.getOrDefault(modifiers[i], 0);
+
+        featureIds.clear();
+        ArrayList<String> featureList = new ArrayList<>();
+        for (String featureName : crp.featureDefaultValueMap.keySet())
+            addId(featureIds, featureList, featureName);
+        for (String featureName : crp.valueFeatureNameMap.values())
+            addId(featureIds, featureList, featureName);
+        for (TypeDefinition typeDefinition : crp.conceptFeaturesMap.values())
+            for (String featureName : typeDefinition.getNewFeatureNames())
+                addId(featureIds, featureList, featureName);
+        featureNames = featureList.toArray(new String[0]);
+
+        modifierFeatureIds = new int[modifiers.length];
+        for (int i = 0; i < modifiers.length; i++) {
+            String featureName = crp.valueFeatureNameMap.get(modifiers[i]);
+            modifierFeatureIds[i] = featureName == null ? -1 : featureIds.get(featureName);
+        }
+
+        contextSpans = newSpans(modifiers.length);
+        hasContext = new boolean[modifiers.length];
+        contextOrder = new int[modifiers.length];
+        featureSpans = newSpans(featureNames.length);
+        hasFeature = new boolean[featureNames.length];
+        featureOrder = new int[featureNames.length];
+        featureCount = 0;
+        conceptFeatureIds.clear();
+    }
+
+    /**
+     * Match the compiled rules that the workspace is bound to, or a view of them, until the next call.
+     *
+     * @param view the bound rules or a view of them ({@link CompiledContextRules#withModifiers(java.util.Collection)})
+     */
+    protected void selectRules(CompiledContextRules view) {
+        DeterminantMatches[] matches = viewMatches.get(view);
+        if (matches == null) {
+            matches = new DeterminantMatches[]{new DeterminantMatches(view), new DeterminantMatches(view)};
+            viewMatches.put(view, matches);
+        }
+        preMatches = matches[0];
+        postMatches = matches[1];
+    }
+
+    private static void addId(HashMap<String, Integer> ids, ArrayList<String> names, String name) {
+        if (!ids.containsKey(name)) {
+            ids.put(name, names.size());
+            names.add(name);
+        }
+    }
+
+    private static ConTextSpan[] newSpans(int size) {
+        ConTextSpan[] spans = new ConTextSpan[size];
+        for (int i = 0; i < size; i++)
+            spans[i] = new ConTextSpan(-1, -1, -1);
+        return spans;
+    }
+
+    protected void clearContexts() {
+        for (int i = 0; i < contextCount; i++)
+            hasContext[contextOrder[i]] = false;
+        contextCount = 0;
+    }
+
+    protected int getModifierId(String modifier) {
+        Integer id = modifierIds.get(modifier);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param ruleId rule id
+     * @return the modifier id of the rule, -1 if the modifier is unknown
+     */
+    protected int getRuleModifierId(int ruleId) {
+        if (ruleId >= 0 && ruleId < ruleModifierIds.length && ruleModifierIds[ruleId] != -1)
+            return ruleModifierIds[ruleId];
+        ContextRule rule = crp.getContextRuleById(preMatches.rules, ruleId);
+        return rule == null ? -1 : getModifierId(rule.modifier);
+    }
+
+    /**
+     * @param modifierId modifier id
+     * @return the reusable span of the modifier, to be filled by the caller
+     */
+    protected ConTextSpan putContext(int modifierId) {
+        if (!hasContext[modifierId]) {
+            hasContext[modifierId] = true;
+            contextOrder[contextCount++] = modifierId;
+        }
+        return contextSpans[modifierId];
+    }
+
+    protected void clearFeatures() {
+        for (int i = 0; i < featureCount; i++)
+            hasFeature[featureOrder[i]] = false;
+        featureCount = 0;
+    }
+
+    protected ConTextSpan putFeature(int featureId) {
+        if (!hasFeature[featureId]) {
+            hasFeature[featureId] = true;
+            featureOrder[featureCount++] = featureId;
+        }
+        return featureSpans[featureId];
+    }
+
+    protected ConTextSpan getFeatureById(int featureId) {
+        return hasFeature[featureId] ? featureSpans[featureId] : null;
+    }
+
+    protected int getFeatureId(String featureName) {
+        Integer id = featureIds.get(featureName);
+        return id == null ? -1 : id;
+    }
+
+    public DeterminantMatches getPreMatches() {
+        return preMatches;
+    }
+
+    public DeterminantMatches getPostMatches() {
+        return postMatches;
+    }
+
+    /**
+     * @return the number of matched contexts (modifier values)
+     */
+    public int getContextCount() {
+        return contextCount;
+    }
+
+    public String getContextModifier(int i) {
+        return modifiers[contextOrder[i]];
+    }
+
+    public ConTextSpan getContext(int i) {
+        return contextSpans[contextOrder[i]];
+    }
+
+    /**
+     * @param modifier modifier value, e.g. "negated"
+     * @return the matched context span, or null if it is not matched
+     */
+    public ConTextSpan getContext(String modifier) {
+        int id = getModifierId(modifier);
+        return id != -1 && hasContext[id] ? contextSpans[id] : null;
+    }
+
+    /**
+     * @return the number of context features filled for the concept
+     */
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    public String getFeatureName(int i) {
+        return featureNames[featureOrder[i]];
+    }
+
+    /**
+     * @param i the i-th feature
+     * @return the context span that decides the feature value, ruleId is -1 if it is the default value
+     */
+    public ConTextSpan getFeature(int i) {
+        return featureSpans[featureOrder[i]];
+    }
+
+    /**
+     * @param featureName feature name, e.g. "Negation"
+     * @return the context span that decides the feature value, or null if the feature doesn't apply to the concept
+     */
+    public ConTextSpan getFeature(String featureName) {
+        int id = getFeatureId(featureName);
+        return id == -1 ? null : getFeatureById(id);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.context.common.ContextRule;
+import edu.utah.bmi.nlp.context.common.ContextValueSet.TriggerTypes;
+
+import java.util.*;
+
+/**
+ * Applies the rule edits of a ContextRuleProcessor ({@link ContextRuleProcessor#addRule(String)},
+ * {@link ContextRuleProcessor#removeRule(int)} and {@link ContextRuleProcessor#updateRule(int, String)}) to its
+ * compiled rules without compiling all the rules again: only the trie path of the edited rule is added or looked up,
+ * and only the END of the state where it ends is rewritten. Every edit makes a new {@link CompiledContextRules}, the
+ * one it is made from is not changed, so the matches that are running keep reading their own version.
+ * <p>
+ * The editor keeps what the edits need to know about all the rules: the rules of each rule text (to rebuild an END
+ * the same way as the compiler does), the window sizes and lengths of the rules, and the trigger and termination rules
+ * of each determinant. It is not thread-safe, the ContextRuleProcessor edits under its own lock.
+ */
+public class ContextRuleEditor {
+    //  the trie that the editor is in sync with
+    protected DoubleArrayRuleTrie trie;
+    protected final boolean lowerCaseRules;
+    protected final HashMap<Integer, ContextRule> rulesById = new HashMap<>();
+    //  rule text (the compiled tokens, thresholds as numbers) -> the rules of the text by id, the same order as they
+    //  are compiled in
+    protected final HashMap<String, TreeMap<Integer, ContextRule>> rulesByText = new HashMap<>();
+    //  [FORWARD or BACKWARD][trigger type] -> window size or rule length -> number of rules
+    protected final ArrayList<TreeMap<Integer, Integer>> windowSizes = new ArrayList<>(), ruleLengths = new ArrayList<>();
+    //  determinant id -> number of END entries of trigger or termination rules
+    protected int[] triggerCounts, terminationCounts;
+
+    /**
+     * @param rules    the rules that the compiled rules are compiled from
+     * @param compiled the current compiled rules
+     */
+    public ContextRuleEditor(Collection<ContextRule> rules, CompiledContextRules compiled) {
+        this.trie = compiled.trie;
+        this.lowerCaseRules = compiled.lowerCaseRules;
+        for (int i = 0; i < 2 * TriggerTypes.values().length; i++) {
+            windowSizes.add(new TreeMap<>());
+            ruleLengths.add(new TreeMap<>());
+        }
+        for (ContextRule rule : rules) {
+            rulesById.put(rule.id, rule);
+            String[] ruleContent = split(rule);
+            updateBounds(rule, ruleContent.length, 1);
+            if (DoubleArrayRuleTrie.Editor.isValid(ruleContent))
+                rulesByText.computeIfAbsent(getText(ruleContent), text -> new TreeMap<>()).put(rule.id, rule);
+        }
+        triggerCounts = new int[trie.getDeterminantCount()];
+        terminationCounts = new int[trie.getDeterminantCount()];
+        for (int state = 0; state < trie.size(); state++) {
+            if (!trie.hasEnd(state))
+                continue;
+            for (int i = 0; i < trie.getEndCount(state); i++)
+                count(trie.getEndDeterminantId(state, i), compiled.getRule(trie.getEndRuleId(state, i)), 1);
+        }
+    }
+
+    /**
+     * Remove and/or add a rule. An update removes the old version of the rule and adds the new one with the same id.
+     *
+     * @param compiled  the current compiled rules, which the editor is in sync with
+     * @param removedId the id of the rule to remove, -1 to only add
+     * @param added     the rule to add, null to only remove
+     * @return the new compiled rules
+     * @throws IllegalArgumentException if the added rule cannot be compiled, nothing is changed then
+     */
+    protected CompiledContextRules edit(CompiledContextRules compiled, int removedId, ContextRule added) {
+        String[] addedContent = null;
+        if (added != null) {
+            addedContent = split(added);
+            if (!DoubleArrayRuleTrie.Editor.isValid(addedContent))
+                throw new IllegalArgumentException("A numeric comparator has to be followed by a number: " + added.rule);
+        }
+        DoubleArrayRuleTrie.Editor editor = new DoubleArrayRuleTrie.Editor(compiled.trie);
+        ContextRule removed = rulesById.get(removedId);
+        if (removed != null) {
+            String[] ruleContent = split(removed);
+            updateBounds(removed, ruleContent.length, -1);
+            //  the rules that cannot be compiled are not in the trie
+            int state = DoubleArrayRuleTrie.Editor.isValid(ruleContent) ? editor.find(ruleContent) : -1;
+            String text = state == -1 ? null : getText(ruleContent);
+            if (state != -1)
+                countEnds(editor, state, -1);
+            rulesById.remove(removedId);
+            if (text != null) {
+                TreeMap<Integer, ContextRule> textRules = rulesByText.get(text);
+                textRules.remove(removedId);
+                if (textRules.isEmpty())
+                    rulesByText.remove(text);
+                setEnds(editor, state, text);
+            }
+        }
+        if (added != null) {
+            int state = editor.insert(addedContent);
+            String text = getText(addedContent);
+            countEnds(editor, state, -1);
+            rulesById.put(added.id, added);
+            rulesByText.computeIfAbsent(text, key -> new TreeMap<>()).put(added.id, added);
+            updateBounds(added, addedContent.length, 1);
+            setEnds(editor, state, text);
+        }
+
+        trie = editor.build();
+        //  an off-heap trie is edited on a heap copy, and the edited trie goes back off the heap
+        if (compiled.trie instanceof OffHeapRuleTrie)
+            trie = OffHeapRuleTrie.copyOf(trie);
+        ContextRule[] compiledRulesById = compiled.rulesById;
+        if (added != null) {
+            compiledRulesById = Arrays.copyOf(compiledRulesById, Math.max(compiledRulesById.length, added.id + 1));
+            compiledRulesById[added.id] = added.clone();
+        }
+        int triggerTypes = TriggerTypes.values().length;
+        int[][] maxWindowSizes = new int[2][triggerTypes], maxRuleLengths = new int[2][triggerTypes];
+        for (int direction = 0; direction < 2; direction++) {
+            for (int triggerType = 0; triggerType < triggerTypes; triggerType++) {
+                maxWindowSizes[direction][triggerType] = getMax(windowSizes.get(direction * triggerTypes + triggerType));
+                maxRuleLengths[direction][triggerType] = getMax(ruleLengths.get(direction * triggerTypes + triggerType));
+            }
+        }
+        int determinantCount = trie.getDeterminantCount();
+        boolean[] triggered = new boolean[determinantCount], terminated = new boolean[determinantCount];
+        for (int determinantId = 0; determinantId < determinantCount; determinantId++) {
+            triggered[determinantId] = triggerCounts[determinantId] > 0;
+            terminated[determinantId] = terminationCounts[determinantId] > 0;
+        }
+        boolean[] outwardStops = new boolean[determinantCount];
+        int[] outwardStopCounts = new int[2];
+        boolean[] outwardStoppable = new boolean[]{true, true};
+        CompiledContextRules.setOutwardStops(trie, triggered, terminated, outwardStops, outwardStopCounts,
+                outwardStoppable);
+        CompiledContextRules edited = new CompiledContextRules(trie, compiledRulesById, lowerCaseRules,
+                compiled.caseSensitive, compiled.tokenAutomaton != null, compiled.scanOutward,
+                compiled.directionTries != null, maxWindowSizes, maxRuleLengths, outwardStops, outwardStopCounts,
+                outwardStoppable);
+        //  the matcher class is generated again for the edited trie, and the editor goes on from the generated trie
+        if (compiled.isGeneratedMatcher()) {
+            try {
+                edited = edited.withGeneratedMatcher(true);
+                trie = edited.trie;
+            } catch (IllegalStateException e) {
+                ContextRuleProcessor.logger.warning("Cannot generate the rule matcher for the edited rules, match " +
+                        "them with the array lookups: " + e.getMessage());
+            }
+        }
+        return edited;
+    }
+
+    /**
+     * Rebuild the END of a state from the rules of its text, the same as the compiler: in the order of the rules, a
+     * later rule with the same determinant overwrites the earlier one.
+     */
+    private void setEnds(DoubleArrayRuleTrie.Editor editor, int state, String text) {
+        LinkedHashMap<Integer, Integer> ends = new LinkedHashMap<>();
+        TreeMap<Integer, ContextRule> textRules = rulesByText.get(text);
+        if (textRules != null) {
+            for (ContextRule rule : textRules.values()) {
+                if (rule.getDirection() == TriggerTypes.both) {
+                    ends.put(editor.getDeterminantId(TriggerTypes.forward + "_" + rule.modifier), rule.id);
+                    ends.put(editor.getDeterminantId(TriggerTypes.backward + "_" + rule.modifier), rule.id);
+                } else {
+                    ends.put(editor.getDeterminantId(rule.determinant), rule.id);
+                }
+            }
+        }
+        editor.setEnds(state, ends);
+        countEnds(editor, state, 1);
+    }
+
+    private void countEnds(DoubleArrayRuleTrie.Editor editor, int state, int delta) {
+        if (triggerCounts.length < editor.getDeterminantCount()) {
+            triggerCounts = Arrays.copyOf(triggerCounts, editor.getDeterminantCount());
+            terminationCounts = Arrays.copyOf(terminationCounts, editor.getDeterminantCount());
+        }
+        for (int i = 0; i < editor.getEndCount(state); i++)
+            count(editor.getEndDeterminantId(state, i), rulesById.get(editor.getEndRuleId(state, i)), delta);
+    }
+
+    private void count(int determinantId, ContextRule rule, int delta) {
+        if (rule == null)
+            return;
+        if (rule.triggerType == TriggerTypes.trigger)
+            triggerCounts[determinantId] += delta;
+        else if (rule.triggerType == TriggerTypes.termination)
+            terminationCounts[determinantId] += delta;
+    }
+
+    /**
+     * The same directions as CompiledContextRules: forward and both rules count as FORWARD, all the others as BACKWARD.
+     */
+    private void updateBounds(ContextRule rule, int length, int delta) {
+        int triggerTypes = TriggerTypes.values().length;
+        if (rule.direction == TriggerTypes.forward || rule.direction == TriggerTypes.both) {
+            updateCount(windowSizes.get(CompiledContextRules.FORWARD * triggerTypes + rule.triggerType.ordinal()), rule.windowSize, delta);
+            updateCount(ruleLengths.get(CompiledContextRules.FORWARD * triggerTypes + rule.triggerType.ordinal()), length, delta);
+        }
+        if (rule.direction != TriggerTypes.forward) {
+            updateCount(windowSizes.get(CompiledContextRules.BACKWARD * triggerTypes + rule.triggerType.ordinal()), rule.windowSize, delta);
+            updateCount(ruleLengths.get(CompiledContextRules.BACKWARD * triggerTypes + rule.triggerType.ordinal()), length, delta);
+        }
+    }
+
+    private static void updateCount(TreeMap<Integer, Integer> counts, int value, int delta) {
+        int count = counts.getOrDefault(value, 0) + delta;
+        if (count == 0)
+            counts.remove(value);
+        else
+            counts.put(value, count);
+    }
+
+    private static int getMax(TreeMap<Integer, Integer> counts) {
+        return counts.isEmpty() ? 0 : Math.max(0, counts.lastKey());
+    }
+
+    private String[] split(ContextRule rule) {
+        return DoubleArrayRuleTrie.TOKEN_SEPARATOR.split(lowerCaseRules ? DoubleArrayRuleTrie.foldCase(rule.rule) : rule.rule);
+    }
+
+    /**
+     * @return the rule tokens joined, with the thresholds normalized, so that the rules that end at the same state
+     * have the same text
+     */
+    private static String getText(String[] ruleContent) {
+        StringBuilder text = new StringBuilder();
+        boolean comparator = false;
+        for (String token : ruleContent) {
+            text.append(comparator ? Double.toString(Double.parseDouble(token)) : token).append('\n');
+            comparator = !comparator && (token.equals(DoubleArrayRuleTrie.GREATER_THAN)
+                    || token.equals(DoubleArrayRuleTrie.LESS_THAN));
+        }
+        return text.toString();
+    }
+}
@@ -24,7 +24,10 @@ import edu.utah.bmi.nlp.context.common.IOUtil;
 import edu.utah.bmi.nlp.core.Span;
 import edu.utah.bmi.nlp.core.TypeDefinition;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -38,6 +41,7 @@ import java.util.regex.Pattern;
 @SuppressWarnings("rawtypes")
 public class ContextRuleProcessor {
     public static Logger logger = edu.utah.bmi.nlp.core.IOUtil.getLogger(FastContext.class);
+    protected static final int TRIGGER = TriggerTypes.trigger.ordinal(), TERMINATION = TriggerTypes.termination.ordinal();
     //  given a feature value as the map key, return its corresponding feature name as the map value.
     public LinkedHashMap<String, String> valueFeatureNameMap = new LinkedHashMap<>();
 
@@ -52,16 +56,29 @@ public class ContextRuleProcessor {
     //  give a concept name as the map key, return a set of feature names as the map value.
     public LinkedHashMap<String, TypeDefinition> conceptFeaturesMap = new LinkedHashMap<>();
 
-    //   the nested map structure for rule processing
-    protected HashMap rulesMap = new HashMap();
-    //   map a rule to its corresponding line number
-    public LinkedHashMap<Integer, ContextRule> rules = new LinkedHashMap<Integer, ContextRule>();
+    //   the nested map structure of the deprecated recursive matching, built from the rules on its first use (see
+    //   getRulesMap), null until then; and the version of the rules that it is built from
+    protected HashMap rulesMap;
+    private LinkedHashMap<Integer, ContextRule> rulesMapSource;
+    //   map a rule to its corresponding line number. The rule edits replace the whole map (copy on write), so a
+    //   reader always sees a complete version.
+    public volatile LinkedHashMap<Integer, ContextRule> rules = new LinkedHashMap<Integer, ContextRule>();
+    //   the same rules compiled into an immutable double-array trie, which is used by processRules. Each match reads
+    //   the version that its InternedTokens/DeterminantMatches were made with.
+    protected volatile CompiledContextRules compiledRules;
+    //   applies the rule edits to the compiled rules, created by the first edit
+    protected ContextRuleEditor ruleEditor;
+    //   whether the compiled rules were loaded from a snapshot instead of parsing the rule file
+    protected boolean loadedFromSnapshot = false;
+    //   the features that the compiled rules are restricted to (see setRequestedFeatures), null for all of them
+    protected volatile Set<String> requestedFeatures;
 
 
     protected Pattern pdigit;
-    protected Matcher mt;
     protected final String END = "<END>";
     protected boolean caseSensitive = false;
+    //  the rule count from which the rules are parsed and compiled in parallel
+    protected int parallelBuildThreshold = DoubleArrayRuleTrie.PARALLEL_BUILD_THRESHOLD;
 
     public ContextRuleProcessor(String ruleFileName) {
 //        TODO check | or \\|
@@ -86,19 +103,309 @@ public class ContextRuleProcessor {
         initiate(rules);
     }
 
+    /**
+     * Load the compiled rules from a snapshot (see {@link ContextRuleSnapshot}) if it has been written from the same
+     * rule file with the same case sensitivity, otherwise parse the rule file and (re)write the snapshot.
+     *
+     * @param ruleFileName     the rule file, or the rules as a string
+     * @param snapshotFileName the snapshot file, the case-sensitive rules are kept next to it, see
+     *                         {@link ContextRuleSnapshot#getSnapshotFile(String, boolean)}
+     * @param caseSensitive    whether to match the rules case sensitively
+     */
+    public ContextRuleProcessor(String ruleFileName, String snapshotFileName, boolean caseSensitive) {
+        this(ruleFileName, snapshotFileName, caseSensitive, false);
+    }
+
+    /**
+     * Same as {@link #ContextRuleProcessor(String, String, boolean)}, and optionally read the trie from the mapped
+     * snapshot file (see {@link OffHeapRuleTrie}) instead of copying it onto the heap, so that the processes that map
+     * the same snapshot share its pages.
+     *
+     * @param ruleFileName     the rule file, or the rules as a string
+     * @param snapshotFileName the snapshot file
+     * @param caseSensitive    whether to match the rules case sensitively
+     * @param offHeapTrie      whether to keep the trie off the heap, see {@link #setOffHeapTrie(boolean)}
+     */
+    public ContextRuleProcessor(String ruleFileName, String snapshotFileName, boolean caseSensitive,
+                                boolean offHeapTrie) {
+        this.caseSensitive = caseSensitive;
+        File snapshotFile = ContextRuleSnapshot.getSnapshotFile(snapshotFileName, caseSensitive);
+        long checksum = 0;
+        boolean snapshot = false;
+        try {
+            checksum = ContextRuleSnapshot.checksum(ruleFileName);
+            snapshot = true;
+            if (ContextRuleSnapshot.read(snapshotFile, checksum, this, offHeapTrie)) {
+                loadedFromSnapshot = true;
+                return;
+            }
+        } catch (IOException e) {
+            logger.warning("Cannot read the rule snapshot " + snapshotFileName + ": " + e.getMessage());
+        }
+        IOUtil.readAgnosticRuleResource(ruleFileName, "|", rules, conceptFeaturesMap, featureDefaultValueMap, valueFeatureNameMap);
+        initiate(rules);
+        //  the processor that (re)writes the snapshot copies its trie into a direct buffer, the others map the file
+        setOffHeapTrie(offHeapTrie);
+        if (!snapshot)
+            return;
+        try {
+            ContextRuleSnapshot.write(this, checksum, snapshotFile);
+        } catch (IOException e) {
+            logger.warning("Cannot write the rule snapshot " + snapshotFileName + ": " + e.getMessage());
+        }
+    }
+
     public ContextRuleProcessor(ArrayList<String> ruleslist, boolean caseInsensitive) {
         IOUtil.readStringList(ruleslist, "|", rules, conceptFeaturesMap, featureDefaultValueMap, valueFeatureNameMap);
         this.caseSensitive = caseInsensitive;
         initiate(rules);
     }
 
+    /**
+     * @param ruleslist              the rule lines
+     * @param caseSensitive          whether to match the rules case sensitively
+     * @param parallelBuildThreshold parse and compile the rules in parallel if there are at least this many: 0 to
+     *                               always, Integer.MAX_VALUE to never, see
+     *                               {@link DoubleArrayRuleTrie#PARALLEL_BUILD_THRESHOLD}
+     */
+    public ContextRuleProcessor(ArrayList<String> ruleslist, boolean caseSensitive, int parallelBuildThreshold) {
+        this.parallelBuildThreshold = parallelBuildThreshold;
+        IOUtil.readStringList(ruleslist, "|", rules, conceptFeaturesMap, featureDefaultValueMap, valueFeatureNameMap,
+                parallelBuildThreshold);
+        this.caseSensitive = caseSensitive;
+        initiate(rules);
+    }
+
+
+    /**
+     * @return true if the compiled rules were loaded from a snapshot, false if the rules were parsed
+     */
+    public boolean isLoadedFromSnapshot() {
+        return loadedFromSnapshot;
+    }
 
-    public void setCaseSensitive(boolean CaseInsensitive) {
+    public synchronized void setCaseSensitive(boolean CaseInsensitive) {
         this.caseSensitive = CaseInsensitive;
+        if (compiledRules != null)
+            compiledRules = compiledRules.withCaseSensitive(CaseInsensitive);
+    }
+
+    /**
+     * @param useTokenAutomaton true: match all start positions in one pass with a {@link TokenAutomaton};
+     *                          false (default): walk the trie from every start position. Both give the same matches.
+     */
+    public synchronized void setUseTokenAutomaton(boolean useTokenAutomaton) {
+        compiledRules = compiledRules.withTokenAutomaton(useTokenAutomaton);
+    }
+
+    /**
+     * @param scanOutward true: match the pre/post-context outward from the concept, and stop as soon as every
+     *                    determinant that can show up in the contexts is blocked by a termination;
+     *                    false (default): match the whole window. Both give the same contexts.
+     */
+    public synchronized void setScanOutward(boolean scanOutward) {
+        compiledRules = compiledRules.withScanOutward(scanOutward);
+    }
+
+    /**
+     * @param offHeapTrie true: keep the compiled trie in a direct buffer outside of the Java heap (see
+     *                    {@link OffHeapRuleTrie}); false (default): keep the trie in heap arrays. Both give the
+     *                    same matches.
+     */
+    public synchronized void setOffHeapTrie(boolean offHeapTrie) {
+        compiledRules = compiledRules.withOffHeapTrie(offHeapTrie);
+    }
+
+    /**
+     * @param generatedMatcher true: step through the literal rule tokens with a class generated and compiled for the
+     *                         current rules (see {@link RuleMatcherGenerator}, it needs a JDK at runtime), the trie is
+     *                         kept on the heap; false (default): with the array lookups of the trie. Both give the
+     *                         same matches. The class is generated again when the rules are reloaded, but not on the
+     *                         rule edits ({@link #addRule(String)} etc.), which go back to the array lookups until it
+     *                         is set again.
+     * @throws IllegalStateException if the class cannot be generated, the rules are not changed then
+     */
+    public synchronized void setGeneratedMatcher(boolean generatedMatcher) {
+        compiledRules = compiledRules.withGeneratedMatcher(generatedMatcher);
+    }
+
+    /**
+     * @param directionTries true: match the pre-context with a trie of only the forward determinants, and the
+     *                       post-context with a trie of the others (see {@link CompiledContextRules#withDirectionTries}),
+     *                       so that each side walks about half of the states; false (default): match both with the trie
+     *                       of all the rules. The contexts are the same, but the pre-context (post-context) matches of
+     *                       {@link #processPreContext(InternedTokens, int, DeterminantMatches)} (and the other
+     *                       processPreContext/processPostContext methods over InternedTokens) only have the forward
+     *                       (the other) determinants then. The rule edits compile the two tries again.
+     */
+    public synchronized void setDirectionTries(boolean directionTries) {
+        compiledRules = compiledRules.withDirectionTries(directionTries);
+    }
+
+    /**
+     * Only match the rules of some features (e.g. "Negation"): the compiled rules become a view that has only the
+     * determinants of the modifier values of these features (see {@link CompiledContextRules#withModifiers}), so the
+     * trie branches of the other features are not walked, and with {@link #setScanOutward(boolean)} the matching
+     * stops once the requested features are blocked, instead of waiting for all the others. The contexts of the
+     * requested features are the same. The rule edits and reloads keep the requested features.
+     *
+     * @param featureNames the feature names, null for all the features
+     */
+    public synchronized void setRequestedFeatures(Collection<String> featureNames) {
+        requestedFeatures = featureNames == null ? null : Collections.unmodifiableSet(new LinkedHashSet<>(featureNames));
+        compiledRules = compiledRules.withModifiers(getRequestedModifiers());
+    }
+
+    /**
+     * @return the requested features, null if all the features are matched
+     */
+    public Set<String> getRequestedFeatures() {
+        return requestedFeatures;
+    }
+
+    /**
+     * @return the modifier values of the requested features, null if all the features are requested
+     */
+    protected Set<String> getRequestedModifiers() {
+        Set<String> featureNames = requestedFeatures;
+        if (featureNames == null)
+            return null;
+        HashSet<String> modifiers = new HashSet<>();
+        for (Map.Entry<String, String> entry : valueFeatureNameMap.entrySet())
+            if (featureNames.contains(entry.getValue()))
+                modifiers.add(entry.getKey());
+        return modifiers;
+    }
+
+    /**
+     * @return the current compiled rules, which can be shared by any number of threads
+     */
+    public CompiledContextRules getCompiledRules() {
+        return compiledRules;
+    }
+
+    /**
+     * @return the size and the shape of the current compiled rules, and the rules that are not compiled into them
+     */
+    public synchronized RuleStatistics getRuleStatistics() {
+        return new RuleStatistics(compiledRules.fullRules, rules.values());
+    }
+
+    /**
+     * Add a rule to the live rules without compiling all the rules again. The matches that are running finish on the
+     * rules they started with, the ones started after this call see the new rule. With a generated matcher
+     * ({@link #setGeneratedMatcher(boolean)}), its class is generated again for the edited rules.
+     * <p>
+     * The feature schema (@CONCEPT_FEATURES and @FEATURE_VALUES) cannot be edited, so the rule's modifier has to be one
+     * of the feature values if the rules define any.
+     *
+     * @param ruleLine a rule in the format of the rule file, e.g. "denies|forward|trigger|negated|10"
+     * @return the id of the new rule
+     * @throws IllegalArgumentException if the line is not a valid rule
+     */
+    public synchronized int addRule(String ruleLine) {
+        int id = compiledRules.rulesById.length;
+        for (int key : rules.keySet())
+            id = Math.max(id, key + 1);
+        ContextRule rule = parseRule(ruleLine, id);
+        editRules(-1, rule);
+        return id;
+    }
+
+    /**
+     * Remove a rule from the live rules without compiling all the rules again.
+     *
+     * @param id the rule id
+     * @return false if there is no such rule
+     * @see #addRule(String)
+     */
+    public synchronized boolean removeRule(int id) {
+        if (!rules.containsKey(id))
+            return false;
+        editRules(id, null);
+        return true;
+    }
+
+    /**
+     * Replace a rule of the live rules, the rule keeps its id.
+     *
+     * @param id       the rule id
+     * @param ruleLine the new rule in the format of the rule file
+     * @return false if there is no such rule
+     * @throws IllegalArgumentException if the line is not a valid rule
+     * @see #addRule(String)
+     */
+    public synchronized boolean updateRule(int id, String ruleLine) {
+        if (!rules.containsKey(id))
+            return false;
+        editRules(id, parseRule(ruleLine, id));
+        return true;
+    }
+
+    /**
+     * @param ruleLine a rule in the format of the rule file
+     * @param id       the id to give the rule
+     * @return the parsed rule
+     */
+    protected ContextRule parseRule(String ruleLine, int id) {
+        if (ruleLine.startsWith("@") || ruleLine.startsWith("&"))
+            throw new IllegalArgumentException("The feature schema cannot be edited: " + ruleLine);
+        LinkedHashMap<Integer, ContextRule> parsed = new LinkedHashMap<>();
+        try {
+            IOUtil.readStringList(new ArrayList<>(Collections.singletonList(ruleLine)), "|", parsed,
+                    new LinkedHashMap<>(), new LinkedHashMap<>(), new LinkedHashMap<>(valueFeatureNameMap));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Cannot parse the rule: " + ruleLine, e);
+        }
+        if (parsed.isEmpty())
+            throw new IllegalArgumentException("Not a rule, or its modifier is not one of the feature values: " + ruleLine);
+        ContextRule rule = parsed.values().iterator().next();
+        return new ContextRule(rule.direction, rule.triggerType, rule.determinant, rule.modifier, rule.rule, id,
+                rule.windowSize);
+    }
+
+    /**
+     * Apply an edit to the compiled rules and publish the new version (the compiled rules first, so that a reader
+     * never sees a rule id that its compiled rules don't know). The deprecated rulesMap is built again from the edited
+     * rules on its next use.
+     */
+    private void editRules(int removedId, ContextRule added) {
+        //  the edits apply to the full rules, the view of the requested features is made again from them
+        CompiledContextRules full = compiledRules.fullRules;
+        if (ruleEditor == null || ruleEditor.trie != full.trie)
+            ruleEditor = new ContextRuleEditor(rules.values(), full);
+        CompiledContextRules edited = ruleEditor.edit(full, removedId, added);
+        LinkedHashMap<Integer, ContextRule> editedRules = new LinkedHashMap<>(rules);
+        if (added != null)
+            editedRules.put(added.id, added);
+        else
+            editedRules.remove(removedId);
+        compiledRules = edited.withModifiers(getRequestedModifiers());
+        rules = editedRules;
     }
 
 
     protected void initiate(LinkedHashMap<Integer, ContextRule> rules) {
+        updateValueWeights();
+        this.rules = rules;
+        rulesMap = null;
+        if (pdigit == null)
+            pdigit = Pattern.compile("(\\d+\\.?\\d?+)(-\\w+)?");
+        boolean useTokenAutomaton = compiledRules != null && compiledRules.tokenAutomaton != null;
+        boolean scanOutward = compiledRules != null && compiledRules.scanOutward;
+        boolean offHeapTrie = compiledRules != null && compiledRules.isOffHeapTrie();
+        boolean generatedMatcher = compiledRules != null && compiledRules.isGeneratedMatcher();
+        boolean directionTries = compiledRules != null && compiledRules.isDirectionTries();
+        //  a large rule set is split and built in parallel by the trie, see parallelBuildThreshold
+        CompiledContextRules compiled = new CompiledContextRules(rules.values(), !caseSensitive, caseSensitive,
+                useTokenAutomaton, parallelBuildThreshold);
+        compiledRules = compiled.withScanOutward(scanOutward).withOffHeapTrie(offHeapTrie)
+                .withGeneratedMatcher(generatedMatcher).withDirectionTries(directionTries)
+                .withModifiers(getRequestedModifiers());
+    }
+
+
+    protected void updateValueWeights() {
         String currentFeatureName = "";
         int weight = 0;
         for (Map.Entry<String, String> entry : valueFeatureNameMap.entrySet()) {
@@ -113,40 +420,55 @@ public class ContextRuleProcessor {
             valueWeightMap.put(value, weight);
 
         }
-        this.rules = rules;
-        rulesMap.clear();
-        if (pdigit == null)
-            pdigit = Pattern.compile("(\\d+\\.?\\d?+)(-\\w+)?");
-        for (ContextRule rule : rules.values()) {
-            if (rule.getDirection() == TriggerTypes.both) {
-                rule.setDirection(TriggerTypes.forward);
-                addRule(rule);
-                rule.setDirection(TriggerTypes.backward);
-                addRule(rule);
-                rule.setDirection(TriggerTypes.both);
-            } else
-                addRule(rule);
-        }
     }
 
+    /**
+     * The nested rulesMap that the deprecated recursive matching
+     * ({@link #processRules(List, HashMap, int, int, LinkedHashMap)}) walks from. The compiled rules don't need it, so
+     * it is only built on the first call, from the current rules (the parsed, the loaded from a snapshot, or the
+     * edited ones), and built again after the rules have changed.
+     *
+     * @return the nested rulesMap of the current rules
+     */
+    protected synchronized HashMap getRulesMap() {
+        LinkedHashMap<Integer, ContextRule> rules = this.rules;
+        if (rulesMap == null || rulesMapSource != rules) {
+            rulesMap = new HashMap();
+            for (ContextRule rule : rules.values()) {
+                if (rule.getDirection() == TriggerTypes.both) {
+                    addRule(rule, TriggerTypes.forward + "_" + rule.modifier);
+                    addRule(rule, TriggerTypes.backward + "_" + rule.modifier);
+                } else
+                    addRule(rule);
+            }
+            rulesMapSource = rules;
+        }
+        return rulesMap;
+    }
 
     /**
      * @param rule Parsed context rule from String
      * @return true: if the rule is added; false: if the rule is a duplicate
      */
     protected boolean addRule(ContextRule rule) {
-        // use to store the HashMap sub-chain that have the key chain that meet
-        // the rule[]
-        ArrayList<HashMap> rules_tmp = new ArrayList<HashMap>();
+        return addRule(rule, rule.determinant);
+    }
+
+    /**
+     * @param rule        Parsed context rule from String, it is not changed
+     * @param determinant The determinant to add the rule under, e.g. "forward_negated" for a "both" rule
+     * @return true: if the rule is added; false: if the rule is a duplicate
+     */
+    protected boolean addRule(ContextRule rule, String determinant) {
+        if (rulesMap == null)
+            rulesMap = new HashMap();
         HashMap rule1 = rulesMap;
-        HashMap rule2 = new HashMap();
-        HashMap rulet = new HashMap();
-        if (!caseSensitive)
-            rule.rule = rule.rule.toLowerCase();
-        String[] ruleContent = rule.rule.split("[\\s　]+");
+        //  folded the same way as the compiled rules, which setCaseSensitive doesn't compile again
+        boolean lowerCaseRules = compiledRules != null ? compiledRules.lowerCaseRules : !caseSensitive;
+        String ruleString = lowerCaseRules ? DoubleArrayRuleTrie.foldCase(rule.rule) : rule.rule;
+        String[] ruleContent = DoubleArrayRuleTrie.TOKEN_SEPARATOR.split(ruleString);
         int length = ruleContent.length;
         int i = 0;
-        rules_tmp.add(rulesMap);
         while (i < length && rule1 != null && rule1.containsKey(ruleContent[i])) {
             rule1 = (HashMap) rule1.get(ruleContent[i]);
             i++;
@@ -156,27 +478,24 @@ public class ContextRuleProcessor {
             return false;
         // start with the determinant, construct the last descendant HashMap
         // <Determinant, null>
+        HashMap ends = new HashMap();
+        ends.put(determinant, rule.id);
         if (i == length) {
-            if (rule1.containsKey(END)) {
-                ((HashMap) rule1.get(END)).put(rule.determinant, rule.id);
-            } else {
-                rule2.put(rule.determinant, rule.id);
-                rule1.put(END, rule2.clone());
-            }
+            if (rule1.containsKey(END))
+                ((HashMap) rule1.get(END)).put(determinant, rule.id);
+            else
+                rule1.put(END, ends);
             return true;
-        } else {
-            rule2.put(rule.determinant, rule.id);
-            rule2.put(END, rule2.clone());
-            rule2.remove(rule.determinant);
-
-            // filling the HashMap chain which rules doesn't have the key chain
-            for (int j = length - 1; j > i; j--) {
-                rulet = (HashMap) rule2.clone();
-                rule2.clear();
-                rule2.put(ruleContent[j], rulet);
-            }
         }
-        rule1.put(ruleContent[i], rule2.clone());
+        // filling the HashMap chain which rules doesn't have the key chain, from the END backwards
+        HashMap chain = new HashMap();
+        chain.put(END, ends);
+        for (int j = length - 1; j > i; j--) {
+            HashMap parent = new HashMap();
+            parent.put(ruleContent[j], chain);
+            chain = parent;
+        }
+        rule1.put(ruleContent[i], chain);
         return true;
     }
 
@@ -193,25 +512,748 @@ public class ContextRuleProcessor {
         // use the first "startposition" to remember the original start matching
         // position.
         // use the 2nd one to remember the start position in which recursion.
-        if (!caseSensitive)
-            for (int i = startposition; i < contextTokens.size(); i++) {
-                contextTokens.get(i).text = contextTokens.get(i).text.toLowerCase();
+        InternedTokens tokens = internTokens(contextTokens, new InternedTokens(contextTokens.size()));
+        processRules(tokens, 0, startposition, tokens.size(), matches);
+    }
+
+    /**
+     * Map each token to its id in the rule vocabulary, so that the tokens can be matched against the rules (for as
+     * many concepts as needed) without looking up the token strings again. If the rules are case-insensitive, the
+     * tokens are looked up with case folding, the token text is neither changed nor copied.
+     *
+     * @param contextTokens The tokens of a sentence or a document
+     * @param target        The interned tokens to (re)fill
+     * @return target
+     */
+    public InternedTokens internTokens(List<Span> contextTokens, InternedTokens target) {
+        target.clear(compiledRules);
+        for (Span token : contextTokens)
+            addToken(target, token.text, token.begin, token.end);
+        return target;
+    }
+
+    /**
+     * Add a token to the interned tokens. If the token starts with a digit, its number and suffix (e.g. "30-days") are
+     * parsed here once, so that the numeric rules don't need to parse it again at every trie state.
+     *
+     * @param target The interned tokens, cleared for the compiled rules to intern with
+     * @param text   The token text
+     * @param begin  The begin offset of the token
+     * @param end    The end offset of the token
+     */
+    protected void addToken(InternedTokens target, String text, int begin, int end) {
+        DoubleArrayRuleTrie ruleTrie = target.rules.trie;
+        boolean caseSensitive = target.rules.caseSensitive;
+        int id = ruleTrie.getTokenId(text, 0, text.length(), !caseSensitive);
+        int flags = InternedTokens.WORD;
+        //  case-insensitive rules are lower cased, so "\W+" has become "\w+" in them
+        if (caseSensitive && isUpperCase(text))
+            flags |= InternedTokens.UPPER_CASE;
+        if (text.length() > 0 && Character.isDigit(text.charAt(0))) {
+            flags |= InternedTokens.LEADING_DIGIT;
+            //  the same as matching pdigit "(\d+\.?\d?+)(-\w+)?", but scans the characters in place
+            int digitBegin = 0;
+            while (digitBegin < text.length() && !isAsciiDigit(text.charAt(digitBegin)))
+                digitBegin++;
+            if (digitBegin < text.length()) {
+                int i = digitBegin;
+                long integer = 0;
+                while (i < text.length() && isAsciiDigit(text.charAt(i))) {
+                    if (i - digitBegin < 4)
+                        integer = integer * 10 + text.charAt(i) - '0';
+                    i++;
+                }
+                if (i < text.length() && text.charAt(i) == '.')
+                    i++;
+                int fraction = -1;
+                if (i < text.length() && isAsciiDigit(text.charAt(i)))
+                    fraction = text.charAt(i++) - '0';
+                double number;
+//			prevent length over limit
+                if (i - digitBegin < 4) {
+                    number = fraction == -1 ? integer : (integer * 10 + fraction) / 10.0;
+                } else {
+                    number = 1000;
+                }
+                flags |= InternedTokens.NUMBER;
+                int suffixId = InternedTokens.NO_SUFFIX;
+                if (i + 1 < text.length() && text.charAt(i) == '-' && isWordChar(text.charAt(i + 1))) {
+                    int suffixEnd = i + 2;
+                    while (suffixEnd < text.length() && isWordChar(text.charAt(suffixEnd)))
+                        suffixEnd++;
+                    suffixId = ruleTrie.getTokenId(text, i + 1, suffixEnd, !caseSensitive);
+                    flags |= InternedTokens.NUMBER_SUFFIX;
+                }
+                target.add(id, text, begin, end, flags, number, suffixId);
+                return;
             }
-        for (int i = startposition; i < contextTokens.size(); i++) {
-            // System.out.println(contextTokens.get(i));
-            processRules(contextTokens, rulesMap, i, i, matches);
         }
+        target.add(id, text, begin, end, flags, Double.NaN, InternedTokens.NO_SUFFIX);
+    }
+
+    private static boolean isAsciiDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    //  "\w" of java.util.regex: [a-zA-Z_0-9]
+    private static boolean isWordChar(char c) {
+        return isAsciiDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    /**
+     * Match the rules within a range of interned tokens. The positions of the matched spans are relative to "from".
+     *
+     * @param tokens  The interned tokens
+     * @param from    The first token of the context (inclusive)
+     * @param to      The last token of the context (exclusive)
+     * @param matches Storing the matched context spans
+     */
+    public void processRules(InternedTokens tokens, int from, int to, LinkedHashMap<String, ConTextSpan> matches) {
+        processRules(tokens, from, from, to, matches);
+    }
+
+    /**
+     * The same as {@link #processRules(InternedTokens, int, int, LinkedHashMap)}, but stores the matches in reusable
+     * slots, so that matching doesn't allocate.
+     *
+     * @param tokens  The interned tokens
+     * @param from    The first token of the context (inclusive)
+     * @param to      The last token of the context (exclusive)
+     * @param matches Storing the matched context spans
+     */
+    public void processRules(InternedTokens tokens, int from, int to, DeterminantMatches matches) {
+        processRules(tokens, from, from, to, matches);
+    }
+
+    /**
+     * @return a match holder sized for the determinants of the compiled rules
+     */
+    public DeterminantMatches newDeterminantMatches() {
+        return new DeterminantMatches(compiledRules);
+    }
+
+    public String getDeterminant(int determinantId) {
+        return compiledRules.getDeterminant(determinantId);
+    }
+
+    /**
+     * @param tokens        The interned tokens
+     * @param offset        The first token of the context, positions of the matched spans are relative to it
+     * @param startposition The position where matching starts
+     * @param to            The last token of the context (exclusive)
+     * @param matches       Storing the matched context spans
+     */
+    protected void processRules(InternedTokens tokens, int offset, int startposition, int to,
+                                LinkedHashMap<String, ConTextSpan> matches) {
+        DeterminantMatches determinantMatches = new DeterminantMatches(tokens.rules == null ? compiledRules : tokens.rules);
+        processRules(tokens, offset, startposition, to, determinantMatches);
+        putAll(determinantMatches, matches);
+    }
+
+    private void putAll(DeterminantMatches determinantMatches, LinkedHashMap<String, ConTextSpan> matches) {
+        for (int i = 0; i < determinantMatches.size(); i++) {
+            matches.put(determinantMatches.rules.getDeterminant(determinantMatches.getDeterminantId(i)),
+                    determinantMatches.getSpan(i));
+        }
+    }
 
+    /**
+     * @param tokens        The interned tokens
+     * @param offset        The first token of the context, positions of the matched spans are relative to it
+     * @param startposition The position where matching starts
+     * @param to            The last token of the context (exclusive)
+     * @param matches       Storing the matched context spans
+     */
+    protected void processRules(InternedTokens tokens, int offset, int startposition, int to,
+                                DeterminantMatches matches) {
+        processRules(tokens, offset, startposition, to, to, matches);
+    }
+
+    /**
+     * Match the rules in the pre-context of a concept. Only the forward rules are applied to the pre-context, and a
+     * forward match is only applied if it ends within its rule window before the concept. So the matching starts no
+     * earlier than the largest forward window plus the longest forward rule (in non-blank tokens) before the concept,
+     * instead of from the beginning of the sentence.
+     *
+     * @param tokens  The interned tokens
+     * @param to      The position of the first token of the concept, the pre-context is [0, to)
+     * @param matches Storing the matched context spans, with positions relative to 0
+     */
+    public void processPreContext(InternedTokens tokens, int to, DeterminantMatches matches) {
+        int startposition = getPreContextStart(tokens, to, matches.rules);
+        matches.selectTrie(CompiledContextRules.FORWARD);
+        if (matches.rules.scanOutward && matches.rules.outwardStoppable[CompiledContextRules.FORWARD]) {
+            processPreContextOutward(tokens, startposition, to, matches);
+        } else {
+            matches.setSkipped(tokens, startposition);
+            processRules(tokens, 0, startposition, to, to, matches);
+            matches.setSkipped(null, 0);
+        }
+        matches.selectTrie(CompiledContextRules.BOTH);
+    }
+
+    /**
+     * The same as {@link #processPreContext(InternedTokens, int, DeterminantMatches)}, but walks the trie from the
+     * start positions next to the concept first, and stops once every forward determinant is blocked: it has a
+     * termination within its window, that no wider match of the determinant covers. Such a termination is kept no
+     * matter what has been matched before it, so the matches further away don't change the result.
+     * <p>
+     * The matches are recorded while walking outward, then resolved from the stop position in the order of their start
+     * positions, the same order as the whole window is matched.
+     *
+     * @param tokens        The interned tokens
+     * @param startposition The first position that a match in the window can start from
+     * @param to            The position of the first token of the concept
+     * @param matches       Storing the matched context spans, with positions relative to 0
+     */
+    protected void processPreContextOutward(InternedTokens tokens, int startposition, int to,
+                                            DeterminantMatches matches) {
+        checkRules(tokens, matches);
+        CompiledContextRules compiled = matches.rules;
+        DoubleArrayRuleTrie ruleTrie = matches.trie;
+        if (matches.outwardScan == null)
+            matches.outwardScan = new DeterminantMatches.OutwardScan(compiled.getDeterminantCount());
+        DeterminantMatches.OutwardScan scan = matches.outwardScan;
+        scan.clear(to - startposition);
+        int length = compiled.getMaxRuleLength(TriggerTypes.forward);
+        int root = ruleTrie.getRoot();
+        boolean skipUnknown = !ruleTrie.acceptsUnknownToken(root);
+        int stop = startposition;
+        matches.recording = scan.records;
+        for (int i = to - 1; i >= startposition; i--) {
+            int first = scan.records.count;
+            if (!skipUnknown || tokens.getId(i) != DoubleArrayRuleTrie.UNKNOWN_TOKEN)
+                processRules(tokens, 0, to, to, root, i, i, matches);
+            scan.recordBegin[i - startposition] = first;
+            scan.recordEnd[i - startposition] = scan.records.count;
+            //  the matches of a start position are resolved in the order they are recorded, so the ones recorded
+            //  earlier come before a termination of the same start position
+            for (int r = scan.records.count - 1; r >= first; r--)
+                updateBlocks(tokens, scan, compiled, ruleTrie, r, to, length);
+            for (int determinantId = 0; determinantId < scan.status.length; determinantId++) {
+                if (scan.status[determinantId] == DeterminantMatches.OutwardScan.PENDING
+                        && i <= scan.confirmPosition[determinantId]) {
+                    scan.status[determinantId] = DeterminantMatches.OutwardScan.BLOCKED;
+                    scan.blockedCount++;
+                }
+            }
+            if (scan.blockedCount == compiled.outwardStopCounts[CompiledContextRules.FORWARD]) {
+                stop = i;
+                break;
+            }
+        }
+        matches.recording = null;
+        if (stop == startposition)
+            matches.setSkipped(tokens, startposition);
+        for (int i = stop; i < to; i++) {
+            for (int r = scan.recordBegin[i - startposition]; r < scan.recordEnd[i - startposition]; r++)
+                addDeterminants(scan.records.getState(r), matches, scan.records.getBegin(r), scan.records.getEnd(r), to);
+        }
+        matches.setSkipped(null, 0);
+    }
+
+    /**
+     * Check whether a recorded match blocks a forward determinant, or makes a wider cover of a pending termination.
+     */
+    private void updateBlocks(InternedTokens tokens, DeterminantMatches.OutwardScan scan, CompiledContextRules compiled,
+                              DoubleArrayRuleTrie ruleTrie, int record, int to, int length) {
+        int state = scan.records.getState(record);
+        int begin = scan.records.getBegin(record);
+        int end = scan.records.getEnd(record) - 1;
+        for (int i = 0; i < ruleTrie.getEndCount(state); i++) {
+            int determinantId = ruleTrie.getEndDeterminantId(state, i);
+            if (!compiled.outwardStops[determinantId] || compiled.determinantDirections[determinantId] != 'f')
+                continue;
+            if (scan.status[determinantId] == DeterminantMatches.OutwardScan.PENDING
+                    && begin <= scan.blockBegin[determinantId] && end >= scan.blockEnd[determinantId]
+                    && end - begin > scan.blockEnd[determinantId] - scan.blockBegin[determinantId])
+                scan.status[determinantId] = DeterminantMatches.OutwardScan.NONE;
+            int ruleId = ruleTrie.getEndRuleId(state, i);
+            if (scan.status[determinantId] == DeterminantMatches.OutwardScan.NONE
+                    && getTriggerType(compiled, ruleId) == TERMINATION && to - end <= getWindowSize(compiled, ruleId)) {
+                scan.status[determinantId] = DeterminantMatches.OutwardScan.PENDING;
+                scan.blockBegin[determinantId] = begin;
+                scan.blockEnd[determinantId] = end;
+                //  a match that covers the termination cannot start before it
+                scan.confirmPosition[determinantId] = startOfNonBlankTokens(tokens, end, length);
+            }
+        }
+    }
+
+    /**
+     * Match the rules in the post-context of a concept. Only the backward rules are applied to the post-context, and
+     * a backward match is only applied if it begins within its rule window after the concept. So the matching stops
+     * after the largest backward window plus the longest backward rule (in non-blank tokens), instead of at the end of
+     * the sentence.
+     *
+     * @param tokens  The interned tokens
+     * @param from    The position of the first token after the concept, the post-context is [from, tokens.size())
+     * @param matches Storing the matched context spans, with positions relative to from
+     */
+    public void processPostContext(InternedTokens tokens, int from, DeterminantMatches matches) {
+        int end = getPostContextEnd(tokens, from, matches.rules);
+        matches.selectTrie(CompiledContextRules.BACKWARD);
+        if (matches.rules.scanOutward && matches.rules.outwardStoppable[CompiledContextRules.BACKWARD])
+            processPostContextOutward(tokens, from, end, matches);
+        else
+            processRules(tokens, from, from, end, tokens.size(), matches);
+        matches.selectTrie(CompiledContextRules.BOTH);
+    }
+
+    /**
+     * The same as {@link #processPostContext(InternedTokens, int, DeterminantMatches)}, but stops once every backward
+     * determinant is blocked: its match is a termination that ends before the current start position. Such a
+     * termination rejects every later match of the determinant.
+     *
+     * @param tokens  The interned tokens
+     * @param from    The position of the first token after the concept
+     * @param end     The end of the window
+     * @param matches Storing the matched context spans, with positions relative to from
+     */
+    protected void processPostContextOutward(InternedTokens tokens, int from, int end, DeterminantMatches matches) {
+        checkRules(tokens, matches);
+        CompiledContextRules compiled = matches.rules;
+        DoubleArrayRuleTrie ruleTrie = matches.trie;
+        int root = ruleTrie.getRoot();
+        boolean skipUnknown = !ruleTrie.acceptsUnknownToken(root);
+        int to = tokens.size();
+        for (int i = from; i < end; i++) {
+            if (!skipUnknown || tokens.getId(i) != DoubleArrayRuleTrie.UNKNOWN_TOKEN)
+                processRules(tokens, from, end, to, root, i, i, matches);
+            int blocked = 0;
+            for (int k = 0; k < matches.size(); k++) {
+                int determinantId = matches.getDeterminantId(k);
+                ConTextSpan span = matches.getSpan(k);
+                if (compiled.outwardStops[determinantId] && compiled.determinantDirections[determinantId] != 'f'
+                        && span.end < i + 1 - from && getTriggerType(compiled, span.ruleId) == TERMINATION)
+                    blocked++;
+            }
+            if (blocked == compiled.outwardStopCounts[CompiledContextRules.BACKWARD])
+                break;
+        }
+    }
+
+    /**
+     * The same as {@link #processPreContext(InternedTokens, int, DeterminantMatches)}, but stores the matches by their
+     * determinants.
+     *
+     * @param tokens  The interned tokens
+     * @param to      The position of the first token of the concept, the pre-context is [0, to)
+     * @param matches Storing the matched context spans, with positions relative to 0
+     */
+    public void processPreContext(InternedTokens tokens, int to, LinkedHashMap<String, ConTextSpan> matches) {
+        processPreContext(tokens, to, tokens.rules == null ? compiledRules : tokens.rules, matches);
+    }
+
+    /**
+     * The same as {@link #processPreContext(InternedTokens, int, LinkedHashMap)}, but matches a view of the rules
+     * that the tokens are interned with, e.g. the rules of a concept type (see
+     * {@link FastContext#getConceptRules(String)}).
+     *
+     * @param tokens  The interned tokens
+     * @param to      The position of the first token of the concept, the pre-context is [0, to)
+     * @param rules   The compiled rules to match, the tokens' or a view of them
+     * @param matches Storing the matched context spans, with positions relative to 0
+     */
+    public void processPreContext(InternedTokens tokens, int to, CompiledContextRules rules,
+                                  LinkedHashMap<String, ConTextSpan> matches) {
+        DeterminantMatches determinantMatches = new DeterminantMatches(rules);
+        processPreContext(tokens, to, determinantMatches);
+        putAll(determinantMatches, matches);
+    }
+
+    /**
+     * The same as {@link #processPostContext(InternedTokens, int, DeterminantMatches)}, but stores the matches by
+     * their determinants.
+     *
+     * @param tokens  The interned tokens
+     * @param from    The position of the first token after the concept, the post-context is [from, tokens.size())
+     * @param matches Storing the matched context spans, with positions relative to from
+     */
+    public void processPostContext(InternedTokens tokens, int from, LinkedHashMap<String, ConTextSpan> matches) {
+        processPostContext(tokens, from, tokens.rules == null ? compiledRules : tokens.rules, matches);
+    }
+
+    /**
+     * The same as {@link #processPostContext(InternedTokens, int, LinkedHashMap)}, but matches a view of the rules
+     * that the tokens are interned with.
+     *
+     * @param tokens  The interned tokens
+     * @param from    The position of the first token after the concept, the post-context is [from, tokens.size())
+     * @param rules   The compiled rules to match, the tokens' or a view of them
+     * @param matches Storing the matched context spans, with positions relative to from
+     */
+    public void processPostContext(InternedTokens tokens, int from, CompiledContextRules rules,
+                                   LinkedHashMap<String, ConTextSpan> matches) {
+        DeterminantMatches determinantMatches = new DeterminantMatches(rules);
+        processPostContext(tokens, from, determinantMatches);
+        putAll(determinantMatches, matches);
+    }
+
+    /**
+     * @return a sentence match index for the compiled rules
+     */
+    public SentenceMatches newSentenceMatches() {
+        return new SentenceMatches(compiledRules);
+    }
+
+    /**
+     * Match the rules from every position of a sentence once, so that the contexts of all the concepts in the sentence
+     * can be resolved from the same matches, through {@link #processPreContext(SentenceMatches, int, DeterminantMatches)}
+     * and {@link #processPostContext(SentenceMatches, int, DeterminantMatches)}.
+     *
+     * @param tokens The interned tokens of the sentence
+     * @param target The index to reuse, it must be made for the same compiled rules as the tokens
+     * @return the target, holding the matches of the tokens
+     */
+    public SentenceMatches matchSentence(InternedTokens tokens, SentenceMatches target) {
+        DeterminantMatches matches = target.walkMatches;
+        checkRules(tokens, matches);
+        target.clear(tokens);
+        DoubleArrayRuleTrie ruleTrie = target.rules.trie;
+        int root = ruleTrie.getRoot();
+        boolean skipUnknown = !ruleTrie.acceptsUnknownToken(root);
+        int size = tokens.size();
+        DeterminantMatches.MatchRecords records = target.records;
+        matches.recording = records;
+        for (int i = 0; i < size; i++) {
+            target.firstMatches[i] = records.count;
+            if (!skipUnknown || tokens.getId(i) != DoubleArrayRuleTrie.UNKNOWN_TOKEN)
+                processRules(tokens, 0, size, size, root, i, i, matches);
+        }
+        target.firstMatches[size] = records.count;
+        matches.recording = null;
+        for (int r = 0; r < records.count; r++) {
+            //  the walk reached the END after the blank tokens that follow the last token of the match
+            int position = records.getEnd(r) - 1;
+            while (position > records.getBegin(r) && tokens.isBlank(position))
+                position--;
+            target.setTokenEnd(r, position + 1);
+        }
+        return target;
+    }
+
+    /**
+     * The same as {@link #processPreContext(InternedTokens, int, DeterminantMatches)}, but resolves the matches that
+     * have been found by {@link #matchSentence(InternedTokens, SentenceMatches)}, instead of walking the trie again.
+     * The pre-context has the matches that begin within the window and end before the concept; a match that reads
+     * into the blank tokens in front of the concept ends at the concept, as the walk stops there.
+     *
+     * @param sentence The matches of the sentence
+     * @param to       The position of the first token of the concept, the pre-context is [0, to)
+     * @param matches  Storing the matched context spans, with positions relative to 0
+     */
+    public void processPreContext(SentenceMatches sentence, int to, DeterminantMatches matches) {
+        InternedTokens tokens = sentence.tokens;
+        checkRules(sentence, matches);
+        int startposition = getPreContextStart(tokens, to, sentence.rules);
+        matches.setSkipped(tokens, startposition);
+        processRules(sentence, 0, startposition, to, to, matches);
+        matches.setSkipped(null, 0);
+    }
+
+    /**
+     * The same as {@link #processPostContext(InternedTokens, int, DeterminantMatches)}, but resolves the matches that
+     * have been found by {@link #matchSentence(InternedTokens, SentenceMatches)}.
+     *
+     * @param sentence The matches of the sentence
+     * @param from     The position of the first token after the concept, the post-context is [from, tokens.size())
+     * @param matches  Storing the matched context spans, with positions relative to from
+     */
+    public void processPostContext(SentenceMatches sentence, int from, DeterminantMatches matches) {
+        InternedTokens tokens = sentence.tokens;
+        checkRules(sentence, matches);
+        processRules(sentence, from, from, getPostContextEnd(tokens, from, sentence.rules), tokens.size(), matches);
+    }
+
+    /**
+     * The same as {@link #processPreContext(SentenceMatches, int, DeterminantMatches)}, but stores the matches by
+     * their determinants.
+     */
+    public void processPreContext(SentenceMatches sentence, int to, LinkedHashMap<String, ConTextSpan> matches) {
+        DeterminantMatches determinantMatches = new DeterminantMatches(sentence.rules);
+        processPreContext(sentence, to, determinantMatches);
+        putAll(determinantMatches, matches);
+    }
+
+    /**
+     * The same as {@link #processPostContext(SentenceMatches, int, DeterminantMatches)}, but stores the matches by
+     * their determinants.
+     */
+    public void processPostContext(SentenceMatches sentence, int from, LinkedHashMap<String, ConTextSpan> matches) {
+        DeterminantMatches determinantMatches = new DeterminantMatches(sentence.rules);
+        processPostContext(sentence, from, determinantMatches);
+        putAll(determinantMatches, matches);
+    }
+
+    private void checkRules(SentenceMatches sentence, DeterminantMatches matches) {
+        if (sentence.tokens == null)
+            throw new IllegalArgumentException("The sentence hasn't been matched.");
+        if (sentence.rules != matches.rules)
+            throw new IllegalArgumentException("The sentence was matched with a different version of the rules than " +
+                    "the matches were made for.");
+    }
+
+    /**
+     * Resolve the recorded matches that begin within [startposition, end) and don't read past end, the same matches
+     * as the trie walk of {@link #processRules(InternedTokens, int, int, int, int, DeterminantMatches)} finds.
+     *
+     * @param sentence      The matches of the sentence
+     * @param offset        The first token of the context, positions of the matched spans are relative to it
+     * @param startposition The position where matching starts
+     * @param end           The end of the walk that is replayed
+     * @param to            The last token of the context (exclusive), the windows of the matches are checked against it
+     * @param matches       Storing the matched context spans
+     */
+    private void processRules(SentenceMatches sentence, int offset, int startposition, int end, int to,
+                              DeterminantMatches matches) {
+        DeterminantMatches.MatchRecords records = sentence.records;
+        for (int r = sentence.firstMatches[startposition]; r < sentence.firstMatches[end]; r++) {
+            if (sentence.tokenEnds[r] > end)
+                continue;
+            addDeterminants(records.getState(r), matches, records.getBegin(r) - offset,
+                    Math.min(records.getEnd(r), end) - offset, to - offset);
+        }
+    }
+
+    /**
+     * @param tokens   The interned tokens
+     * @param to       The position of the first token of the concept
+     * @param compiled The compiled rules that are matched, the tokens' or a view of them
+     * @return the first position that a forward match, which ends within its window before the concept, can start from
+     */
+    protected int getPreContextStart(InternedTokens tokens, int to, CompiledContextRules compiled) {
+        int length = compiled.getMaxRuleLength(TriggerTypes.forward);
+        if (length == 0)
+            return to;
+        //  a match ends no earlier than here, and it cannot cover more than "length" non-blank tokens before it
+        int position = Math.min(to - compiled.getMaxWindowSize(TriggerTypes.forward), to - 1);
+        return position < 0 ? 0 : startOfNonBlankTokens(tokens, position, length);
+    }
+
+    /**
+     * @param tokens   The interned tokens
+     * @param position The last position
+     * @param count    The number of non-blank tokens
+     * @return the first position p that [p, position] has no more than "count" non-blank tokens, the matches that
+     * start from the blank tokens in front of a token are the same matches with an earlier begin
+     */
+    protected static int startOfNonBlankTokens(InternedTokens tokens, int position, int count) {
+        int nonBlank = 0;
+        while (position >= 0) {
+            if (!tokens.isBlank(position) && ++nonBlank > count)
+                break;
+            position--;
+        }
+        return position + 1;
+    }
+
+    /**
+     * @param tokens   The interned tokens
+     * @param from     The position of the first token after the concept
+     * @param compiled The compiled rules that are matched, the tokens' or a view of them
+     * @return the position that no backward match, which begins within its window after the concept, reads up to
+     */
+    protected int getPostContextEnd(InternedTokens tokens, int from, CompiledContextRules compiled) {
+        int to = tokens.size();
+        int length = compiled.getMaxRuleLength(TriggerTypes.backward);
+        if (length == 0)
+            return from;
+        //  a match begins no later than here, and it cannot cover more than "length" non-blank tokens after it
+        int position = from + compiled.getMaxWindowSize(TriggerTypes.backward);
+        int count = 0;
+        while (position < to) {
+            if (!tokens.isBlank(position) && ++count == length) {
+                position++;
+                break;
+            }
+            position++;
+        }
+        //  a match that ends before blank tokens ends where the blank tokens end
+        while (position < to && tokens.isBlank(position))
+            position++;
+        return Math.min(position, to);
+    }
+
+    /**
+     * Match the rules that start within [startposition, end).
+     *
+     * @param tokens        The interned tokens
+     * @param offset        The first token of the context, positions of the matched spans are relative to it
+     * @param startposition The position where matching starts
+     * @param end           No token at or after it is read, it must be no earlier than the end of any wanted match
+     * @param to            The last token of the context (exclusive), the windows of the matches are checked against it
+     * @param matches       Storing the matched context spans
+     */
+    protected void processRules(InternedTokens tokens, int offset, int startposition, int end, int to,
+                                DeterminantMatches matches) {
+        checkRules(tokens, matches);
+        TokenAutomaton tokenAutomaton = matches.tokenAutomaton;
+        if (tokenAutomaton != null) {
+            if (matches.automatonScratch == null || matches.automatonScratch.automaton != tokenAutomaton)
+                matches.automatonScratch = tokenAutomaton.newScratch();
+            TokenAutomaton.Scratch scratch = matches.automatonScratch;
+            tokenAutomaton.match(tokens, startposition, end, scratch);
+            for (int i = 0; i < scratch.getMatchCount(); i++)
+                addDeterminants(scratch.getMatchState(i), matches, scratch.getMatchBegin(i) - offset,
+                        scratch.getMatchEnd(i) - offset, to - offset);
+            return;
+        }
+        processRules(tokens, offset, startposition, end, end, to, matches);
+    }
+
+    private void checkRules(InternedTokens tokens, DeterminantMatches matches) {
+        //  the views of the same rules share the token ids
+        if (tokens.size() > 0 && tokens.rules.fullRules != matches.rules.fullRules)
+            throw new IllegalArgumentException("The tokens were interned with a different version of the rules than " +
+                    "the matches were made for.");
+    }
+
+    /**
+     * Walk the trie from each position within [startposition, startEnd).
+     *
+     * @param tokens        The interned tokens
+     * @param offset        The first token of the context, positions of the matched spans are relative to it
+     * @param startposition The position where matching starts
+     * @param startEnd      No match starts at or after it
+     * @param end           The walk stops here (exclusive)
+     * @param to            The last token of the context (exclusive), the windows of the matches are checked against it
+     * @param matches       Storing the matched context spans
+     */
+    private void processRules(InternedTokens tokens, int offset, int startposition, int startEnd, int end, int to,
+                              DeterminantMatches matches) {
+        DoubleArrayRuleTrie ruleTrie = matches.trie;
+        int root = ruleTrie.getRoot();
+        //  a rule cannot start from a token that is not in the rule vocabulary, unless the rule starts with a wildcard
+        //  or a numeric comparator
+        boolean skipUnknown = !ruleTrie.acceptsUnknownToken(root);
+        for (int i = startposition; i < startEnd; i++) {
+            if (skipUnknown && tokens.getId(i) == DoubleArrayRuleTrie.UNKNOWN_TOKEN)
+                continue;
+            processRules(tokens, offset, end, to, root, i, i, matches);
+        }
+    }
+
+    /**
+     * The same matching as {@link #processRules(List, HashMap, int, int, LinkedHashMap)}, but walks the compiled
+     * double-array trie with the interned token ids. Blank tokens (see {@link DoubleArrayRuleTrie#BLANK_TOKEN}) are
+     * skipped over.
+     * <p>
+     * The walk is depth first as the recursive version, but keeps the pending steps on the reusable stack of the
+     * matches instead of the call stack, so that long contexts (e.g. many blank tokens) can't overflow it. Steps are
+     * pushed in reverse order, so that they are popped in the same order as the recursion, which the conflict
+     * resolution in {@link #addDeterminant(int, int, DeterminantMatches, int, int, int)} depends on.
+     *
+     * @param tokens          The interned tokens
+     * @param offset          The first token of the context, positions of the matched spans are relative to it
+     * @param end             The walk stops here (exclusive), the same as the end of the context for the walk
+     * @param to              The last token of the context (exclusive), the windows of the matches are checked against it
+     * @param state           Current trie state
+     * @param matchBegin      Keep track of the begin position of matched span
+     * @param currentPosition Keep track of the position where matching starts
+     * @param matches         Storing the matched context spans
+     */
+    protected void processRules(InternedTokens tokens, int offset, int end, int to, int state, int matchBegin,
+                                int currentPosition, DeterminantMatches matches) {
+        DoubleArrayRuleTrie ruleTrie = matches.trie;
+        matches.push(DeterminantMatches.VISIT, state, currentPosition);
+        while (matches.stackSize > 0) {
+            int top = --matches.stackSize * 3;
+            int step = matches.stack[top];
+            state = matches.stack[top + 1];
+            currentPosition = matches.stack[top + 2];
+            switch (step) {
+                case DeterminantMatches.VISIT:
+                    int flags = 0;
+                    while (currentPosition < end && ((flags = tokens.getFlags(currentPosition)) & InternedTokens.WORD) == 0)
+                        currentPosition++;
+                    if (currentPosition < end) {
+                        int next;
+                        if ((flags & InternedTokens.NUMBER) != 0) {
+                            next = ruleTrie.getLessThanState(state);
+                            if (next != -1)
+                                matches.push(DeterminantMatches.LESS_THAN, next, currentPosition);
+                            next = ruleTrie.getGreaterThanState(state);
+                            if (next != -1)
+                                matches.push(DeterminantMatches.GREATER_THAN, next, currentPosition);
+                        }
+                        next = ruleTrie.getTokenState(state, tokens.getId(currentPosition));
+                        if (next != -1)
+                            matches.push(DeterminantMatches.VISIT, next, currentPosition + 1);
+                        if (ruleTrie.hasEnd(state))
+                            matches.push(DeterminantMatches.END, state, currentPosition);
+                        next = ruleTrie.getUpperCaseWordState(state);
+                        if (next != -1 && (flags & InternedTokens.UPPER_CASE) != 0)
+                            matches.push(DeterminantMatches.VISIT, next, currentPosition + 1);
+                        next = ruleTrie.getWordState(state);
+                        if (next != -1)
+                            matches.push(DeterminantMatches.VISIT, next, currentPosition + 1);
+                    } else if (ruleTrie.hasEnd(state)) {
+                        addDeterminants(state, matches, matchBegin - offset, currentPosition - offset, to - offset);
+                    }
+                    break;
+                case DeterminantMatches.END:
+                    addDeterminants(state, matches, matchBegin - offset, currentPosition - offset, to - offset);
+                    break;
+                case DeterminantMatches.GREATER_THAN:
+                    processDigits(tokens, '>', state, currentPosition, matches);
+                    break;
+                default:
+                    processDigits(tokens, '<', state, currentPosition, matches);
+            }
+        }
+    }
+
+    /**
+     * The same as {@link #processDigits(List, char, HashMap, int, int, LinkedHashMap)}, but only visits the range of
+     * the sorted thresholds (parsed when the trie was compiled) that the number satisfies, found by binary search, and
+     * reads the number that has been parsed when the token was interned. The next steps are pushed onto the stack of the matches in reverse order (see
+     * {@link #processRules(InternedTokens, int, int, int, int, int, int, DeterminantMatches)}).
+     *
+     * @param tokens          The interned tokens
+     * @param compare         great than or less than for numeric compare
+     * @param compareState    The trie state of "\&gt;" or "\&lt;"
+     * @param currentPosition The position of the numeric token
+     * @param matches         Storing the matched context spans
+     */
+    protected void processDigits(InternedTokens tokens, char compare, int compareState, int currentPosition,
+                                 DeterminantMatches matches) {
+        DoubleArrayRuleTrie ruleTrie = matches.trie;
+        double thisDigit = tokens.getNumber(currentPosition);
+        boolean suffixed = (tokens.getFlags(currentPosition) & InternedTokens.NUMBER_SUFFIX) != 0;
+        int suffixId = tokens.getSuffixId(currentPosition);
+        int from = ruleTrie.getThresholdFrom(compareState, compare, thisDigit);
+        for (int i = ruleTrie.getThresholdTo(compareState, compare, thisDigit) - 1; i >= from; i--) {
+            int next = ruleTrie.getThresholdState(compareState, i);
+            if (!suffixed) {
+                // if this token is a number, the next comparators are matched against the same token
+                matches.push(DeterminantMatches.VISIT, next, currentPosition + 1);
+                int compareNext = ruleTrie.getLessThanState(next);
+                if (compareNext != -1)
+                    matches.push(DeterminantMatches.LESS_THAN, compareNext, currentPosition);
+                compareNext = ruleTrie.getGreaterThanState(next);
+                if (compareNext != -1)
+                    matches.push(DeterminantMatches.GREATER_THAN, compareNext, currentPosition);
+            } else {
+                // thisToken is like "30-days"
+                next = ruleTrie.getTokenState(next, suffixId);
+                if (next != -1)
+                    matches.push(DeterminantMatches.VISIT, next, currentPosition + 1);
+            }
+        }
     }
 
 
     /**
      * @param contextTokens   The context tokens in an ArrayList of String
-     * @param rule            Constructed Rules Map
+     * @param rule            Constructed Rules Map, starting from {@link #getRulesMap()}
      * @param matchBegin      Keep track of the begin position of matched span
      * @param currentPosition Keep track of the position where matching starts
      * @param matches         Storing the matched context spans
+     * @deprecated recursive walk over the nested rulesMap, replaced by
+     * {@link #processRules(InternedTokens, int, int, int, int, int, int, DeterminantMatches)}
      */
+    @Deprecated
     protected void processRules(List<Span> contextTokens, HashMap rule, int matchBegin, int currentPosition,
                                 LinkedHashMap<String, ConTextSpan> matches) {
         // when reach the end of the tunedcontext, end the iteration
@@ -257,14 +1299,15 @@ public class ContextRuleProcessor {
      * @param matchBegin      Keep track of the begin position of matched span
      * @param currentPosition Keep track of the position where matching starts
      * @param matches         Storing the matched context spans
+     * @deprecated replaced by {@link #processDigits(InternedTokens, char, int, int, DeterminantMatches)}
      */
+    @Deprecated
     protected void processDigits(List<Span> contextTokens, char compare, HashMap rule, int matchBegin, int currentPosition,
                                  LinkedHashMap<String, ConTextSpan> matches) {
-        mt = pdigit.matcher(contextTokens.get(currentPosition).text);
+        Matcher mt = pdigit.matcher(contextTokens.get(currentPosition).text);
         if (mt.find()) {
             double thisDigit;
 //			prevent length over limit
-            System.out.println(mt.group(0));
             if (mt.group(1).length() < 4) {
                 String a = mt.group(1);
                 thisDigit = Double.parseDouble(mt.group(1));
@@ -321,82 +1364,183 @@ public class ContextRuleProcessor {
                                    int matchBegin, int currentPosition,
                                    int contextTokenLength) {
         HashMap<String, ?> matchedRules = (HashMap<String, ?>) rule.get(END);
-
-//        int id = (Integer) rule.values().iterator().next();
-//        ContextRule matchedRule = rules.get(id);
-//        Span currentSpan = new Span(matchBegin, i - 1, id);
         for (String key : matchedRules.keySet()) {
-            ConTextSpan originalSpan = null;
-            int id = (Integer) matchedRules.get(key);
-
-            char matchedDirection = key.charAt(0);
-            ContextRule matchedContextRule = getContextRuleById(id);
-            ConTextSpan currentSpan = new ConTextSpan(matchBegin, currentPosition - 1, id);
-            if (matchedContextRule.triggerType == TriggerTypes.termination) {
-                currentSpan.winBegin = currentSpan.begin;
-                currentSpan.winEnd = currentSpan.end;
-            } else {
-                currentSpan.winBegin = currentSpan.begin - rules.get(id).windowSize;
-                currentSpan.winEnd = currentSpan.end + rules.get(id).windowSize;
-            }
-            currentSpan.matchedDirection = matchedDirection == 'f' ? TriggerTypes.forward : TriggerTypes.backward;
-            logger.finest("Matched rule: " + matchedContextRule + "\n\ton span: " + currentSpan);
-            if (matches.containsKey(key)) {
-                originalSpan = matches.get(key);
-                switch (matchedDirection) {
-                    case 'f':
-                        if (matchedContextRule.triggerType == TriggerTypes.trigger) {
-                            if (originalSpan.winEnd > currentSpan.winEnd ||
-                                    (originalSpan.width > currentSpan.width && originalSpan.end >= currentSpan.end) ||
-                                    (contextTokenLength - currentSpan.end > getContextRuleById(id).windowSize))
-                                continue;
-                            else if (getContextRuleById(originalSpan.ruleId).triggerType == TriggerTypes.termination &&
-                                    originalSpan.begin > currentSpan.end) {
-                                continue;
-                            }
-                        } else if ((originalSpan.begin > currentSpan.end) ||
+            addDeterminant(key, (Integer) matchedRules.get(key), matches, matchBegin, currentPosition, contextTokenLength);
+        }
+    }
+
+    /**
+     * The same as {@link #addDeterminants(HashMap, LinkedHashMap, int, int, int)}, but reads the determinants from
+     * the END of a compiled trie state.
+     *
+     * @param state              The trie state that has an END
+     * @param matches            Storing the matched context spans
+     * @param matchBegin         Keep track of the begin position of matched span
+     * @param currentPosition    Keep track of the position where matching starts
+     * @param contextTokenLength contextTokenLength
+     */
+    protected void addDeterminants(int state, DeterminantMatches matches,
+                                   int matchBegin, int currentPosition,
+                                   int contextTokenLength) {
+        if (matches.recording != null) {
+            matches.recording.record(state, matchBegin, currentPosition);
+            return;
+        }
+        DoubleArrayRuleTrie ruleTrie = matches.trie;
+        for (int i = 0; i < ruleTrie.getEndCount(state); i++) {
+            addDeterminant(ruleTrie.getEndDeterminantId(state, i), ruleTrie.getEndRuleId(state, i), matches,
+                    matchBegin, currentPosition, contextTokenLength);
+        }
+    }
+
+    /**
+     * Add one matched determinant into the results, following the priorities described in
+     * {@link #addDeterminants(HashMap, LinkedHashMap, int, int, int)}
+     *
+     * @param key                The determinant, e.g. "forward_negated"
+     * @param id                 The matched rule id
+     * @param matches            Storing the matched context spans
+     * @param matchBegin         Keep track of the begin position of matched span
+     * @param currentPosition    Keep track of the position where matching starts
+     * @param contextTokenLength contextTokenLength
+     */
+    protected void addDeterminant(String key, int id, LinkedHashMap<String, ConTextSpan> matches,
+                                  int matchBegin, int currentPosition,
+                                  int contextTokenLength) {
+        ConTextSpan currentSpan = new ConTextSpan(matchBegin, currentPosition - 1, id);
+        if (resolveDeterminant(compiledRules, key.charAt(0), id, currentSpan, matches.get(key), contextTokenLength))
+            matches.put(key, currentSpan);
+    }
+
+    /**
+     * The same as {@link #addDeterminant(String, int, LinkedHashMap, int, int, int)}, but reuses the spans of the
+     * DeterminantMatches.
+     *
+     * @param determinantId      The determinant id in the compiled rule trie
+     * @param id                 The matched rule id
+     * @param matches            Storing the matched context spans
+     * @param matchBegin         Keep track of the begin position of matched span
+     * @param currentPosition    Keep track of the position where matching starts
+     * @param contextTokenLength contextTokenLength
+     */
+    protected void addDeterminant(int determinantId, int id, DeterminantMatches matches,
+                                  int matchBegin, int currentPosition,
+                                  int contextTokenLength) {
+        char matchedDirection = matches.rules.determinantDirections[determinantId];
+        ConTextSpan originalSpan = matches.get(determinantId);
+        //  the first span of a determinant is kept even if it is out of its window, and then it rejects the later
+        //  spans that are out of their windows. If the pre-context matching skipped the beginning of the context, look
+        //  up whether the determinant has been matched there, but only in case that makes a difference.
+        if (originalSpan == null && matches.skippedEnd > 0 && matchedDirection == 'f'
+                && contextTokenLength - (currentPosition - 1) > getWindowSize(matches.rules, id)
+                && matchedInSkipped(matches, determinantId, contextTokenLength))
+            return;
+        ConTextSpan currentSpan = matches.newCandidate(matchBegin, currentPosition - 1, id);
+        if (resolveDeterminant(matches.rules, matchedDirection, id, currentSpan, originalSpan, contextTokenLength))
+            matches.acceptCandidate(determinantId);
+    }
+
+    /**
+     * Match the beginning of the pre-context that {@link #processPreContext(InternedTokens, int, DeterminantMatches)}
+     * skipped (once per context, on demand).
+     *
+     * @param matches            The matches of the pre-context
+     * @param determinantId      The determinant id in the compiled rule trie
+     * @param contextTokenLength contextTokenLength
+     * @return whether the determinant has a match that starts in the skipped tokens
+     */
+    protected boolean matchedInSkipped(DeterminantMatches matches, int determinantId, int contextTokenLength) {
+        if (!matches.skippedMatched) {
+            if (matches.skippedMatches == null)
+                matches.skippedMatches = new DeterminantMatches(matches.rules);
+            matches.skippedMatches.clear();
+            //  only the forward determinants are looked up in the skipped matches
+            matches.skippedMatches.selectTrie(CompiledContextRules.FORWARD);
+            processRules(matches.skippedTokens, 0, 0, matches.skippedEnd, contextTokenLength, contextTokenLength,
+                    matches.skippedMatches);
+            matches.skippedMatched = true;
+        }
+        return matches.skippedMatches.get(determinantId) != null;
+    }
+
+    /**
+     * Set up the context window of a newly matched span, and decide whether it should replace the span that has been
+     * matched for the same determinant, following the priorities described in
+     * {@link #addDeterminants(HashMap, LinkedHashMap, int, int, int)}
+     *
+     * @param compiled           The compiled rules that matched
+     * @param matchedDirection   'f' for forward, 'b' for backward
+     * @param id                 The matched rule id
+     * @param currentSpan        The newly matched span
+     * @param originalSpan       The span matched earlier for the same determinant, or null
+     * @param contextTokenLength contextTokenLength
+     * @return true if currentSpan should be kept
+     */
+    protected boolean resolveDeterminant(CompiledContextRules compiled, char matchedDirection, int id,
+                                         ConTextSpan currentSpan, ConTextSpan originalSpan, int contextTokenLength) {
+        int triggerType = getTriggerType(compiled, id), windowSize = getWindowSize(compiled, id);
+        if (triggerType == TERMINATION) {
+            currentSpan.winBegin = currentSpan.begin;
+            currentSpan.winEnd = currentSpan.end;
+        } else {
+            currentSpan.winBegin = currentSpan.begin - windowSize;
+            currentSpan.winEnd = currentSpan.end + windowSize;
+        }
+        currentSpan.matchedDirection = matchedDirection == 'f' ? TriggerTypes.forward : TriggerTypes.backward;
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest("Matched rule: " + getContextRuleById(compiled, id) + "\n\ton span: " + currentSpan);
+        if (originalSpan != null) {
+            switch (matchedDirection) {
+                case 'f':
+                    if (triggerType == TRIGGER) {
+                        if (originalSpan.winEnd > currentSpan.winEnd ||
                                 (originalSpan.width > currentSpan.width && originalSpan.end >= currentSpan.end) ||
-                                (contextTokenLength - currentSpan.end > getContextRuleById(id).windowSize)) {
-                            continue;
+                                (contextTokenLength - currentSpan.end > windowSize))
+                            return false;
+                        else if (getTriggerType(compiled, originalSpan.ruleId) == TERMINATION &&
+                                originalSpan.begin > currentSpan.end) {
+                            return false;
                         }
-                        break;
-                    case 'b':
-                        if (matchedContextRule.triggerType == TriggerTypes.trigger) {
-                            if (originalSpan.winBegin < currentSpan.winBegin ||
-                                    (originalSpan.width > currentSpan.width && originalSpan.begin <= currentSpan.begin) ||
-                                    (currentSpan.begin > getContextRuleById(id).windowSize))
-                                continue;
-                            else if (getContextRuleById(originalSpan.ruleId).triggerType == TriggerTypes.termination &&
-                                    originalSpan.end < currentSpan.begin) {
-                                continue;
-                            }
-                        } else if ((originalSpan.end < currentSpan.begin) ||
+                    } else if ((originalSpan.begin > currentSpan.end) ||
+                            (originalSpan.width > currentSpan.width && originalSpan.end >= currentSpan.end) ||
+                            (contextTokenLength - currentSpan.end > windowSize)) {
+                        return false;
+                    }
+                    break;
+                case 'b':
+                    if (triggerType == TRIGGER) {
+                        if (originalSpan.winBegin < currentSpan.winBegin ||
                                 (originalSpan.width > currentSpan.width && originalSpan.begin <= currentSpan.begin) ||
-                                (currentSpan.begin > getContextRuleById(id).windowSize)) {
-                            continue;
+                                (currentSpan.begin > windowSize))
+                            return false;
+                        else if (getTriggerType(compiled, originalSpan.ruleId) == TERMINATION &&
+                                originalSpan.end < currentSpan.begin) {
+                            return false;
                         }
-                        break;
-                }
-
-                ContextRule matchedRule = rules.get(id);
-                //  adjust context window, for later version that support combining modifiers with shared context window terminals
-                if (originalSpan.begin != -1 && (matchedDirection == 'f')) {
-                    if (matchedRule.triggerType == TriggerTypes.termination) {
-                        currentSpan.winBegin = originalSpan.winBegin > currentSpan.end ? originalSpan.winBegin : currentSpan.end;
-                    } else {
-                        currentSpan.winBegin = originalSpan.winBegin;
-                    }
-                } else if (originalSpan.end != -1 && (matchedDirection == 'b')) {
-                    if (matchedRule.triggerType == TriggerTypes.termination) {
-                        currentSpan.winEnd = originalSpan.winEnd < currentSpan.winEnd ? originalSpan.winEnd : currentSpan.begin;
-                    } else {
-                        currentSpan.winEnd = originalSpan.winEnd;
+                    } else if ((originalSpan.end < currentSpan.begin) ||
+                            (originalSpan.width > currentSpan.width && originalSpan.begin <= currentSpan.begin) ||
+                            (currentSpan.begin > windowSize)) {
+                        return false;
                     }
+                    break;
+            }
+
+            //  adjust context window, for later version that support combining modifiers with shared context window terminals
+            if (originalSpan.begin != -1 && (matchedDirection == 'f')) {
+                if (triggerType == TERMINATION) {
+                    currentSpan.winBegin = originalSpan.winBegin > currentSpan.end ? originalSpan.winBegin : currentSpan.end;
+                } else {
+                    currentSpan.winBegin = originalSpan.winBegin;
+                }
+            } else if (originalSpan.end != -1 && (matchedDirection == 'b')) {
+                if (triggerType == TERMINATION) {
+                    currentSpan.winEnd = originalSpan.winEnd < currentSpan.winEnd ? originalSpan.winEnd : currentSpan.begin;
+                } else {
+                    currentSpan.winEnd = originalSpan.winEnd;
                 }
             }
-            matches.put(key, currentSpan);
         }
-
+        return true;
     }
 
     protected boolean isUpperCase(String token) {
@@ -411,7 +1555,25 @@ public class ContextRuleProcessor {
     }
 
     public ContextRule getContextRuleById(int id) {
-        return rules.get(id);
+        return getContextRuleById(compiledRules, id);
+    }
+
+    protected ContextRule getContextRuleById(CompiledContextRules compiled, int id) {
+        ContextRule rule = compiled.getRule(id);
+        return rule != null ? rule : rules.get(id);
+    }
+
+    /**
+     * @return the ordinal of the trigger type of the rule, read from the table of the compiled rules
+     */
+    protected int getTriggerType(CompiledContextRules compiled, int id) {
+        int triggerType = compiled.getRuleTriggerType(id);
+        return triggerType != -1 ? triggerType : getContextRuleById(compiled, id).triggerType.ordinal();
+    }
+
+    protected int getWindowSize(CompiledContextRules compiled, int id) {
+        return compiled.getRuleTriggerType(id) != -1 ? compiled.getRuleWindowSize(id)
+                : getContextRuleById(compiled, id).windowSize;
     }
 
 }
@@ -0,0 +1,357 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.context.common.ContextRule;
+import edu.utah.bmi.nlp.context.common.ContextValueSet.TriggerTypes;
+import edu.utah.bmi.nlp.core.TypeDefinition;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A versioned binary snapshot of a ContextRuleProcessor: the parsed rules, the feature schema (conceptFeaturesMap,
+ * featureDefaultValueMap and valueFeatureNameMap) and the compiled double-array trie. Loading a snapshot maps the
+ * file and copies the arrays out in bulk, instead of parsing the rule file and compiling the trie again. The trie is
+ * written in the layout of an {@link OffHeapRuleTrie}, aligned to 8 bytes in the file, so it can also be read from
+ * the mapped file as it is: the processes that load the same snapshot that way share its pages.
+ * <p>
+ * The snapshot records the checksum of the rule file it was written from, so a snapshot of an older version of the
+ * rules is never loaded. The payload has its own checksum, and the file is replaced atomically when it is rewritten,
+ * so a worker that loads it while another one rewrites it reads either version in full. The case-sensitive and the
+ * case-insensitive rules are compiled differently, so they are kept in two snapshot files (see
+ * {@link #getSnapshotFile(String, boolean)}).
+ * <p>
+ * Only the compiled rules are restored: the nested rulesMap of the deprecated recursive matching is built from the
+ * restored rules on its first use, and the {@link TokenAutomaton} is built from the trie when it is switched on.
+ */
+public final class ContextRuleSnapshot {
+    public static final int MAGIC = 0x46435458, VERSION = 4;
+    //  magic, version, source checksum, payload length and payload checksum
+    protected static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+
+    private ContextRuleSnapshot() {
+    }
+
+    /**
+     * @param ruleFileOrString the rule file, or the rules as a string
+     * @return the checksum of the content of the rule file, or of the string if it is not a file
+     * @throws IOException if the rule file cannot be read
+     */
+    public static long checksum(String ruleFileOrString) throws IOException {
+        CRC32 crc = new CRC32();
+        File file = new File(ruleFileOrString);
+        if (file.isFile()) {
+            try (InputStream in = new CheckedInputStream(new FileInputStream(file), crc)) {
+                byte[] buffer = new byte[1 << 16];
+                while (in.read(buffer) != -1) ;
+            }
+        } else {
+            crc.update(ruleFileOrString.getBytes(StandardCharsets.UTF_8));
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @param snapshotFileName the snapshot file of the case-insensitive rules, e.g. "context.snapshot"
+     * @param caseSensitive    whether the rules are matched case sensitively
+     * @return the snapshot file itself for the case-insensitive rules, or the file with ".case-sensitive" before its
+     * extension for the case-sensitive ones (e.g. "context.case-sensitive.snapshot"), so that the processes with
+     * either case sensitivity don't keep rewriting each other's snapshot
+     */
+    public static File getSnapshotFile(String snapshotFileName, boolean caseSensitive) {
+        File file = new File(snapshotFileName);
+        if (!caseSensitive)
+            return file;
+        String name = file.getName();
+        int extension = name.lastIndexOf('.');
+        name = extension > 0 ? name.substring(0, extension) + ".case-sensitive" + name.substring(extension)
+                : name + ".case-sensitive";
+        return new File(file.getParentFile(), name);
+    }
+
+    /**
+     * Write the rules of a processor into a snapshot, replacing the snapshot file (if any) at once.
+     *
+     * @param crp            the processor
+     * @param sourceChecksum the checksum of the rule file, see {@link #checksum(String)}
+     * @param snapshotFile   the snapshot file
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static void write(ContextRuleProcessor crp, long sourceChecksum, File snapshotFile) throws IOException {
+        Path target = snapshotFile.getAbsoluteFile().toPath();
+        //  not Files.createTempFile, which is only readable by the owner
+        Path temp = target.resolveSibling(target.getFileName() + "." + System.nanoTime() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                channel.position(HEADER_SIZE);
+                CheckedOutputStream checked = new CheckedOutputStream(Channels.newOutputStream(channel), new CRC32());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+                writePayload(crp, out);
+                out.flush();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(sourceChecksum)
+                        .putLong(channel.position() - HEADER_SIZE).putLong(checked.getChecksum().getValue());
+                header.flip();
+                long position = 0;
+                while (header.hasRemaining())
+                    position += channel.write(header, position);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Load a snapshot into a processor that has no rules yet.
+     *
+     * @param snapshotFile   the snapshot file
+     * @param sourceChecksum the checksum of the rule file, see {@link #checksum(String)}
+     * @param target         the processor to fill, its case sensitivity has to be the same as the snapshot's
+     * @return false if the snapshot doesn't exist, is of another version, was written from other rules, with
+     * another case sensitivity, or is corrupted; the target is not changed then
+     * @throws IOException if the snapshot cannot be read
+     */
+    public static boolean read(File snapshotFile, long sourceChecksum, ContextRuleProcessor target) throws IOException {
+        return read(snapshotFile, sourceChecksum, target, false);
+    }
+
+    /**
+     * Load a snapshot into a processor that has no rules yet.
+     *
+     * @param snapshotFile   the snapshot file
+     * @param sourceChecksum the checksum of the rule file, see {@link #checksum(String)}
+     * @param target         the processor to fill, its case sensitivity has to be the same as the snapshot's
+     * @param offHeapTrie    true: read the trie from the mapped file, see {@link OffHeapRuleTrie}; false: copy it
+     *                       onto the heap
+     * @return false if the snapshot doesn't exist, is of another version, was written from other rules, with
+     * another case sensitivity, or is corrupted; the target is not changed then
+     * @throws IOException if the snapshot cannot be read
+     */
+    public static boolean read(File snapshotFile, long sourceChecksum, ContextRuleProcessor target,
+                               boolean offHeapTrie) throws IOException {
+        if (!snapshotFile.isFile())
+            return false;
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE)
+                return false;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != sourceChecksum)
+                return false;
+            long length = buffer.getLong();
+            long payloadChecksum = buffer.getLong();
+            if (length != size - HEADER_SIZE)
+                return false;
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if (crc.getValue() != payloadChecksum)
+                return false;
+            return readPayload(buffer, target, offHeapTrie);
+        }
+    }
+
+    private static void writePayload(ContextRuleProcessor crp, DataOutputStream out) throws IOException {
+        out.writeBoolean(crp.caseSensitive);
+        out.writeBoolean(crp.compiledRules.lowerCaseRules);
+        out.writeInt(crp.conceptFeaturesMap.size());
+        for (Map.Entry<String, TypeDefinition> entry : crp.conceptFeaturesMap.entrySet()) {
+            writeString(out, entry.getKey());
+            writeMap(out, entry.getValue().getFeatureValuePairs());
+        }
+        writeMap(out, crp.featureDefaultValueMap);
+        writeMap(out, crp.valueFeatureNameMap);
+        out.writeInt(crp.rules.size());
+        for (Map.Entry<Integer, ContextRule> entry : crp.rules.entrySet()) {
+            ContextRule rule = entry.getValue();
+            out.writeInt(entry.getKey());
+            writeString(out, rule.direction.name());
+            writeString(out, rule.triggerType.name());
+            writeString(out, rule.determinant);
+            writeString(out, rule.modifier);
+            writeString(out, rule.rule);
+            out.writeInt(rule.id);
+            out.writeInt(rule.windowSize);
+        }
+
+        //  the full rules, not the view of the requested features
+        CompiledContextRules compiled = crp.compiledRules.fullRules;
+        writeStrings(out, compiled.trie.determinants);
+        ByteBuffer layout = OffHeapRuleTrie.getLayout(compiled.trie);
+        out.writeInt(layout.remaining());
+        //  the payload starts after the header, which is 8 byte aligned
+        while ((HEADER_SIZE + out.size()) % 8 != 0)
+            out.writeByte(0);
+        byte[] chunk = new byte[Math.min(layout.remaining(), 1 << 16)];
+        while (layout.hasRemaining()) {
+            int length = Math.min(chunk.length, layout.remaining());
+            layout.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+
+        for (int direction = 0; direction < 2; direction++) {
+            writeInts(out, compiled.maxWindowSizes[direction]);
+            writeInts(out, compiled.maxRuleLengths[direction]);
+        }
+        writeBooleans(out, compiled.outwardStops);
+        writeInts(out, compiled.outwardStopCounts);
+        writeBooleans(out, compiled.outwardStoppable);
+    }
+
+    private static boolean readPayload(ByteBuffer in, ContextRuleProcessor target, boolean offHeapTrie) {
+        if ((in.get() != 0) != target.caseSensitive)
+            return false;
+        boolean lowerCaseRules = in.get() != 0;
+        LinkedHashMap<String, TypeDefinition> conceptFeaturesMap = new LinkedHashMap<>();
+        int conceptCount = in.getInt();
+        for (int i = 0; i < conceptCount; i++) {
+            String conceptName = readString(in);
+            TypeDefinition typeDefinition = new TypeDefinition(conceptName, "", new ArrayList<>());
+            readMap(in, typeDefinition.getFeatureValuePairs());
+            conceptFeaturesMap.put(conceptName, typeDefinition);
+        }
+        LinkedHashMap<String, String> featureDefaultValueMap = new LinkedHashMap<>(), valueFeatureNameMap = new LinkedHashMap<>();
+        readMap(in, featureDefaultValueMap);
+        readMap(in, valueFeatureNameMap);
+        LinkedHashMap<Integer, ContextRule> rules = new LinkedHashMap<>();
+        int ruleCount = in.getInt();
+        int maxId = -1;
+        for (int i = 0; i < ruleCount; i++) {
+            int key = in.getInt();
+            TriggerTypes direction = TriggerTypes.valueOf(readString(in));
+            TriggerTypes triggerType = TriggerTypes.valueOf(readString(in));
+            String determinant = readString(in);
+            String modifier = readString(in);
+            String rule = readString(in);
+            int id = in.getInt();
+            rules.put(key, new ContextRule(direction, triggerType, determinant, modifier, rule, id, in.getInt()));
+            maxId = Math.max(maxId, id);
+        }
+        ContextRule[] rulesById = new ContextRule[maxId + 1];
+        for (ContextRule rule : rules.values())
+            if (rule.id >= 0)
+                rulesById[rule.id] = rule.clone();
+
+        String[] determinants = readStrings(in);
+        int layoutSize = in.getInt();
+        in.position((in.position() + 7) & ~7);
+        ByteBuffer layout = in.slice();
+        layout.limit(layoutSize);
+        in.position(in.position() + layoutSize);
+        OffHeapRuleTrie mapped = new OffHeapRuleTrie(layout, determinants);
+        DoubleArrayRuleTrie trie = offHeapTrie ? mapped : mapped.toHeap();
+        int[][] maxWindowSizes = new int[2][], maxRuleLengths = new int[2][];
+        for (int direction = 0; direction < 2; direction++) {
+            maxWindowSizes[direction] = readInts(in);
+            maxRuleLengths[direction] = readInts(in);
+        }
+        boolean[] outwardStops = readBooleans(in);
+        int[] outwardStopCounts = readInts(in);
+        boolean[] outwardStoppable = readBooleans(in);
+
+        target.conceptFeaturesMap.putAll(conceptFeaturesMap);
+        target.featureDefaultValueMap.putAll(featureDefaultValueMap);
+        target.valueFeatureNameMap.putAll(valueFeatureNameMap);
+        target.rules = rules;
+        target.updateValueWeights();
+        target.compiledRules = new CompiledContextRules(trie, rulesById, lowerCaseRules, target.caseSensitive,
+                false, false, false, maxWindowSizes, maxRuleLengths, outwardStops, outwardStopCounts, outwardStoppable);
+        return true;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values)
+            writeString(out, value);
+    }
+
+    private static String[] readStrings(ByteBuffer in) {
+        String[] values = new String[in.getInt()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = readString(in);
+        return values;
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static void readMap(ByteBuffer in, Map<String, String> map) {
+        int size = in.getInt();
+        for (int i = 0; i < size; i++)
+            map.put(readString(in), readString(in));
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values)
+            out.writeInt(value);
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        int[] values = new int[in.getInt()];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * 4);
+        return values;
+    }
+
+    private static void writeBooleans(DataOutputStream out, boolean[] values) throws IOException {
+        out.writeInt(values.length);
+        for (boolean value : values)
+            out.writeBoolean(value);
+    }
+
+    private static boolean[] readBooleans(ByteBuffer in) {
+        boolean[] values = new boolean[in.getInt()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = in.get() != 0;
+        return values;
+    }
+}
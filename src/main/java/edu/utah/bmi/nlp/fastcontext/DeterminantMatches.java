@@ -0,0 +1,218 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.context.common.ConTextSpan;
+
+import java.util.Arrays;
+
+/**
+ * The matched span of each determinant (e.g. "forward_negated") within one context, indexed by the determinant ids of
+ * the compiled rules. It plays the role of the LinkedHashMap matches in ContextRuleProcessor, but the ConTextSpans
+ * are allocated once and reused after {@link #clear()}.
+ * <p>
+ * Determinants are iterated in the order they were first matched, the same as the keys of the LinkedHashMap.
+ */
+public class DeterminantMatches {
+    //  the compiled rules that the determinant ids belong to
+    protected final CompiledContextRules rules;
+    //  the trie (and its automaton, if the rules have one) that the current context is matched with: the full trie, or
+    //  the trie of the pre- or the post-context if the rules are split by direction (see ContextRuleProcessor)
+    protected DoubleArrayRuleTrie trie;
+    protected TokenAutomaton tokenAutomaton;
+    protected final ConTextSpan[] spans;
+    protected final boolean[] matched;
+    protected final int[] order;
+    protected int size = 0;
+    //  the span being evaluated by ContextRuleProcessor, swapped into spans once accepted
+    protected ConTextSpan candidate = new ConTextSpan(-1, -1, -1);
+    //  the pending steps of the depth first trie walk in ContextRuleProcessor, three ints (step, state, position) each
+    protected static final int VISIT = 0, END = 1, GREATER_THAN = 2, LESS_THAN = 3;
+    protected int[] stack = new int[3 * 16];
+    protected int stackSize = 0;
+    //  reusable arrays of the TokenAutomaton, created on first use
+    protected TokenAutomaton.Scratch automatonScratch;
+    //  the pre-context matching skipped the matches that start before skippedEnd, they are matched into
+    //  skippedMatches only if the conflict resolution needs them (see ContextRuleProcessor#processPreContext)
+    protected InternedTokens skippedTokens;
+    protected int skippedEnd = 0;
+    protected boolean skippedMatched = false;
+    protected DeterminantMatches skippedMatches;
+    //  reusable arrays of the outward matching of the pre-context, created on first use
+    protected OutwardScan outwardScan;
+    //  if not null, the matches are recorded into it by ContextRuleProcessor instead of being resolved
+    protected MatchRecords recording;
+
+    public DeterminantMatches(CompiledContextRules rules) {
+        this.rules = rules;
+        this.trie = rules.trie;
+        this.tokenAutomaton = rules.tokenAutomaton;
+        int determinantCount = rules.getDeterminantCount();
+        spans = new ConTextSpan[determinantCount];
+        matched = new boolean[determinantCount];
+        order = new int[determinantCount];
+        for (int i = 0; i < determinantCount; i++)
+            spans[i] = new ConTextSpan(-1, -1, -1);
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++)
+            matched[order[i]] = false;
+        size = 0;
+        setSkipped(null, 0);
+    }
+
+    /**
+     * @param determinantId determinant id
+     * @return the matched span of the determinant, or null if it hasn't been matched
+     */
+    public ConTextSpan get(int determinantId) {
+        return matched[determinantId] ? spans[determinantId] : null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i the i-th matched determinant, in the order of first match
+     * @return determinant id
+     */
+    public int getDeterminantId(int i) {
+        return order[i];
+    }
+
+    public ConTextSpan getSpan(int i) {
+        return spans[order[i]];
+    }
+
+    /**
+     * @param direction CompiledContextRules.FORWARD for the pre-context, BACKWARD for the post-context, BOTH for the
+     *                  full trie
+     */
+    protected void selectTrie(int direction) {
+        if (rules.directionTries == null || direction == CompiledContextRules.BOTH) {
+            trie = rules.trie;
+            tokenAutomaton = rules.tokenAutomaton;
+        } else {
+            trie = rules.directionTries[direction];
+            tokenAutomaton = rules.directionAutomata == null ? null : rules.directionAutomata[direction];
+        }
+    }
+
+    protected void push(int step, int state, int position) {
+        int top = stackSize * 3;
+        if (top == stack.length)
+            stack = Arrays.copyOf(stack, top * 2);
+        stack[top] = step;
+        stack[top + 1] = state;
+        stack[top + 2] = position;
+        stackSize++;
+    }
+
+    protected void setSkipped(InternedTokens tokens, int skippedEnd) {
+        this.skippedTokens = tokens;
+        this.skippedEnd = skippedEnd;
+        this.skippedMatched = false;
+    }
+
+    protected ConTextSpan newCandidate(int begin, int end, int ruleId) {
+        return candidate.reset(begin, end, ruleId);
+    }
+
+    /**
+     * Keep the current candidate as the matched span of the determinant.
+     *
+     * @param determinantId determinant id
+     */
+    protected void acceptCandidate(int determinantId) {
+        ConTextSpan previous = spans[determinantId];
+        spans[determinantId] = candidate;
+        candidate = previous;
+        if (!matched[determinantId]) {
+            matched[determinantId] = true;
+            order[size++] = determinantId;
+        }
+    }
+
+    /**
+     * Matches recorded as (trie state, begin, end) triples in the order they are found, to be resolved later.
+     */
+    protected static class MatchRecords {
+        protected int[] triples = new int[3 * 16];
+        protected int count = 0;
+
+        protected void clear() {
+            count = 0;
+        }
+
+        protected void record(int state, int begin, int end) {
+            if (count * 3 == triples.length)
+                triples = Arrays.copyOf(triples, triples.length * 2);
+            triples[count * 3] = state;
+            triples[count * 3 + 1] = begin;
+            triples[count * 3 + 2] = end;
+            count++;
+        }
+
+        protected int getState(int record) {
+            return triples[record * 3];
+        }
+
+        protected int getBegin(int record) {
+            return triples[record * 3 + 1];
+        }
+
+        protected int getEnd(int record) {
+            return triples[record * 3 + 2];
+        }
+    }
+
+    /**
+     * The matches of the pre-context are found from the concept outward (the last start position first), but the
+     * conflict resolution has to see them in the order of their start positions. So they are recorded per start
+     * position, and resolved after the outward matching stops.
+     */
+    protected static class OutwardScan {
+        protected final MatchRecords records = new MatchRecords();
+        //  start position - the first start position -> the range of its records
+        protected int[] recordBegin = new int[16], recordEnd = new int[16];
+        //  determinant id -> NONE, PENDING or BLOCKED, and the termination that blocks (or may block) the determinant
+        protected static final byte NONE = 0, PENDING = 1, BLOCKED = 2;
+        protected final byte[] status;
+        protected final int[] blockBegin, blockEnd, confirmPosition;
+        protected int blockedCount = 0;
+
+        protected OutwardScan(int determinantCount) {
+            status = new byte[determinantCount];
+            blockBegin = new int[determinantCount];
+            blockEnd = new int[determinantCount];
+            confirmPosition = new int[determinantCount];
+        }
+
+        protected void clear(int positions) {
+            records.clear();
+            if (recordBegin.length < positions) {
+                recordBegin = new int[positions];
+                recordEnd = new int[positions];
+            }
+            Arrays.fill(status, NONE);
+            blockedCount = 0;
+        }
+    }
+}
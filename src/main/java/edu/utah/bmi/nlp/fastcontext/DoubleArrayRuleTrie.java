@@ -0,0 +1,1453 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.context.common.ContextRule;
+import edu.utah.bmi.nlp.context.common.ContextValueSet.TriggerTypes;
+
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable double-array (base/check) trie compiled from a set of ContextRules. It holds the same chains as the
+ * nested rulesMap in ContextRuleProcessor, but every rule token is replaced by an integer id, so that a trie step is
+ * an array lookup: state t is a child of state s through label c if and only if t == base[s] + c and check[t] == s.
+ * <p>
+ * The special rule elements "\w+", "\W+", "\&gt;" and "\&lt;" are compiled into reserved labels, and the states that
+ * own them (or own an "&lt;END&gt;") are flagged, so that the matcher only probes the slots that exist. The numeric
+ * thresholds following "\&gt;"/"\&lt;" are parsed into doubles at compile time.
+ * <p>
+ * Many rules end in a chain of literal tokens that no other rule shares (e.g. "... rule him out"). Such a chain of
+ * single children down to a leaf is path-compressed: it takes no slots of the double array, its token ids are stored
+ * in the tails array instead, and its states are "tail states" numbered after the slots (state = slot count + index
+ * of the next token in the tails). The state above the chain is flagged HAS_TAIL, and its base is the offset of the
+ * chain in the tails. A tail is the token ids of the chain followed by -(offset of the END of its leaf in ends + 1).
+ * The tail states are reached through {@link #getTokenState(int, int)} like any other state.
+ *
+ * @see ContextRuleProcessor#processRules(List, int, LinkedHashMap)
+ */
+public class DoubleArrayRuleTrie {
+    public static Logger logger = edu.utah.bmi.nlp.core.IOUtil.getLogger(DoubleArrayRuleTrie.class);
+
+    public static final String WORD = "\\w+", UPPER_CASE_WORD = "\\W+", GREATER_THAN = "\\>", LESS_THAN = "\\<";
+    //  token id of the tokens that do not show up in any rule
+    public static final int UNKNOWN_TOKEN = -1;
+    //  token id of the blank tokens, which are skipped over (only assigned by the UIMA processor)
+    public static final int BLANK_TOKEN = -2;
+    public static final byte HAS_WORD = 1, HAS_UPPER_CASE_WORD = 2, HAS_END = 4, HAS_GREATER_THAN = 8, HAS_LESS_THAN = 16,
+            HAS_TAIL = 32;
+
+    protected static final int WORD_LABEL = 1, UPPER_CASE_WORD_LABEL = 2, GREATER_THAN_LABEL = 3, LESS_THAN_LABEL = 4,
+            FIRST_TOKEN_LABEL = 5;
+    protected static final int ROOT = 0;
+    protected static final Pattern TOKEN_SEPARATOR = Pattern.compile("[\\s　]+");
+    //  by default, the rule sets of at least this many rules are split and built in parallel (on the common fork-join
+    //  pool), the trie is the same as a sequential build
+    public static final int PARALLEL_BUILD_THRESHOLD = 10000;
+    //  check value of the slots that are used but not addressed through a label (the root and the threshold states)
+    protected static final int NO_PARENT = -2;
+
+    //  rule token string -> token id (only used while compiling)
+    protected final HashMap<String, Integer> tokenIds = new HashMap<>();
+    //  token id -> rule token string, and an open addressing table of the token ids hashed by their case-folded
+    //  characters, so that a token can be looked up in a range of any CharSequence, with or without case folding
+    protected final String[] vocabulary;
+    protected final int[] tokenTable;
+    //  determinant id -> determinant string, e.g. "forward_negated"
+    protected final String[] determinants;
+
+    protected final int[] base, check;
+    protected final byte[] flags;
+    //  state -> offset in ends, where ends[offset] is the number of determinants, followed by (determinant id, rule id) pairs
+    protected final int[] endIndex;
+    protected final int[] ends;
+    //  comparator state ("\>" or "\<") -> offset and count of its thresholds, sorted ascending
+    protected final int[] compareIndex, compareCount;
+    protected final double[] thresholds;
+    protected final int[] thresholdStates;
+    //  the path-compressed chains, see the class comment
+    protected final int[] tails;
+
+
+    public DoubleArrayRuleTrie(Collection<ContextRule> rules) {
+        this(rules, false);
+    }
+
+    /**
+     * @param rules          the rules to compile, they are not changed
+     * @param lowerCaseRules whether to lower case the rule tokens (for case-insensitive matching)
+     */
+    public DoubleArrayRuleTrie(Collection<ContextRule> rules, boolean lowerCaseRules) {
+        this(rules, lowerCaseRules, PARALLEL_BUILD_THRESHOLD);
+    }
+
+    /**
+     * @param rules                  the rules to compile, they are not changed
+     * @param lowerCaseRules         whether to lower case the rule tokens (for case-insensitive matching)
+     * @param parallelBuildThreshold build in parallel if there are at least this many rules: 0 to always build in
+     *                               parallel, Integer.MAX_VALUE to always build sequentially
+     */
+    public DoubleArrayRuleTrie(Collection<ContextRule> rules, boolean lowerCaseRules, int parallelBuildThreshold) {
+        LinkedHashMap<String, Integer> determinantIds = new LinkedHashMap<>();
+        BuildNode root;
+        if (rules.size() < parallelBuildThreshold) {
+            root = new BuildNode();
+            for (ContextRule rule : rules)
+                addRule(root, rule, split(rule, lowerCaseRules), determinantIds);
+        } else {
+            root = addRulesInParallel(rules, lowerCaseRules, determinantIds);
+        }
+        int pruned = prune(root);
+        if (pruned > 0)
+            logger.fine("Pruned " + pruned + " states that the skipped rules have left without any rule ending under them.");
+        determinants = determinantIds.keySet().toArray(new String[0]);
+        vocabulary = new String[tokenIds.size()];
+        for (Map.Entry<String, Integer> entry : tokenIds.entrySet())
+            vocabulary[entry.getValue()] = entry.getKey();
+        tokenTable = new int[Integer.highestOneBit(Math.max(vocabulary.length, 1) * 2) * 2];
+        Arrays.fill(tokenTable, UNKNOWN_TOKEN);
+        for (int id = 0; id < vocabulary.length; id++) {
+            int slot = foldedHash(vocabulary[id], 0, vocabulary[id].length()) & (tokenTable.length - 1);
+            while (tokenTable[slot] != UNKNOWN_TOKEN)
+                slot = (slot + 1) & (tokenTable.length - 1);
+            tokenTable[slot] = id;
+        }
+
+        Builder builder = new Builder();
+        builder.place(root);
+        builder.layout();
+        base = builder.base;
+        check = builder.check;
+        flags = builder.flags;
+        endIndex = builder.endIndex;
+        ends = builder.ends;
+        compareIndex = builder.compareIndex;
+        compareCount = builder.compareCount;
+        thresholds = builder.thresholds;
+        thresholdStates = builder.thresholdStates;
+        tails = builder.tails;
+    }
+
+    /**
+     * Restore a compiled trie from its arrays, e.g. read from a {@link ContextRuleSnapshot}. The arrays are used as
+     * they are, not copied.
+     */
+    protected DoubleArrayRuleTrie(String[] vocabulary, int[] tokenTable, String[] determinants, int[] base, int[] check,
+                                  byte[] flags, int[] endIndex, int[] ends, int[] compareIndex, int[] compareCount,
+                                  double[] thresholds, int[] thresholdStates, int[] tails) {
+        this.vocabulary = vocabulary;
+        this.tokenTable = tokenTable;
+        this.determinants = determinants;
+        this.base = base;
+        this.check = check;
+        this.flags = flags;
+        this.endIndex = endIndex;
+        this.ends = ends;
+        this.compareIndex = compareIndex;
+        this.compareCount = compareCount;
+        this.thresholds = thresholds;
+        this.thresholdStates = thresholdStates;
+        this.tails = tails;
+    }
+
+    /**
+     * Share the arrays of a compiled trie, e.g. for a {@link GeneratedRuleTrie} that specializes its readers.
+     *
+     * @param trie a trie with heap arrays (not an {@link OffHeapRuleTrie})
+     */
+    protected DoubleArrayRuleTrie(DoubleArrayRuleTrie trie) {
+        this(trie.vocabulary, trie.tokenTable, trie.determinants, trie.base, trie.check, trie.flags, trie.endIndex,
+                trie.ends, trie.compareIndex, trie.compareCount, trie.thresholds, trie.thresholdStates, trie.tails);
+    }
+
+    private DoubleArrayRuleTrie(DoubleArrayRuleTrie trie, Builder builder) {
+        this(trie.vocabulary, trie.tokenTable, trie.determinants, builder.base, builder.check, builder.flags,
+                builder.endIndex, builder.ends, builder.compareIndex, builder.compareCount, builder.thresholds,
+                builder.thresholdStates, builder.tails);
+    }
+
+    /**
+     * Compile a trie of the same rules, but only with the ENDs of some of the determinants, e.g. the ones that a
+     * pre-context can resolve. The paths that no kept END is under are pruned, and the rest is placed (and
+     * path-compressed) again, so the trie is smaller than this one. The token ids, the determinant ids and the rule
+     * ids are the same as this trie's, and so are the vocabulary and the determinant arrays, which are shared.
+     *
+     * @param keptDeterminants determinant id -&gt; whether the ENDs of the determinant are kept
+     * @return a new trie on the heap (this one can be an {@link OffHeapRuleTrie})
+     */
+    public DoubleArrayRuleTrie filterDeterminants(boolean[] keptDeterminants) {
+        DoubleArrayRuleTrie trie = this instanceof OffHeapRuleTrie ? ((OffHeapRuleTrie) this).toHeap() : this;
+        BuildNode root = trie.toBuildNodes(keptDeterminants);
+        prune(root);
+        Builder builder = new Builder();
+        builder.place(root);
+        builder.layout();
+        return new DoubleArrayRuleTrie(trie, builder);
+    }
+
+    /**
+     * @return the BuildNodes of the reachable states of the trie (an edited trie included), with only the ENDs of the
+     * kept determinants
+     */
+    private BuildNode toBuildNodes(boolean[] keptDeterminants) {
+        int size = size(), slots = getSlotCount();
+        BuildNode[] nodes = new BuildNode[size];
+        for (int state = 0; state < size; state++)
+            nodes[state] = new BuildNode();
+        for (int state = 0; state < size; state++) {
+            BuildNode node = nodes[state];
+            int parent = state < slots ? check[state] : -1;
+            if (parent >= 0)
+                nodes[parent].children.put(state - base[parent], node);
+            int tailToken = getTailToken(state);
+            if (tailToken != -1)
+                node.children.put(tailToken + FIRST_TOKEN_LABEL, nodes[getTokenState(state, tailToken)]);
+            if (getThresholdCount(state) > 0) {
+                node.comparator = true;
+                node.thresholds = new ArrayList<>();
+                for (int i = 0; i < getThresholdCount(state); i++) {
+                    BuildNode child = nodes[getThresholdState(state, i)];
+                    child.threshold = getThreshold(state, i);
+                    node.thresholds.add(child);
+                }
+            }
+            if (!hasEnd(state))
+                continue;
+            for (int i = 0; i < getEndCount(state); i++) {
+                int determinantId = getEndDeterminantId(state, i);
+                if (!keptDeterminants[determinantId])
+                    continue;
+                if (node.ends == null)
+                    node.ends = new LinkedHashMap<>();
+                node.ends.put(determinantId, getEndRuleId(state, i));
+            }
+        }
+        return nodes[ROOT];
+    }
+
+    /**
+     * Build the same BuildNodes as adding the rules one by one: the rules are split in parallel, the token and
+     * determinant ids are given in the rule order, then the subtrees of the first rule tokens are built concurrently,
+     * each one from its own rules in the rule order, and put under the root. Only the double-array placement, which
+     * depends on the order of all the states, is left sequential.
+     */
+    private BuildNode addRulesInParallel(Collection<ContextRule> rules, boolean lowerCaseRules,
+                                         HashMap<String, Integer> determinantIds) {
+        ContextRule[] ruleArray = rules.toArray(new ContextRule[0]);
+        String[][] ruleContents = Arrays.stream(ruleArray).parallel()
+                .map(rule -> split(rule, lowerCaseRules))
+                .toArray(String[][]::new);
+        //  first label -> the indices of its rules, in the rule order
+        LinkedHashMap<Integer, ArrayList<Integer>> partitions = new LinkedHashMap<>();
+        for (int i = 0; i < ruleArray.length; i++) {
+            if (addIds(ruleContents[i])) {
+                for (String determinant : getDeterminants(ruleArray[i]))
+                    determinantIds.putIfAbsent(determinant, determinantIds.size());
+            }
+            //  the rules that are skipped still leave the path up to the error, the same as addRule
+            partitions.computeIfAbsent(getLabel(ruleContents[i][0]), label -> new ArrayList<>()).add(i);
+        }
+        ArrayList<Map.Entry<Integer, ArrayList<Integer>>> partitionList = new ArrayList<>(partitions.entrySet());
+        BuildNode[] subtries = partitionList.parallelStream().map(partition -> {
+            BuildNode partitionRoot = new BuildNode();
+            for (int i : partition.getValue())
+                addRule(partitionRoot, ruleArray[i], ruleContents[i], determinantIds);
+            return partitionRoot.children.get(partition.getKey());
+        }).toArray(BuildNode[]::new);
+        BuildNode root = new BuildNode();
+        for (int i = 0; i < subtries.length; i++)
+            root.children.put(partitionList.get(i).getKey(), subtries[i]);
+        return root;
+    }
+
+    /**
+     * Remove the nodes that no rule ends under (the paths that the skipped rules leave up to their errors), so that
+     * they take no slots and no special edges in the trie. The tokens keep their ids.
+     *
+     * @return the number of nodes removed
+     */
+    private static int prune(BuildNode node) {
+        int pruned = 0;
+        Iterator<BuildNode> children = node.children.values().iterator();
+        while (children.hasNext()) {
+            BuildNode child = children.next();
+            pruned += prune(child);
+            if (child.isDead()) {
+                children.remove();
+                pruned++;
+            }
+        }
+        if (node.thresholds != null) {
+            Iterator<BuildNode> thresholds = node.thresholds.iterator();
+            while (thresholds.hasNext()) {
+                BuildNode child = thresholds.next();
+                pruned += prune(child);
+                if (child.isDead()) {
+                    thresholds.remove();
+                    pruned++;
+                }
+            }
+            if (node.thresholds.isEmpty())
+                node.thresholds = null;
+            node.thresholdNames = null;
+        }
+        return pruned;
+    }
+
+    /**
+     * Give the ids to the tokens of a rule in the same order as addRule does, up to where addRule would skip the rule.
+     *
+     * @return false if addRule skips the rule
+     */
+    private boolean addIds(String[] ruleContent) {
+        boolean comparator = false;
+        for (String token : ruleContent) {
+            if (comparator) {
+                try {
+                    Double.parseDouble(token);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                comparator = false;
+                continue;
+            }
+            switch (token) {
+                case WORD:
+                case UPPER_CASE_WORD:
+                    break;
+                case GREATER_THAN:
+                case LESS_THAN:
+                    comparator = true;
+                    break;
+                default:
+                    tokenIds.putIfAbsent(token, tokenIds.size());
+                    break;
+            }
+        }
+        return !comparator;
+    }
+
+    /**
+     * @return the label of a rule token that is not a threshold, the token needs to have an id
+     */
+    private int getLabel(String token) {
+        switch (token) {
+            case WORD:
+                return WORD_LABEL;
+            case UPPER_CASE_WORD:
+                return UPPER_CASE_WORD_LABEL;
+            case GREATER_THAN:
+                return GREATER_THAN_LABEL;
+            case LESS_THAN:
+                return LESS_THAN_LABEL;
+            default:
+                return tokenIds.get(token) + FIRST_TOKEN_LABEL;
+        }
+    }
+
+    private static String[] split(ContextRule rule, boolean lowerCaseRules) {
+        return TOKEN_SEPARATOR.split(lowerCaseRules ? foldCase(rule.rule) : rule.rule);
+    }
+
+    /**
+     * Lower case a rule the same way as the token lookup with ignoreCase folds the tokens: char by char with
+     * {@link Character#toLowerCase(char)}, so that the result doesn't depend on the default locale (unlike
+     * {@link String#toLowerCase()}, which turns "I" into a dotless i under a Turkish locale) and keeps the length.
+     *
+     * @param text the rule text
+     * @return the lower cased text, the same string if nothing changes
+     */
+    public static String foldCase(String text) {
+        char[] chars = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i), folded = Character.toLowerCase(c);
+            if (c == folded)
+                continue;
+            if (chars == null)
+                chars = text.toCharArray();
+            chars[i] = folded;
+        }
+        return chars == null ? text : new String(chars);
+    }
+
+    /**
+     * @return the determinants that a rule is compiled under: forward_ and backward_ for a "both" rule
+     */
+    private static String[] getDeterminants(ContextRule rule) {
+        if (rule.getDirection() == TriggerTypes.both)
+            return new String[]{TriggerTypes.forward + "_" + rule.modifier, TriggerTypes.backward + "_" + rule.modifier};
+        return new String[]{rule.determinant};
+    }
+
+    private void addRule(BuildNode root, ContextRule rule, String[] ruleContent, HashMap<String, Integer> determinantIds) {
+        for (String determinant : getDeterminants(rule))
+            addRule(root, rule, ruleContent, determinant, determinantIds);
+    }
+
+    /**
+     * In a parallel build, addIds has given all the ids beforehand, so that the id maps are only read here.
+     */
+    private void addRule(BuildNode root, ContextRule rule, String[] ruleContent, String determinant,
+                         HashMap<String, Integer> determinantIds) {
+        BuildNode node = root;
+        for (String token : ruleContent) {
+            if (node.comparator) {
+                node = node.getThreshold(token);
+                if (node == null) {
+                    logger.warning("The token after a numeric comparator is not a number, skip the rule: " + rule);
+                    return;
+                }
+                continue;
+            }
+            switch (token) {
+                case WORD:
+                    node = node.getChild(WORD_LABEL);
+                    break;
+                case UPPER_CASE_WORD:
+                    node = node.getChild(UPPER_CASE_WORD_LABEL);
+                    break;
+                case GREATER_THAN:
+                    node = node.getChild(GREATER_THAN_LABEL);
+                    node.comparator = true;
+                    break;
+                case LESS_THAN:
+                    node = node.getChild(LESS_THAN_LABEL);
+                    node.comparator = true;
+                    break;
+                default:
+                    Integer id = tokenIds.get(token);
+                    if (id == null) {
+                        id = tokenIds.size();
+                        tokenIds.put(token, id);
+                    }
+                    node = node.getChild(id + FIRST_TOKEN_LABEL);
+                    break;
+            }
+        }
+        if (node.comparator) {
+            logger.warning("A rule cannot end with a numeric comparator, skip the rule: " + rule);
+            return;
+        }
+        Integer determinantId = determinantIds.get(determinant);
+        if (determinantId == null) {
+            determinantId = determinantIds.size();
+            determinantIds.put(determinant, determinantId);
+        }
+        if (node.ends == null)
+            node.ends = new LinkedHashMap<>();
+        //  same as the rulesMap, a later rule with the same determinant overwrites the earlier one
+        node.ends.put(determinantId, rule.id);
+    }
+
+    public int getRoot() {
+        return ROOT;
+    }
+
+    /**
+     * @param token token string (expected to be lower cased already if the rules are case-insensitive)
+     * @return the token id, or UNKNOWN_TOKEN if the token doesn't show up in any rule
+     */
+    public int getTokenId(String token) {
+        return getTokenId(token, 0, token.length(), false);
+    }
+
+    /**
+     * Look up a token without copying it out of its text. With ignoreCase, each character is lower cased before it
+     * is compared, which gives the same id as looking up {@link #foldCase(String)} of the token (the rules of a
+     * case-insensitive processor are folded the same way when they are loaded), but neither allocates nor changes the
+     * text.
+     *
+     * @param text       the text that contains the token
+     * @param begin      begin offset of the token in text
+     * @param end        end offset of the token in text
+     * @param ignoreCase true: compare the lower cased characters of the token
+     * @return the token id, or UNKNOWN_TOKEN if the token doesn't show up in any rule
+     */
+    public int getTokenId(CharSequence text, int begin, int end, boolean ignoreCase) {
+        int mask = tokenTable.length - 1;
+        int slot = foldedHash(text, begin, end) & mask;
+        int id;
+        while ((id = tokenTable[slot]) != UNKNOWN_TOKEN) {
+            if (sameToken(vocabulary[id], text, begin, end, ignoreCase))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+        return UNKNOWN_TOKEN;
+    }
+
+    protected static int foldedHash(CharSequence text, int begin, int end) {
+        int hash = 0;
+        for (int i = begin; i < end; i++)
+            hash = 31 * hash + Character.toLowerCase(text.charAt(i));
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean sameToken(String token, CharSequence text, int begin, int end, boolean ignoreCase) {
+        if (token.length() != end - begin)
+            return false;
+        for (int i = 0; i < token.length(); i++) {
+            char c = text.charAt(begin + i);
+            if (ignoreCase)
+                c = Character.toLowerCase(c);
+            if (c != token.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    public int getTokenState(int state, int tokenId) {
+        if (tokenId < 0)
+            return -1;
+        if (state >= base.length)
+            return tails[state - base.length] == tokenId ? state + 1 : -1;
+        int next = getChild(state, tokenId + FIRST_TOKEN_LABEL);
+        if (next == -1 && (flags[state] & HAS_TAIL) != 0 && tails[base[state]] == tokenId)
+            return base.length + base[state] + 1;
+        return next;
+    }
+
+    /**
+     * @param state trie state
+     * @return the token id of the path-compressed edge from the state (the state is on a tail, or above one), -1 if
+     * there is none; the state that it leads to is {@link #getTokenState(int, int)}
+     */
+    public int getTailToken(int state) {
+        if (state >= base.length)
+            return Math.max(tails[state - base.length], -1);
+        return (flags[state] & HAS_TAIL) == 0 ? -1 : tails[base[state]];
+    }
+
+    public int getWordState(int state) {
+        return (getFlags(state) & HAS_WORD) == 0 ? -1 : getChild(state, WORD_LABEL);
+    }
+
+    public int getUpperCaseWordState(int state) {
+        return (getFlags(state) & HAS_UPPER_CASE_WORD) == 0 ? -1 : getChild(state, UPPER_CASE_WORD_LABEL);
+    }
+
+    public int getGreaterThanState(int state) {
+        return (getFlags(state) & HAS_GREATER_THAN) == 0 ? -1 : getChild(state, GREATER_THAN_LABEL);
+    }
+
+    public int getLessThanState(int state) {
+        return (getFlags(state) & HAS_LESS_THAN) == 0 ? -1 : getChild(state, LESS_THAN_LABEL);
+    }
+
+    /**
+     * @return the flags of a state, a tail state has only an END (if it is the last one)
+     */
+    private int getFlags(int state) {
+        if (state < flags.length)
+            return flags[state];
+        return tails[state - flags.length] < 0 ? HAS_END : 0;
+    }
+
+    protected int getChild(int state, int label) {
+        int next = base[state] + label;
+        return next < check.length && check[next] == state ? next : -1;
+    }
+
+    /**
+     * @param state trie state that has a slot (below {@link #getSlotCount()})
+     * @return the base of the state, its children are at base + label; the offset of the tail if it has one
+     */
+    public int getBase(int state) {
+        return base[state];
+    }
+
+    /**
+     * @param state trie state that has a slot (below {@link #getSlotCount()})
+     * @return the parent of the state, NO_PARENT for the root and the threshold states, -1 for a free slot
+     */
+    public int getCheck(int state) {
+        return check[state];
+    }
+
+    /**
+     * @param state trie state
+     * @return whether a token that doesn't show up in any rule can still do anything at this state, i.e. the state
+     * has a wildcard, a numeric comparator or an END
+     */
+    public boolean acceptsUnknownToken(int state) {
+        return (getFlags(state) & ~HAS_TAIL) != 0;
+    }
+
+    /**
+     * @param state trie state
+     * @return whether the state has a wildcard or a numeric comparator child
+     */
+    public boolean hasSpecialEdge(int state) {
+        return (getFlags(state) & (HAS_WORD | HAS_UPPER_CASE_WORD | HAS_GREATER_THAN | HAS_LESS_THAN)) != 0;
+    }
+
+    public boolean hasEnd(int state) {
+        return (getFlags(state) & HAS_END) != 0;
+    }
+
+    public int getEndCount(int state) {
+        return ends[getEndIndex(state)];
+    }
+
+    private int getEndIndex(int state) {
+        return state < endIndex.length ? endIndex[state] : -tails[state - endIndex.length] - 1;
+    }
+
+    public String getEndDeterminant(int state, int i) {
+        return determinants[getEndDeterminantId(state, i)];
+    }
+
+    public int getEndDeterminantId(int state, int i) {
+        return ends[getEndIndex(state) + 1 + i * 2];
+    }
+
+    public int getDeterminantCount() {
+        return determinants.length;
+    }
+
+    public String getDeterminant(int determinantId) {
+        return determinants[determinantId];
+    }
+
+    public int getEndRuleId(int state, int i) {
+        return ends[getEndIndex(state) + 2 + i * 2];
+    }
+
+    public int getThresholdCount(int compareState) {
+        return compareState < compareCount.length ? compareCount[compareState] : 0;
+    }
+
+    public double getThreshold(int compareState, int i) {
+        return thresholds[compareIndex[compareState] + i];
+    }
+
+    public int getThresholdState(int compareState, int i) {
+        return thresholdStates[compareIndex[compareState] + i];
+    }
+
+    /**
+     * The thresholds are sorted ascending, so the thresholds that a number satisfies are a contiguous range, which is
+     * found by binary search: [0, to) for "\&gt;" and [from, count) for "\&lt;".
+     *
+     * @param compareState The trie state of "\&gt;" or "\&lt;"
+     * @param compare      '&gt;' or '&lt;'
+     * @param value        The number of the token (not NaN)
+     * @return the index of the first threshold that the value satisfies
+     */
+    public int getThresholdFrom(int compareState, char compare, double value) {
+        return compare == '>' ? 0 : searchThreshold(compareState, value, false);
+    }
+
+    /**
+     * @param compareState The trie state of "\&gt;" or "\&lt;"
+     * @param compare      '&gt;' or '&lt;'
+     * @param value        The number of the token (not NaN)
+     * @return the index after the last threshold that the value satisfies
+     * @see #getThresholdFrom(int, char, double)
+     */
+    public int getThresholdTo(int compareState, char compare, double value) {
+        return compare == '>' ? searchThreshold(compareState, value, true) : compareCount[compareState];
+    }
+
+    /**
+     * @return the index of the first threshold that is greater than (or equal to, if inclusive) the value
+     */
+    private int searchThreshold(int compareState, double value, boolean inclusive) {
+        int offset = compareIndex[compareState];
+        int low = 0, high = compareCount[compareState];
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            double threshold = thresholds[offset + middle];
+            if (threshold < value || (!inclusive && threshold == value))
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * @return the number of distinct rule tokens
+     */
+    public int getVocabularySize() {
+        return vocabulary.length;
+    }
+
+    /**
+     * @return the number of state ids: the slots of the double array, then the tail states
+     */
+    public int size() {
+        return base.length + tails.length;
+    }
+
+    /**
+     * @return the number of slots of the double array, the states from here on are tail states
+     */
+    public int getSlotCount() {
+        return base.length;
+    }
+
+
+    private static class BuildNode {
+        TreeMap<Integer, BuildNode> children = new TreeMap<>();
+        //  only for comparator nodes: the threshold nodes in insertion order
+        ArrayList<BuildNode> thresholds;
+        LinkedHashMap<String, BuildNode> thresholdNames;
+        LinkedHashMap<Integer, Integer> ends;
+        boolean comparator = false;
+        double threshold;
+        int state;
+        //  the leaf of the path-compressed chain under the node, and the index of its END in the tails
+        BuildNode tailLeaf;
+        int tailEnd;
+
+        boolean isDead() {
+            return ends == null && children.isEmpty() && thresholds == null;
+        }
+
+        /**
+         * @return the leaf, if the node has a single literal child, which has a chain of single literal children
+         * without an END down to a leaf (with an END), otherwise null
+         */
+        BuildNode getTailLeaf() {
+            BuildNode node = this;
+            while (true) {
+                if (node.children.size() != 1 || node.thresholds != null || node.children.firstKey() < FIRST_TOKEN_LABEL)
+                    return null;
+                node = node.children.firstEntry().getValue();
+                if (node.children.isEmpty())
+                    return node.thresholds == null && node.ends != null ? node : null;
+                if (node.ends != null)
+                    return null;
+            }
+        }
+
+        BuildNode getChild(int label) {
+            BuildNode child = children.get(label);
+            if (child == null) {
+                child = new BuildNode();
+                children.put(label, child);
+            }
+            return child;
+        }
+
+        BuildNode getThreshold(String token) {
+            if (thresholdNames == null) {
+                thresholdNames = new LinkedHashMap<>();
+                thresholds = new ArrayList<>();
+            }
+            BuildNode child = thresholdNames.get(token);
+            if (child == null) {
+                double value;
+                try {
+                    value = Double.parseDouble(token);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                child = new BuildNode();
+                child.threshold = value;
+                thresholdNames.put(token, child);
+                thresholds.add(child);
+                thresholds.sort(Comparator.comparingDouble(node -> node.threshold));
+            }
+            return child;
+        }
+    }
+
+    /**
+     * Place the BuildNodes into the base/check arrays, breadth first.
+     */
+    private static class Builder {
+        int[] base = new int[1024], check = new int[1024];
+        //  the free slots as a linked list, so that findBase skips the used slots in one step; the next of the last
+        //  free slot is the length of the arrays, all the slots from there are free
+        int[] nextFree = new int[1024], previousFree = new int[1024];
+        int lastFree = -1;
+        int size = 1, nextCheckPos = 1;
+        ArrayList<BuildNode> nodes = new ArrayList<>();
+        int[] tails = new int[64];
+        int tailsLength = 0;
+        //  filled by layout()
+        byte[] flags;
+        int[] endIndex, ends, compareIndex, compareCount, thresholdStates;
+        double[] thresholds;
+
+        Builder() {
+            Arrays.fill(check, -1);
+            link(0, check.length);
+        }
+
+        void place(BuildNode root) {
+            root.state = ROOT;
+            use(ROOT, NO_PARENT);
+            ArrayDeque<BuildNode> queue = new ArrayDeque<>();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                BuildNode node = queue.poll();
+                nodes.add(node);
+                if (node.thresholds != null) {
+                    //  threshold nodes are reached through the comparator's own table, not through labels
+                    for (BuildNode child : node.thresholds) {
+                        child.state = allocate();
+                        queue.add(child);
+                    }
+                }
+                if (node.children.isEmpty())
+                    continue;
+                BuildNode leaf = node.getTailLeaf();
+                if (leaf != null) {
+                    base[node.state] = tailsLength;
+                    for (BuildNode chain = node; chain != leaf; chain = chain.children.firstEntry().getValue())
+                        addTail(chain.children.firstKey() - FIRST_TOKEN_LABEL);
+                    node.tailLeaf = leaf;
+                    node.tailEnd = tailsLength;
+                    //  the END of the leaf, filled in when the ENDs are laid out
+                    addTail(-1);
+                    continue;
+                }
+                int[] labels = new int[node.children.size()];
+                int i = 0;
+                for (int label : node.children.keySet())
+                    labels[i++] = label;
+                int b = findBase(labels);
+                base[node.state] = b;
+                for (Map.Entry<Integer, BuildNode> entry : node.children.entrySet()) {
+                    int state = b + entry.getKey();
+                    use(state, node.state);
+                    size = Math.max(size, state + 1);
+                    entry.getValue().state = state;
+                }
+                queue.addAll(node.children.values());
+            }
+        }
+
+        /**
+         * Trim the arrays to the placed states, and lay out the flags, the ENDs and the thresholds of the states.
+         */
+        void layout() {
+            base = Arrays.copyOf(base, size);
+            check = Arrays.copyOf(check, size);
+            flags = new byte[size];
+            endIndex = new int[size];
+            compareIndex = new int[size];
+            compareCount = new int[size];
+            Arrays.fill(endIndex, -1);
+            Arrays.fill(compareIndex, -1);
+
+            tails = Arrays.copyOf(tails, tailsLength);
+            int endsLength = 0, thresholdsLength = 0;
+            for (BuildNode node : nodes) {
+                if (node.ends != null)
+                    endsLength += 1 + node.ends.size() * 2;
+                if (node.tailLeaf != null)
+                    endsLength += 1 + node.tailLeaf.ends.size() * 2;
+                if (node.thresholds != null)
+                    thresholdsLength += node.thresholds.size();
+            }
+            ends = new int[endsLength];
+            thresholds = new double[thresholdsLength];
+            thresholdStates = new int[thresholdsLength];
+            endsLength = 0;
+            thresholdsLength = 0;
+            for (BuildNode node : nodes) {
+                int state = node.state;
+                byte flag = 0;
+                for (int label : node.children.keySet()) {
+                    switch (label) {
+                        case WORD_LABEL:
+                            flag |= HAS_WORD;
+                            break;
+                        case UPPER_CASE_WORD_LABEL:
+                            flag |= HAS_UPPER_CASE_WORD;
+                            break;
+                        case GREATER_THAN_LABEL:
+                            flag |= HAS_GREATER_THAN;
+                            break;
+                        case LESS_THAN_LABEL:
+                            flag |= HAS_LESS_THAN;
+                            break;
+                    }
+                }
+                if (node.ends != null) {
+                    flag |= HAS_END;
+                    endIndex[state] = endsLength;
+                    endsLength = addEnds(node.ends, endsLength);
+                }
+                if (node.tailLeaf != null) {
+                    flag |= HAS_TAIL;
+                    tails[node.tailEnd] = -(endsLength + 1);
+                    endsLength = addEnds(node.tailLeaf.ends, endsLength);
+                }
+                flags[state] = flag;
+                if (node.thresholds != null) {
+                    compareIndex[state] = thresholdsLength;
+                    compareCount[state] = node.thresholds.size();
+                    for (BuildNode child : node.thresholds) {
+                        thresholds[thresholdsLength] = child.threshold;
+                        thresholdStates[thresholdsLength] = child.state;
+                        thresholdsLength++;
+                    }
+                }
+            }
+        }
+
+        private int addEnds(LinkedHashMap<Integer, Integer> nodeEnds, int endsLength) {
+            ends[endsLength++] = nodeEnds.size();
+            for (Map.Entry<Integer, Integer> end : nodeEnds.entrySet()) {
+                ends[endsLength++] = end.getKey();
+                ends[endsLength++] = end.getValue();
+            }
+            return endsLength;
+        }
+
+        private void addTail(int value) {
+            if (tailsLength == tails.length)
+                tails = Arrays.copyOf(tails, tailsLength * 2);
+            tails[tailsLength++] = value;
+        }
+
+        /**
+         * Threshold states are not addressed by base/check, they only need a free slot.
+         */
+        private int allocate() {
+            int pos = nextFree(nextCheckPos);
+            use(pos, NO_PARENT);
+            size = Math.max(size, pos + 1);
+            return pos;
+        }
+
+        /**
+         * @param labels the labels of the children, ascending
+         * @return the first base (from nextCheckPos) where all the children fit, the slots beyond the arrays are free
+         */
+        private int findBase(int[] labels) {
+            int first = labels[0];
+            int pos = Math.max(nextCheckPos, first + 1) - 1;
+            int nonEmpty = 0, scanned = 0;
+            int length = check.length;
+            while (true) {
+                pos++;
+                scanned++;
+                if (pos < length && check[pos] != -1) {
+                    nonEmpty++;
+                    continue;
+                }
+                break;
+            }
+            while (true) {
+                int b = pos - first;
+                boolean fits = true;
+                for (int i = 1; i < labels.length; i++) {
+                    int next = b + labels[i];
+                    if (next < length && check[next] != -1) {
+                        fits = false;
+                        break;
+                    }
+                }
+                if (fits) {
+                    //  skip the densely used head of the array in later searches
+                    if ((double) nonEmpty / scanned >= 0.95)
+                        nextCheckPos = pos;
+                    ensureCapacity(b + labels[labels.length - 1] + 1);
+                    return b;
+                }
+                //  the same counts as stepping through the used slots one by one
+                int next = nextFree[pos];
+                scanned += next - pos;
+                nonEmpty += next - pos - 1;
+                pos = next;
+            }
+        }
+
+        private void use(int state, int parent) {
+            check[state] = parent;
+            int previous = previousFree[state], next = nextFree[state];
+            if (previous >= 0)
+                nextFree[previous] = next;
+            if (next < check.length)
+                previousFree[next] = previous;
+            else
+                lastFree = previous;
+        }
+
+        /**
+         * Append the free slots from..to-1 to the free list.
+         */
+        private void link(int from, int to) {
+            for (int i = from; i < to; i++) {
+                nextFree[i] = i + 1;
+                previousFree[i] = i == from ? lastFree : i - 1;
+            }
+            lastFree = to - 1;
+        }
+
+        private int nextFree(int pos) {
+            while (true) {
+                ensureCapacity(pos + 1);
+                if (check[pos] == -1)
+                    return pos;
+                pos++;
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= check.length)
+                return;
+            int newLength = Math.max(capacity, check.length * 2);
+            base = Arrays.copyOf(base, newLength);
+            int oldLength = check.length;
+            check = Arrays.copyOf(check, newLength);
+            Arrays.fill(check, oldLength, newLength, -1);
+            nextFree = Arrays.copyOf(nextFree, newLength);
+            previousFree = Arrays.copyOf(previousFree, newLength);
+            link(oldLength, newLength);
+        }
+    }
+
+    /**
+     * A mutable copy of a compiled trie, which adds the paths of new rules and rewrites the ENDs of existing states
+     * without compiling all the rules again. The trie that it is copied from is not changed, {@link #build()} makes a
+     * new one, so that the matching can keep reading the old trie while the rules are edited.
+     * <p>
+     * A new child whose slot is taken moves either its own siblings or the children of the slot's owner (whichever
+     * are fewer) to a new base, as the double-array insertion usually does. The paths of the removed rules are left in
+     * place: a state without an END and without children never matches anything. The thresholds of a comparator are
+     * told apart by their values, so "3" and "3.0" after the same comparator share one threshold state.
+     */
+    protected static class Editor {
+        String[] vocabulary;
+        int vocabularySize;
+        int[] tokenTable;
+        final HashMap<String, Integer> determinantIds = new HashMap<>();
+        final ArrayList<String> determinants = new ArrayList<>();
+        int[] base, check, endIndex, compareIndex, compareCount;
+        byte[] flags;
+        int size;
+        int[] ends;
+        int endsLength;
+        double[] thresholds;
+        int[] thresholdStates;
+        int thresholdsLength;
+        //  no free slot before nextFree
+        int nextFree = 1;
+
+        Editor(DoubleArrayRuleTrie trie) {
+            if (trie instanceof OffHeapRuleTrie)
+                trie = ((OffHeapRuleTrie) trie).toHeap();
+            vocabulary = Arrays.copyOf(trie.vocabulary, Math.max(16, trie.vocabulary.length * 2));
+            vocabularySize = trie.vocabulary.length;
+            tokenTable = trie.tokenTable.clone();
+            for (String determinant : trie.determinants) {
+                determinantIds.put(determinant, determinants.size());
+                determinants.add(determinant);
+            }
+            size = trie.base.length;
+            base = trie.base.clone();
+            check = trie.check.clone();
+            flags = trie.flags.clone();
+            endIndex = trie.endIndex.clone();
+            compareIndex = trie.compareIndex.clone();
+            compareCount = trie.compareCount.clone();
+            ends = trie.ends.clone();
+            endsLength = ends.length;
+            thresholds = trie.thresholds.clone();
+            thresholdStates = trie.thresholdStates.clone();
+            thresholdsLength = thresholds.length;
+            //  the edits add children anywhere, so the tails are expanded into states first, the trie is
+            //  path-compressed again when the rules are compiled the next time
+            for (int state = 0; state < trie.base.length; state++) {
+                if ((flags[state] & HAS_TAIL) == 0)
+                    continue;
+                int tail = base[state];
+                flags[state] &= ~HAS_TAIL;
+                base[state] = 0;
+                int chain = state;
+                for (; trie.tails[tail] >= 0; tail++)
+                    chain = addChild(chain, trie.tails[tail] + FIRST_TOKEN_LABEL);
+                endIndex[chain] = -trie.tails[tail] - 1;
+                flags[chain] |= HAS_END;
+            }
+        }
+
+        /**
+         * @param ruleContent the rule tokens, split and lower cased the same way as the trie was compiled
+         * @return whether the rule can be compiled: every numeric comparator is followed by a number
+         */
+        static boolean isValid(String[] ruleContent) {
+            boolean comparator = false;
+            for (String token : ruleContent) {
+                if (comparator) {
+                    try {
+                        Double.parseDouble(token);
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                    comparator = false;
+                } else {
+                    comparator = token.equals(GREATER_THAN) || token.equals(LESS_THAN);
+                }
+            }
+            return !comparator;
+        }
+
+        /**
+         * @param ruleContent the tokens of a valid rule
+         * @return the state that the rule ends at, or -1 if the trie doesn't have the rule
+         */
+        int find(String[] ruleContent) {
+            int state = ROOT;
+            boolean comparator = false;
+            for (String token : ruleContent) {
+                if (comparator) {
+                    state = findThreshold(state, Double.parseDouble(token));
+                    comparator = false;
+                } else {
+                    int label = getLabel(token, false);
+                    comparator = label == GREATER_THAN_LABEL || label == LESS_THAN_LABEL;
+                    state = label == -1 ? -1 : getChild(state, label);
+                }
+                if (state == -1)
+                    return -1;
+            }
+            return state;
+        }
+
+        /**
+         * Add the path of a rule, the states that are already there are reused.
+         *
+         * @param ruleContent the tokens of a valid rule
+         * @return the state that the rule ends at
+         */
+        int insert(String[] ruleContent) {
+            int state = ROOT;
+            boolean comparator = false;
+            for (String token : ruleContent) {
+                if (comparator) {
+                    state = addThreshold(state, Double.parseDouble(token));
+                    comparator = false;
+                } else {
+                    int label = getLabel(token, true);
+                    comparator = label == GREATER_THAN_LABEL || label == LESS_THAN_LABEL;
+                    int child = getChild(state, label);
+                    state = child == -1 ? addChild(state, label) : child;
+                }
+            }
+            return state;
+        }
+
+        /**
+         * Replace the END of a state.
+         *
+         * @param state the state
+         * @param ends  determinant id -&gt; rule id, in the order of the matching; empty to remove the END
+         */
+        void setEnds(int state, LinkedHashMap<Integer, Integer> ends) {
+            if (ends.isEmpty()) {
+                flags[state] &= ~HAS_END;
+                endIndex[state] = -1;
+                return;
+            }
+            if (endsLength + 1 + ends.size() * 2 > this.ends.length)
+                this.ends = Arrays.copyOf(this.ends, Math.max(this.ends.length * 2, endsLength + 1 + ends.size() * 2));
+            endIndex[state] = endsLength;
+            this.ends[endsLength++] = ends.size();
+            for (Map.Entry<Integer, Integer> end : ends.entrySet()) {
+                this.ends[endsLength++] = end.getKey();
+                this.ends[endsLength++] = end.getValue();
+            }
+            flags[state] |= HAS_END;
+        }
+
+        int getEndCount(int state) {
+            return (flags[state] & HAS_END) == 0 ? 0 : ends[endIndex[state]];
+        }
+
+        int getEndDeterminantId(int state, int i) {
+            return ends[endIndex[state] + 1 + i * 2];
+        }
+
+        int getEndRuleId(int state, int i) {
+            return ends[endIndex[state] + 2 + i * 2];
+        }
+
+        int getDeterminantId(String determinant) {
+            Integer id = determinantIds.get(determinant);
+            if (id == null) {
+                id = determinants.size();
+                determinantIds.put(determinant, id);
+                determinants.add(determinant);
+            }
+            return id;
+        }
+
+        int getDeterminantCount() {
+            return determinants.size();
+        }
+
+        /**
+         * @return a new trie of the edited arrays
+         */
+        DoubleArrayRuleTrie build() {
+            return new DoubleArrayRuleTrie(Arrays.copyOf(vocabulary, vocabularySize), tokenTable,
+                    determinants.toArray(new String[0]), Arrays.copyOf(base, size), Arrays.copyOf(check, size),
+                    Arrays.copyOf(flags, size), Arrays.copyOf(endIndex, size), Arrays.copyOf(ends, endsLength),
+                    Arrays.copyOf(compareIndex, size), Arrays.copyOf(compareCount, size),
+                    Arrays.copyOf(thresholds, thresholdsLength), Arrays.copyOf(thresholdStates, thresholdsLength),
+                    new int[0]);
+        }
+
+        /**
+         * @return the label of a rule token, or -1 if it is a token that no rule has (and add is false)
+         */
+        private int getLabel(String token, boolean add) {
+            switch (token) {
+                case WORD:
+                    return WORD_LABEL;
+                case UPPER_CASE_WORD:
+                    return UPPER_CASE_WORD_LABEL;
+                case GREATER_THAN:
+                    return GREATER_THAN_LABEL;
+                case LESS_THAN:
+                    return LESS_THAN_LABEL;
+            }
+            int mask = tokenTable.length - 1;
+            int slot = foldedHash(token, 0, token.length()) & mask;
+            int id;
+            while ((id = tokenTable[slot]) != UNKNOWN_TOKEN) {
+                if (vocabulary[id].equals(token))
+                    return id + FIRST_TOKEN_LABEL;
+                slot = (slot + 1) & mask;
+            }
+            if (!add)
+                return -1;
+            id = vocabularySize++;
+            if (id == vocabulary.length)
+                vocabulary = Arrays.copyOf(vocabulary, vocabulary.length * 2);
+            vocabulary[id] = token;
+            if (vocabularySize * 2 > tokenTable.length) {
+                //  keep the table at most half full, the same as the compiled one
+                tokenTable = new int[tokenTable.length * 2];
+                Arrays.fill(tokenTable, UNKNOWN_TOKEN);
+                for (int i = 0; i < vocabularySize; i++)
+                    putToken(i);
+            } else {
+                tokenTable[slot] = id;
+            }
+            return id + FIRST_TOKEN_LABEL;
+        }
+
+        private void putToken(int id) {
+            int mask = tokenTable.length - 1;
+            int slot = foldedHash(vocabulary[id], 0, vocabulary[id].length()) & mask;
+            while (tokenTable[slot] != UNKNOWN_TOKEN)
+                slot = (slot + 1) & mask;
+            tokenTable[slot] = id;
+        }
+
+        private int getChild(int state, int label) {
+            int next = base[state] + label;
+            return next < size && check[next] == state ? next : -1;
+        }
+
+        /**
+         * @return the labels of the children of the state, ascending
+         */
+        private int[] getChildLabels(int state) {
+            int[] labels = new int[4];
+            int count = 0;
+            int from = base[state] + 1, to = Math.min(size, base[state] + FIRST_TOKEN_LABEL + vocabularySize);
+            for (int next = from; next < to; next++) {
+                if (check[next] == state) {
+                    if (count == labels.length)
+                        labels = Arrays.copyOf(labels, count * 2);
+                    labels[count++] = next - base[state];
+                }
+            }
+            return Arrays.copyOf(labels, count);
+        }
+
+        private int addChild(int state, int label) {
+            int next = base[state] + label;
+            int[] labels = getChildLabels(state);
+            if (labels.length == 0) {
+                base[state] = findBase(new int[]{label});
+            } else if (next < size && check[next] != -1) {
+                int owner = check[next];
+                int[] ownerLabels = owner >= 0 ? getChildLabels(owner) : null;
+                if (ownerLabels != null && ownerLabels.length <= labels.length) {
+                    //  move the owner's children away, the state itself may be one of them
+                    int moved = relocate(owner, ownerLabels, findBase(ownerLabels), state);
+                    if (moved != -1)
+                        state = moved;
+                } else {
+                    int[] allLabels = Arrays.copyOf(labels, labels.length + 1);
+                    allLabels[labels.length] = label;
+                    Arrays.sort(allLabels);
+                    relocate(state, labels, findBase(allLabels), -1);
+                }
+            }
+            next = base[state] + label;
+            use(next, state);
+            switch (label) {
+                case WORD_LABEL:
+                    flags[state] |= HAS_WORD;
+                    break;
+                case UPPER_CASE_WORD_LABEL:
+                    flags[state] |= HAS_UPPER_CASE_WORD;
+                    break;
+                case GREATER_THAN_LABEL:
+                    flags[state] |= HAS_GREATER_THAN;
+                    break;
+                case LESS_THAN_LABEL:
+                    flags[state] |= HAS_LESS_THAN;
+                    break;
+            }
+            return next;
+        }
+
+        /**
+         * Move the children of a state to a new base, with everything they own.
+         *
+         * @param watched a state that the caller holds
+         * @return the new slot of the watched state if it has been moved, otherwise -1
+         */
+        private int relocate(int state, int[] labels, int newBase, int watched) {
+            int oldBase = base[state];
+            int moved = -1;
+            for (int label : labels) {
+                int from = oldBase + label, to = newBase + label;
+                ensureCapacity(to + 1);
+                size = Math.max(size, to + 1);
+                base[to] = base[from];
+                check[to] = state;
+                flags[to] = flags[from];
+                endIndex[to] = endIndex[from];
+                compareIndex[to] = compareIndex[from];
+                compareCount[to] = compareCount[from];
+                for (int grandChild : getChildLabels(from))
+                    check[base[from] + grandChild] = to;
+                base[from] = 0;
+                check[from] = -1;
+                flags[from] = 0;
+                endIndex[from] = -1;
+                compareIndex[from] = -1;
+                compareCount[from] = 0;
+                nextFree = Math.min(nextFree, from);
+                if (from == watched)
+                    moved = to;
+            }
+            base[state] = newBase;
+            return moved;
+        }
+
+        /**
+         * @param labels the labels of the children, ascending
+         * @return a base where all the children fit
+         */
+        private int findBase(int[] labels) {
+            while (nextFree < size && check[nextFree] != -1)
+                nextFree++;
+            int first = labels[0];
+            for (int pos = Math.max(nextFree, first + 1); ; pos++) {
+                if (pos < size && check[pos] != -1)
+                    continue;
+                int b = pos - first;
+                boolean fits = true;
+                for (int label : labels) {
+                    if (b + label < size && check[b + label] != -1) {
+                        fits = false;
+                        break;
+                    }
+                }
+                if (fits)
+                    return b;
+            }
+        }
+
+        private int findThreshold(int compareState, double value) {
+            for (int i = 0; i < compareCount[compareState]; i++)
+                if (thresholds[compareIndex[compareState] + i] == value)
+                    return thresholdStates[compareIndex[compareState] + i];
+            return -1;
+        }
+
+        /**
+         * Add a threshold to a comparator, the thresholds are copied to a new sorted block.
+         */
+        private int addThreshold(int compareState, double value) {
+            int state = findThreshold(compareState, value);
+            if (state != -1)
+                return state;
+            while (nextFree < size && check[nextFree] != -1)
+                nextFree++;
+            state = nextFree;
+            use(state, NO_PARENT);
+            int offset = compareIndex[compareState], count = compareCount[compareState];
+            if (thresholdsLength + count + 1 > thresholds.length) {
+                int length = Math.max(thresholds.length * 2, thresholdsLength + count + 1);
+                thresholds = Arrays.copyOf(thresholds, length);
+                thresholdStates = Arrays.copyOf(thresholdStates, length);
+            }
+            int newOffset = thresholdsLength;
+            boolean added = false;
+            for (int i = 0; i < count; i++) {
+                if (!added && thresholds[offset + i] > value) {
+                    thresholds[thresholdsLength] = value;
+                    thresholdStates[thresholdsLength++] = state;
+                    added = true;
+                }
+                thresholds[thresholdsLength] = thresholds[offset + i];
+                thresholdStates[thresholdsLength++] = thresholdStates[offset + i];
+            }
+            if (!added) {
+                thresholds[thresholdsLength] = value;
+                thresholdStates[thresholdsLength++] = state;
+            }
+            compareIndex[compareState] = newOffset;
+            compareCount[compareState] = count + 1;
+            return state;
+        }
+
+        private void use(int state, int parent) {
+            ensureCapacity(state + 1);
+            size = Math.max(size, state + 1);
+            base[state] = 0;
+            check[state] = parent;
+            flags[state] = 0;
+            endIndex[state] = -1;
+            compareIndex[state] = -1;
+            compareCount[state] = 0;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= check.length)
+                return;
+            int oldLength = check.length;
+            int newLength = Math.max(capacity, oldLength * 2);
+            base = Arrays.copyOf(base, newLength);
+            check = Arrays.copyOf(check, newLength);
+            flags = Arrays.copyOf(flags, newLength);
+            endIndex = Arrays.copyOf(endIndex, newLength);
+            compareIndex = Arrays.copyOf(compareIndex, newLength);
+            compareCount = Arrays.copyOf(compareCount, newLength);
+            Arrays.fill(check, oldLength, newLength, -1);
+            Arrays.fill(endIndex, oldLength, newLength, -1);
+            Arrays.fill(compareIndex, oldLength, newLength, -1);
+        }
+    }
+}
@@ -29,17 +29,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class take context token/Annotation ArrayList as input, process the ConText algorithm.
+ * <p>
+ * The rules are compiled into an immutable {@link CompiledContextRules}, so one FastContext can be shared by many
+ * threads; keep a {@link ConTextWorkspace} per thread for the allocation-free APIs.
  *
  * @author Jianlin Shi
  */
 public class FastContext implements ConTextAdvancedInterface {
     public static Logger logger = IOUtil.getLogger(FastContext.class);
     protected ContextRuleProcessor crp;
+    //  concept type name -> {the compiled rules, the view of them for the concept type}, see getConceptRules
+    protected final ConcurrentHashMap<String, CompiledContextRules[]> conceptRules = new ConcurrentHashMap<>();
     @Deprecated
     public boolean debug = false;
 
@@ -55,6 +61,30 @@ public class FastContext implements ConTextAdvancedInterface {
         initiate(ruleFile, caseSensitive);
     }
 
+    /**
+     * Load the compiled rules from a snapshot file instead of parsing the rule file, if the snapshot has been written
+     * from the same rule file; otherwise parse the rule file and write the snapshot for the next time.
+     *
+     * @param ruleFile      the rule file
+     * @param snapshotFile  the snapshot file, see {@link ContextRuleSnapshot}, the case-sensitive rules are kept next
+     *                      to it ({@link ContextRuleSnapshot#getSnapshotFile(String, boolean)})
+     * @param caseSensitive whether to match the rules case sensitively
+     */
+    public FastContext(String ruleFile, String snapshotFile, boolean caseSensitive) {
+        crp = new ContextRuleProcessor(ruleFile, snapshotFile, caseSensitive);
+    }
+
+    /**
+     * @param ruleFile      the rule file
+     * @param snapshotFile  the snapshot file, see {@link ContextRuleSnapshot}
+     * @param caseSensitive whether to match the rules case sensitively
+     * @param offHeapTrie   whether to read the trie from the mapped snapshot (or a direct buffer) instead of the
+     *                      heap, see {@link OffHeapRuleTrie}
+     */
+    public FastContext(String ruleFile, String snapshotFile, boolean caseSensitive, boolean offHeapTrie) {
+        crp = new ContextRuleProcessor(ruleFile, snapshotFile, caseSensitive, offHeapTrie);
+    }
+
     public FastContext(InputStream ruleStream) {
         initiate(ruleStream, false, StandardCharsets.UTF_8.toString());
     }
@@ -90,6 +120,55 @@ public class FastContext implements ConTextAdvancedInterface {
         crp.setCaseSensitive(caseInsensitive);
     }
 
+    /**
+     * @param useTokenAutomaton true: match the rules with a one pass {@link TokenAutomaton} instead of a trie walk
+     *                          from every token. The matches are the same.
+     */
+    public void setUseTokenAutomaton(boolean useTokenAutomaton) {
+        crp.setUseTokenAutomaton(useTokenAutomaton);
+    }
+
+    /**
+     * @param scanOutward true: match the pre/post-context outward from the concept, and stop early once every
+     *                    modifier is blocked by a termination. The contexts are the same.
+     */
+    public void setScanOutward(boolean scanOutward) {
+        crp.setScanOutward(scanOutward);
+    }
+
+    /**
+     * @param offHeapTrie true: keep the compiled rule trie in a direct buffer outside of the Java heap, see
+     *                    {@link OffHeapRuleTrie}. The matches are the same.
+     */
+    public void setOffHeapTrie(boolean offHeapTrie) {
+        crp.setOffHeapTrie(offHeapTrie);
+    }
+
+    /**
+     * @param generatedMatcher true: step through the rule tokens with a class generated for the current rules, see
+     *                         {@link ContextRuleProcessor#setGeneratedMatcher(boolean)}. The matches are the same.
+     */
+    public void setGeneratedMatcher(boolean generatedMatcher) {
+        crp.setGeneratedMatcher(generatedMatcher);
+    }
+
+    /**
+     * @param directionTries true: match the pre- and the post-context of a concept with separate tries of the rules
+     *                       that each side resolves, see {@link ContextRuleProcessor#setDirectionTries(boolean)}. The
+     *                       contexts are the same.
+     */
+    public void setDirectionTries(boolean directionTries) {
+        crp.setDirectionTries(directionTries);
+    }
+
+    /**
+     * @param featureNames only match the rules of these features and only fill these features into the results, see
+     *                     {@link ContextRuleProcessor#setRequestedFeatures(Collection)}; null for all the features
+     */
+    public void setRequestedFeatures(Collection<String> featureNames) {
+        crp.setRequestedFeatures(featureNames);
+    }
+
 
     public ArrayList<String> processContext(ArrayList<String> tokens, int conceptStartPosition, int conceptEndPosition, int windowSize) {
         ArrayList<String> context = convertOutput(processContextWEvidence(tokens, conceptStartPosition, conceptEndPosition, windowSize));
@@ -144,20 +223,9 @@ public class FastContext implements ConTextAdvancedInterface {
         LinkedHashMap<String, ConTextSpan> matchedPostRules = new LinkedHashMap<>();
         matchedPreRules.clear();
         matchedPostRules.clear();
-        crp.processRules(preContext, 0, matchedPreRules);
-        crp.processRules(postContext, 0, matchedPostRules);
-        if (logger.isLoggable(Level.FINE)) {
-            logger.fine("pre context matches:");
-            for (Map.Entry<String, ConTextSpan> ent : matchedPreRules.entrySet()) {
-                logger.fine(ent.getValue().ruleId + ": " + ent.getKey() + " " + crp.rules.get(ent.getValue().ruleId).triggerType + ":\t" + ent.getValue().begin + "-" + ent.getValue().end);
-                logger.fine(crp.rules.get(ent.getValue().ruleId) + "\n");
-            }
-            logger.fine("post context matches:");
-            for (Map.Entry<String, ConTextSpan> ent : matchedPostRules.entrySet()) {
-                logger.fine(ent.getValue().ruleId + ": " + ent.getKey() + " " + crp.rules.get(ent.getValue().ruleId).triggerType + ":\t" + ent.getValue().begin + "-" + ent.getValue().end);
-                logger.fine(crp.rules.get(ent.getValue().ruleId) + "\n");
-            }
-        }
+        crp.processPreContext(crp.internTokens(preContext, new InternedTokens(preContext.size())), preContext.size(), matchedPreRules);
+        crp.processPostContext(crp.internTokens(postContext, new InternedTokens(postContext.size())), 0, matchedPostRules);
+        logMatches(matchedPreRules, matchedPostRules);
         LinkedHashMap<String, ConTextSpan> contexts = new LinkedHashMap<>();
         if (absoluteOffsetSpan) {
             applyConTexts(preContext, matchedPreRules, contexts, TriggerTypes.forward, preContext.size());
@@ -170,6 +238,180 @@ public class FastContext implements ConTextAdvancedInterface {
     }
 
 
+    /**
+     * Intern the tokens of a sentence (or a document) once, then process each concept in it through
+     * {@link #processContextWEvidence(InternedTokens, int, int)}, without looking up the token strings again.
+     *
+     * @param tokens tokens of a sentence or a document
+     * @return interned tokens aligned with the input tokens
+     */
+    public InternedTokens internTokens(List<Span> tokens) {
+        return crp.internTokens(tokens, new InternedTokens(tokens.size()));
+    }
+
+    /**
+     * @param tokens               interned tokens of the sentence
+     * @param conceptStartPosition the position of the first token of the concept
+     * @param conceptEndPosition   the position of the last token of the concept
+     * @return matched contexts with absolute (character) offsets
+     */
+    public LinkedHashMap<String, ConTextSpan> processContextWEvidence(InternedTokens tokens, int conceptStartPosition, int conceptEndPosition) {
+        return processContextWEvidence(tokens, conceptStartPosition, conceptEndPosition,
+                tokens.getRules() == null ? crp.getCompiledRules() : tokens.getRules());
+    }
+
+    /**
+     * The same as {@link #processContextWEvidence(InternedTokens, int, int)}, but matches a view of the rules that the
+     * tokens are interned with, e.g. the rules of a concept type ({@link #getConceptRules(String)}).
+     */
+    protected LinkedHashMap<String, ConTextSpan> processContextWEvidence(InternedTokens tokens, int conceptStartPosition,
+                                                                         int conceptEndPosition, CompiledContextRules rules) {
+        LinkedHashMap<String, ConTextSpan> matchedPreRules = new LinkedHashMap<>();
+        LinkedHashMap<String, ConTextSpan> matchedPostRules = new LinkedHashMap<>();
+        crp.processPreContext(tokens, conceptStartPosition, rules, matchedPreRules);
+        crp.processPostContext(tokens, conceptEndPosition + 1, rules, matchedPostRules);
+        logMatches(matchedPreRules, matchedPostRules);
+        LinkedHashMap<String, ConTextSpan> contexts = new LinkedHashMap<>();
+        applyConTexts(tokens, 0, matchedPreRules, contexts, TriggerTypes.forward, conceptStartPosition);
+        applyConTexts(tokens, conceptEndPosition + 1, matchedPostRules, contexts, TriggerTypes.backward, conceptStartPosition);
+        return contexts;
+    }
+
+    /**
+     * @return a reusable workspace for
+     * {@link #getFullContextFeatures(String, InternedTokens, int, int, ConTextWorkspace)}, one per thread
+     */
+    public ConTextWorkspace newWorkspace() {
+        return new ConTextWorkspace(crp);
+    }
+
+    /**
+     * The same as {@link #processContextWEvidence(InternedTokens, int, int)}, but the matches and the contexts are
+     * stored in the caller's workspace, so that no object is allocated once the workspace is warmed up.
+     *
+     * @param tokens               interned tokens of the sentence
+     * @param conceptStartPosition the position of the first token of the concept
+     * @param conceptEndPosition   the position of the last token of the concept
+     * @param workspace            the workspace created by {@link #newWorkspace()}
+     * @return the workspace, read the contexts through {@link ConTextWorkspace#getContext(String)}
+     */
+    public ConTextWorkspace processContextWEvidence(InternedTokens tokens, int conceptStartPosition, int conceptEndPosition,
+                                                    ConTextWorkspace workspace) {
+        return processContextWEvidence(tokens, conceptStartPosition, conceptEndPosition,
+                tokens.getRules() == null ? crp.getCompiledRules() : tokens.getRules(), workspace);
+    }
+
+    /**
+     * The same as {@link #processContextWEvidence(InternedTokens, int, int, ConTextWorkspace)}, but matches a view of
+     * the rules that the tokens are interned with, e.g. the rules of a concept type ({@link #getConceptRules(String)}).
+     */
+    protected ConTextWorkspace processContextWEvidence(InternedTokens tokens, int conceptStartPosition,
+                                                       int conceptEndPosition, CompiledContextRules rules,
+                                                       ConTextWorkspace workspace) {
+        workspace.bind(rules.getFullRules());
+        workspace.selectRules(rules);
+        workspace.preMatches.clear();
+        workspace.postMatches.clear();
+        crp.processPreContext(tokens, conceptStartPosition, workspace.preMatches);
+        crp.processPostContext(tokens, conceptEndPosition + 1, workspace.postMatches);
+        workspace.clearContexts();
+        applyConTexts(tokens, 0, workspace.preMatches, workspace, TriggerTypes.forward, conceptStartPosition);
+        applyConTexts(tokens, conceptEndPosition + 1, workspace.postMatches, workspace, TriggerTypes.backward, conceptStartPosition);
+        return workspace;
+    }
+
+    /**
+     * Match the rules over a whole sentence once, then resolve each concept in it through
+     * {@link #processContextWEvidence(SentenceMatches, int, int)}, instead of matching the pre- and post-context of
+     * every concept again.
+     *
+     * @param tokens interned tokens of the sentence
+     * @return the matches of the sentence
+     */
+    public SentenceMatches matchSentence(InternedTokens tokens) {
+        return crp.matchSentence(tokens, crp.newSentenceMatches());
+    }
+
+    /**
+     * @param tokens interned tokens of the sentence
+     * @param target the index to reuse, created by {@link #newSentenceMatches()}
+     * @return the target holding the matches of the sentence, or a new index if the rules have been edited since the
+     * target was created
+     */
+    public SentenceMatches matchSentence(InternedTokens tokens, SentenceMatches target) {
+        if (tokens.getRules() != null && target.rules != tokens.getRules())
+            target = new SentenceMatches(tokens.getRules());
+        return crp.matchSentence(tokens, target);
+    }
+
+    /**
+     * @return a reusable sentence match index, one per thread
+     */
+    public SentenceMatches newSentenceMatches() {
+        return crp.newSentenceMatches();
+    }
+
+    /**
+     * The same as {@link #processContextWEvidence(InternedTokens, int, int)}, but resolves the concept from the
+     * matches of its sentence.
+     *
+     * @param sentence             the matches of the sentence
+     * @param conceptStartPosition the position of the first token of the concept
+     * @param conceptEndPosition   the position of the last token of the concept
+     * @return matched contexts with absolute (character) offsets
+     */
+    public LinkedHashMap<String, ConTextSpan> processContextWEvidence(SentenceMatches sentence, int conceptStartPosition, int conceptEndPosition) {
+        LinkedHashMap<String, ConTextSpan> matchedPreRules = new LinkedHashMap<>();
+        LinkedHashMap<String, ConTextSpan> matchedPostRules = new LinkedHashMap<>();
+        crp.processPreContext(sentence, conceptStartPosition, matchedPreRules);
+        crp.processPostContext(sentence, conceptEndPosition + 1, matchedPostRules);
+        logMatches(matchedPreRules, matchedPostRules);
+        LinkedHashMap<String, ConTextSpan> contexts = new LinkedHashMap<>();
+        applyConTexts(sentence.getTokens(), 0, matchedPreRules, contexts, TriggerTypes.forward, conceptStartPosition);
+        applyConTexts(sentence.getTokens(), conceptEndPosition + 1, matchedPostRules, contexts, TriggerTypes.backward, conceptStartPosition);
+        return contexts;
+    }
+
+    /**
+     * The same as {@link #processContextWEvidence(SentenceMatches, int, int)}, but the matches and the contexts are
+     * stored in the caller's workspace.
+     *
+     * @param sentence             the matches of the sentence
+     * @param conceptStartPosition the position of the first token of the concept
+     * @param conceptEndPosition   the position of the last token of the concept
+     * @param workspace            the workspace created by {@link #newWorkspace()}
+     * @return the workspace, read the contexts through {@link ConTextWorkspace#getContext(String)}
+     */
+    public ConTextWorkspace processContextWEvidence(SentenceMatches sentence, int conceptStartPosition, int conceptEndPosition,
+                                                    ConTextWorkspace workspace) {
+        workspace.bind(sentence.rules);
+        workspace.selectRules(sentence.rules);
+        workspace.preMatches.clear();
+        workspace.postMatches.clear();
+        crp.processPreContext(sentence, conceptStartPosition, workspace.preMatches);
+        crp.processPostContext(sentence, conceptEndPosition + 1, workspace.postMatches);
+        workspace.clearContexts();
+        applyConTexts(sentence.getTokens(), 0, workspace.preMatches, workspace, TriggerTypes.forward, conceptStartPosition);
+        applyConTexts(sentence.getTokens(), conceptEndPosition + 1, workspace.postMatches, workspace, TriggerTypes.backward, conceptStartPosition);
+        return workspace;
+    }
+
+    protected void logMatches(LinkedHashMap<String, ConTextSpan> matchedPreRules, LinkedHashMap<String, ConTextSpan> matchedPostRules) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("pre context matches:");
+            for (Map.Entry<String, ConTextSpan> ent : matchedPreRules.entrySet()) {
+                logger.fine(ent.getValue().ruleId + ": " + ent.getKey() + " " + crp.getContextRuleById(ent.getValue().ruleId).triggerType + ":\t" + ent.getValue().begin + "-" + ent.getValue().end);
+                logger.fine(crp.getContextRuleById(ent.getValue().ruleId) + "\n");
+            }
+            logger.fine("post context matches:");
+            for (Map.Entry<String, ConTextSpan> ent : matchedPostRules.entrySet()) {
+                logger.fine(ent.getValue().ruleId + ": " + ent.getKey() + " " + crp.getContextRuleById(ent.getValue().ruleId).triggerType + ":\t" + ent.getValue().begin + "-" + ent.getValue().end);
+                logger.fine(crp.getContextRuleById(ent.getValue().ruleId) + "\n");
+            }
+        }
+    }
+
+
     protected void applyConTexts(int contextOffset, HashMap<String, ConTextSpan> matchedRules, LinkedHashMap<String, ConTextSpan> contexts, TriggerTypes direction, int conceptBegin) {
         for (Map.Entry<String, ConTextSpan> ent : matchedRules.entrySet()) {
             ConTextSpan conTextSpan = ent.getValue();
@@ -177,7 +419,7 @@ public class FastContext implements ConTextAdvancedInterface {
                 conTextSpan.begin = conTextSpan.begin + contextOffset;
                 conTextSpan.end = conTextSpan.end + contextOffset;
             }
-            ContextRule matchedRule = crp.rules.get(conTextSpan.ruleId);
+            ContextRule matchedRule = crp.getContextRuleById(conTextSpan.ruleId);
             if (matchedRule.triggerType == TriggerTypes.trigger && conTextSpan.matchedDirection == direction) {
                 if (direction == TriggerTypes.forward || direction == TriggerTypes.both) {
                     if (conceptBegin - ent.getValue().begin <= matchedRule.windowSize)
@@ -196,7 +438,7 @@ public class FastContext implements ConTextAdvancedInterface {
                                  LinkedHashMap<String, ConTextSpan> contexts, TriggerTypes direction,
                                  int conceptBegin) {
         for (Map.Entry<String, ConTextSpan> ent : matchedRules.entrySet()) {
-            ContextRule matchedRule = crp.rules.get(ent.getValue().ruleId);
+            ContextRule matchedRule = crp.getContextRuleById(ent.getValue().ruleId);
             ConTextSpan relativeSpan = ent.getValue();
             if (matchedRule.triggerType == TriggerTypes.trigger && relativeSpan.matchedDirection == direction) {
                 if (direction == TriggerTypes.forward || direction == TriggerTypes.both) {
@@ -212,6 +454,66 @@ public class FastContext implements ConTextAdvancedInterface {
         }
     }
 
+    /**
+     * The same as {@link #applyConTexts(List, HashMap, LinkedHashMap, TriggerTypes, int)}, but reads the offsets from
+     * the interned tokens.
+     *
+     * @param tokens        interned tokens of the sentence
+     * @param contextOffset the position of the first token of the pre or post context
+     * @param matchedRules  matched rules with positions relative to contextOffset
+     * @param contexts      matched contexts
+     * @param direction     forward for pre context, backward for post context
+     * @param conceptBegin  the position of the first token of the concept, relative to the pre context
+     */
+    protected void applyConTexts(InternedTokens tokens, int contextOffset, HashMap<String, ConTextSpan> matchedRules,
+                                 LinkedHashMap<String, ConTextSpan> contexts, TriggerTypes direction,
+                                 int conceptBegin) {
+        for (Map.Entry<String, ConTextSpan> ent : matchedRules.entrySet()) {
+            ContextRule matchedRule = crp.getContextRuleById(ent.getValue().ruleId);
+            ConTextSpan relativeSpan = ent.getValue();
+            if (matchedRule.triggerType == TriggerTypes.trigger && relativeSpan.matchedDirection == direction) {
+                if (direction == TriggerTypes.forward || direction == TriggerTypes.both) {
+                    if (conceptBegin - ent.getValue().end <= matchedRule.windowSize)
+                        contexts.put(matchedRule.modifier, new ConTextSpan(tokens.getBegin(contextOffset + relativeSpan.begin), tokens.getEnd(contextOffset + relativeSpan.end), relativeSpan.ruleId));
+                } else if (direction == TriggerTypes.backward || direction == TriggerTypes.both) {
+                    if (ent.getValue().begin <= matchedRule.windowSize) {
+                        contexts.put(matchedRule.modifier, new ConTextSpan(tokens.getBegin(contextOffset + relativeSpan.begin), tokens.getEnd(contextOffset + relativeSpan.end), relativeSpan.ruleId));
+                    }
+                }
+
+            }
+        }
+    }
+
+    /**
+     * The same as {@link #applyConTexts(InternedTokens, int, HashMap, LinkedHashMap, TriggerTypes, int)}, but writes
+     * the contexts into the reusable spans of the workspace.
+     *
+     * @param tokens        interned tokens of the sentence
+     * @param contextOffset the position of the first token of the pre or post context
+     * @param matchedRules  matched rules with positions relative to contextOffset
+     * @param workspace     the workspace to store the contexts
+     * @param direction     forward for pre context, backward for post context
+     * @param conceptBegin  the position of the first token of the concept, relative to the pre context
+     */
+    protected void applyConTexts(InternedTokens tokens, int contextOffset, DeterminantMatches matchedRules,
+                                 ConTextWorkspace workspace, TriggerTypes direction, int conceptBegin) {
+        CompiledContextRules compiled = matchedRules.rules;
+        for (int i = 0; i < matchedRules.size(); i++) {
+            ConTextSpan relativeSpan = matchedRules.getSpan(i);
+            int ruleId = relativeSpan.ruleId;
+            if (crp.getTriggerType(compiled, ruleId) == ContextRuleProcessor.TRIGGER
+                    && relativeSpan.matchedDirection == direction) {
+                int windowSize = crp.getWindowSize(compiled, ruleId);
+                if ((direction == TriggerTypes.forward && conceptBegin - relativeSpan.end <= windowSize)
+                        || (direction == TriggerTypes.backward && relativeSpan.begin <= windowSize)) {
+                    workspace.putContext(workspace.getRuleModifierId(ruleId))
+                            .reset(tokens.getBegin(contextOffset + relativeSpan.begin), tokens.getEnd(contextOffset + relativeSpan.end), relativeSpan.ruleId);
+                }
+            }
+        }
+    }
+
     protected ArrayList<String> convertOutput(LinkedHashMap<String, ConTextSpan> contexts) {
         ArrayList<String> output = new ArrayList<>();
         output.addAll(contexts.keySet());
@@ -220,36 +522,19 @@ public class FastContext implements ConTextAdvancedInterface {
 
     public LinkedHashMap<String, ConTextSpan> updateFeaturesWEvidence(String conceptTypeName, LinkedHashMap<String, ConTextSpan> contexts) {
         LinkedHashMap<String, ConTextSpan> contextFeatures = new LinkedHashMap<>();
-        conceptTypeName = DeterminantValueSet.checkNameSpace(conceptTypeName);
 //      set all related features to default values
-        while (!crp.conceptFeaturesMap.containsKey(conceptTypeName) && !conceptTypeName.equals(Annotation.class.getSimpleName())) {
-            try {
-                conceptTypeName = Class.forName(conceptTypeName).getSuperclass().getCanonicalName();
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-            }
-        }
-        for (String featureName : crp.conceptFeaturesMap.get(conceptTypeName).getNewFeatureNames()) {
+        for (String featureName : getFeatureNames(conceptTypeName)) {
             //  set ruleId to -1 to indicate this is a default modifier value
             contextFeatures.put(featureName, new ConTextSpan(-1, -1, -1));
         }
-        //      add linguistic features
-        if (crp.conceptFeaturesMap.containsKey("ANY")) {
-            for (String featureName : crp.conceptFeaturesMap.get("ANY").getNewFeatureNames()) {
-                //  set ruleId to -1 to indicate this is a default modifier value
-                contextFeatures.put(featureName, new ConTextSpan(-1, -1, -1));
-            }
-        } else if (crp.conceptFeaturesMap.containsKey("Annotation")) {
-            for (String featureName : crp.conceptFeaturesMap.get("Annotation").getNewFeatureNames()) {
-                //  set ruleId to -1 to indicate this is a default modifier value
-                contextFeatures.put(featureName, new ConTextSpan(-1, -1, -1));
-            }
-        }
 
         for (String modifierValue : contexts.keySet()) {
             String featureName = crp.valueFeatureNameMap.get(modifierValue);
+            //  only the features of the concept type are filled, whichever rules have been matched
+            if (!contextFeatures.containsKey(featureName))
+                continue;
             ContextRule matchedConTextRule = crp.getContextRuleById(contexts.get(modifierValue).ruleId);
-            if (contextFeatures.containsKey(featureName) && contextFeatures.get(featureName).ruleId != -1) {
+            if (contextFeatures.get(featureName).ruleId != -1) {
                 ContextRule existingConTextRule = crp.getContextRuleById(contextFeatures.get(featureName).ruleId);
                 String existingModifier = existingConTextRule.modifier;
                 if (crp.valueWeightMap.get(existingModifier) > crp.valueWeightMap.get(modifierValue)
@@ -263,6 +548,72 @@ public class FastContext implements ConTextAdvancedInterface {
         return contextFeatures;
     }
 
+    /**
+     * The same as {@link #updateFeaturesWEvidence(String, LinkedHashMap)}, but reads the contexts from and writes the
+     * features into the workspace.
+     *
+     * @param conceptTypeName concept type name
+     * @param workspace       the workspace that holds the matched contexts
+     * @return the workspace, read the features through {@link ConTextWorkspace#getFeature(String)}
+     */
+    public ConTextWorkspace updateFeaturesWEvidence(String conceptTypeName, ConTextWorkspace workspace) {
+        int[] featureIds = workspace.conceptFeatureIds.get(conceptTypeName);
+        if (featureIds == null) {
+            ArrayList<String> featureNames = getFeatureNames(conceptTypeName);
+            featureIds = new int[featureNames.size()];
+            for (int i = 0; i < featureIds.length; i++)
+                featureIds[i] = workspace.getFeatureId(featureNames.get(i));
+            workspace.conceptFeatureIds.put(conceptTypeName, featureIds);
+        }
+        workspace.clearFeatures();
+        for (int featureId : featureIds) {
+            //  set ruleId to -1 to indicate this is a default modifier value
+            workspace.putFeature(featureId).reset(-1, -1, -1);
+        }
+        for (int i = 0; i < workspace.contextCount; i++) {
+            int modifierId = workspace.contextOrder[i];
+            int featureId = workspace.modifierFeatureIds[modifierId];
+            if (featureId == -1)
+                continue;
+            ConTextSpan existing = workspace.getFeatureById(featureId);
+            //  only the features of the concept type are filled, they have been set to the default values above
+            if (existing == null)
+                continue;
+            if (existing.ruleId != -1
+                    && workspace.modifierWeights[workspace.getRuleModifierId(existing.ruleId)]
+                    > workspace.modifierWeights[modifierId])
+                continue;
+            workspace.putFeature(featureId).copyFrom(workspace.contextSpans[modifierId]);
+        }
+        return workspace;
+    }
+
+    /**
+     * @param conceptTypeName concept type name, resolved to its closest super type that has features defined
+     * @return the feature names of the concept type, followed by the features that apply to any concept
+     */
+    protected ArrayList<String> getFeatureNames(String conceptTypeName) {
+        conceptTypeName = DeterminantValueSet.checkNameSpace(conceptTypeName);
+        while (!crp.conceptFeaturesMap.containsKey(conceptTypeName) && !conceptTypeName.equals(Annotation.class.getSimpleName())) {
+            try {
+                conceptTypeName = Class.forName(conceptTypeName).getSuperclass().getCanonicalName();
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+            }
+        }
+        ArrayList<String> featureNames = new ArrayList<>(crp.conceptFeaturesMap.get(conceptTypeName).getNewFeatureNames());
+        //      add linguistic features
+        if (crp.conceptFeaturesMap.containsKey("ANY")) {
+            featureNames.addAll(crp.conceptFeaturesMap.get("ANY").getNewFeatureNames());
+        } else if (crp.conceptFeaturesMap.containsKey("Annotation")) {
+            featureNames.addAll(crp.conceptFeaturesMap.get("Annotation").getNewFeatureNames());
+        }
+        Set<String> requestedFeatures = crp.getRequestedFeatures();
+        if (requestedFeatures != null)
+            featureNames.retainAll(requestedFeatures);
+        return featureNames;
+    }
+
     public LinkedHashMap<String, String> updateFeaturesValues(String conceptTypeName, LinkedHashMap<String, ConTextSpan> contexts) {
         LinkedHashMap<String, String> featureValueMap = (LinkedHashMap<String, String>) crp.featureDefaultValueMap.clone();
         //      set all related features to default values
@@ -303,6 +654,140 @@ public class FastContext implements ConTextAdvancedInterface {
     }
 
 
+    /**
+     * Only the rules of the concept type's features are matched, see {@link #getConceptRules(String)}.
+     */
+    public LinkedHashMap<String, ConTextSpan> getFullContextFeatures(String conceptTypeName, InternedTokens tokens, int conceptStartPosition,
+                                                                     int conceptEndPosition) {
+        LinkedHashMap<String, ConTextSpan> contexts = processContextWEvidence(tokens, conceptStartPosition,
+                conceptEndPosition, getConceptRules(conceptTypeName, tokens.getRules()));
+        return updateFeaturesWEvidence(conceptTypeName, contexts);
+    }
+
+    /**
+     * The compiled rules of a concept type: a view ({@link CompiledContextRules#withModifiers(Collection)}) that has
+     * only the rules whose modifiers belong to the features of the concept type (see
+     * {@link #getFeatureNames(String)}, the features of ANY or Annotation included), or the compiled rules themselves
+     * if all the rules do. The views are cached per concept type and built again when the rules change, the tokens
+     * interned with the compiled rules can be matched with them.
+     *
+     * @param conceptTypeName concept type name
+     * @return the compiled rules of the concept type
+     */
+    public CompiledContextRules getConceptRules(String conceptTypeName) {
+        return getConceptRules(conceptTypeName, null);
+    }
+
+    /**
+     * @param compiled the compiled rules that the tokens are interned with, null for the current ones
+     */
+    protected CompiledContextRules getConceptRules(String conceptTypeName, CompiledContextRules compiled) {
+        if (compiled == null)
+            compiled = crp.getCompiledRules();
+        //  {the compiled rules that the view is made of, the view}
+        CompiledContextRules[] cached = conceptRules.get(conceptTypeName);
+        if (cached != null && cached[0] == compiled)
+            return cached[1];
+        ArrayList<String> featureNames = getFeatureNames(conceptTypeName);
+        HashSet<String> modifiers = new HashSet<>();
+        for (Map.Entry<String, String> entry : crp.valueFeatureNameMap.entrySet())
+            if (featureNames.contains(entry.getValue()))
+                modifiers.add(entry.getKey());
+        CompiledContextRules view = compiled;
+        for (ContextRule rule : compiled.rulesById) {
+            if (rule != null && !modifiers.contains(rule.modifier)) {
+                view = compiled.withModifiers(modifiers);
+                break;
+            }
+        }
+        conceptRules.put(conceptTypeName, new CompiledContextRules[]{compiled, view});
+        return view;
+    }
+
+    /**
+     * The same as {@link #getFullContextFeatures(String, InternedTokens, int, int)}, but allocation free: the results
+     * are stored in the caller's workspace and are only valid until the next call with the same workspace.
+     *
+     * @param conceptTypeName      concept type name
+     * @param tokens               interned tokens of the sentence
+     * @param conceptStartPosition the position of the first token of the concept
+     * @param conceptEndPosition   the position of the last token of the concept
+     * @param workspace            the workspace created by {@link #newWorkspace()}
+     * @return the workspace, read the features through {@link ConTextWorkspace#getFeature(String)}
+     */
+    public ConTextWorkspace getFullContextFeatures(String conceptTypeName, InternedTokens tokens, int conceptStartPosition,
+                                                   int conceptEndPosition, ConTextWorkspace workspace) {
+        processContextWEvidence(tokens, conceptStartPosition, conceptEndPosition,
+                getConceptRules(conceptTypeName, tokens.getRules()), workspace);
+        return updateFeaturesWEvidence(conceptTypeName, workspace);
+    }
+
+
+    /**
+     * The sentence is matched once with all the rules, for the concepts of any type, but only the features of the
+     * concept type are filled, the same as {@link #getFullContextFeatures(String, InternedTokens, int, int)}.
+     */
+    public LinkedHashMap<String, ConTextSpan> getFullContextFeatures(String conceptTypeName, SentenceMatches sentence, int conceptStartPosition,
+                                                                     int conceptEndPosition) {
+        LinkedHashMap<String, ConTextSpan> contexts = processContextWEvidence(sentence, conceptStartPosition, conceptEndPosition);
+        return updateFeaturesWEvidence(conceptTypeName, contexts);
+    }
+
+    /**
+     * The same as {@link #getFullContextFeatures(String, InternedTokens, int, int, ConTextWorkspace)}, but resolves
+     * the concept from the matches of its sentence ({@link #matchSentence(InternedTokens)}), see
+     * {@link #getFullContextFeatures(String, SentenceMatches, int, int)}.
+     *
+     * @param conceptTypeName      concept type name
+     * @param sentence             the matches of the sentence
+     * @param conceptStartPosition the position of the first token of the concept
+     * @param conceptEndPosition   the position of the last token of the concept
+     * @param workspace            the workspace created by {@link #newWorkspace()}
+     * @return the workspace, read the features through {@link ConTextWorkspace#getFeature(String)}
+     */
+    public ConTextWorkspace getFullContextFeatures(String conceptTypeName, SentenceMatches sentence, int conceptStartPosition,
+                                                   int conceptEndPosition, ConTextWorkspace workspace) {
+        processContextWEvidence(sentence, conceptStartPosition, conceptEndPosition, workspace);
+        return updateFeaturesWEvidence(conceptTypeName, workspace);
+    }
+
+
+    /**
+     * @param ruleLine a rule in the format of the rule file, e.g. "denies|forward|trigger|negated|10"
+     * @return the id of the new rule
+     * @see ContextRuleProcessor#addRule(String)
+     */
+    public int addRule(String ruleLine) {
+        return crp.addRule(ruleLine);
+    }
+
+    /**
+     * @param id the rule id
+     * @return false if there is no such rule
+     * @see ContextRuleProcessor#removeRule(int)
+     */
+    public boolean removeRule(int id) {
+        return crp.removeRule(id);
+    }
+
+    /**
+     * @param id       the rule id
+     * @param ruleLine the new rule in the format of the rule file
+     * @return false if there is no such rule
+     * @see ContextRuleProcessor#updateRule(int, String)
+     */
+    public boolean updateRule(int id, String ruleLine) {
+        return crp.updateRule(id, ruleLine);
+    }
+
+    /**
+     * @return the size and the shape of the compiled rules, e.g. to see the memory footprint of a rule set
+     * @see RuleStatistics
+     */
+    public RuleStatistics getRuleStatistics() {
+        return crp.getRuleStatistics();
+    }
+
     public ContextRule getContextRuleByRuleId(int id) {
         return crp.rules.getOrDefault(id, null);
     }
@@ -312,7 +797,7 @@ public class FastContext implements ConTextAdvancedInterface {
         if (id == -1) {
             value = crp.featureDefaultValueMap.get(featureName);
         } else {
-            value = crp.rules.get(id).modifier;
+            value = crp.getContextRuleById(id).modifier;
         }
         return value;
     }
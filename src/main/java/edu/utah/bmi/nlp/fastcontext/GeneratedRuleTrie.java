@@ -0,0 +1,60 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+/**
+ * The base class of the tries generated by {@link RuleMatcherGenerator}: the same arrays as the trie that the class
+ * is generated from, but the literal token steps ({@link #getTokenState(int, int)}) are compiled into switches over
+ * the states and the token ids of that one rule set, so that the JIT sees the transitions as code instead of array
+ * lookups.
+ * <p>
+ * A generated class only works for the trie that it is generated from, its constructor checks the fingerprint of the
+ * trie that it is given (see {@link #getFingerprint(DoubleArrayRuleTrie)}), so a class generated at build time fails
+ * fast once the rules change.
+ */
+public abstract class GeneratedRuleTrie extends DoubleArrayRuleTrie {
+
+    /**
+     * @param trie        the compiled trie that the class is generated from, its arrays are shared (an
+     *                    {@link OffHeapRuleTrie} is copied onto the heap first)
+     * @param fingerprint the fingerprint of the trie when the class was generated
+     * @throws IllegalArgumentException if the trie is not the one that the class was generated from
+     */
+    protected GeneratedRuleTrie(DoubleArrayRuleTrie trie, long fingerprint) {
+        super(trie instanceof OffHeapRuleTrie ? ((OffHeapRuleTrie) trie).toHeap() : trie);
+        if (getFingerprint(this) != fingerprint)
+            throw new IllegalArgumentException("The rule trie is not compiled from the same rules as " +
+                    getClass().getName() + " was generated from, generate it again.");
+    }
+
+    /**
+     * @param trie a compiled trie
+     * @return a hash of the states and the transitions of the trie, which the generated code depends on
+     */
+    public static long getFingerprint(DoubleArrayRuleTrie trie) {
+        int slots = trie.getSlotCount(), size = trie.size();
+        long hash = 31L * slots + size;
+        for (int state = 0; state < size; state++) {
+            if (state < slots)
+                hash = 31L * (31L * hash + trie.getBase(state)) + trie.getCheck(state);
+            hash = 31L * hash + trie.getTailToken(state);
+            hash = 31L * hash + (trie.hasEnd(state) ? 1 : 0);
+        }
+        return hash ^ (hash >>> 29);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import java.util.Arrays;
+
+/**
+ * A token sequence that has been mapped to the rule vocabulary ids of a compiled rule trie. Tokens are interned once
+ * (e.g. once per sentence or document), then any number of concepts can be matched against the same ids without
+ * hashing the token strings again. Tokens that don't show up in any rule get {@link DoubleArrayRuleTrie#UNKNOWN_TOKEN}.
+ * <p>
+ * The arrays are reused across {@link #clear()} calls, so one instance can be kept per thread.
+ *
+ * @see ContextRuleProcessor#internTokens(java.util.List, InternedTokens)
+ */
+public class InternedTokens {
+    //  suffix id of the tokens that are not numbers, or are plain numbers without a suffix like "-days"
+    public static final int NO_SUFFIX = Integer.MIN_VALUE;
+    //  token classes, computed once when the token is interned:
+    //  WORD: not a blank token, "\w+" matches it; UPPER_CASE: "\W+" matches it; LEADING_DIGIT: starts with a digit;
+    //  NUMBER: a leading number has been parsed, "\>" and "\<" apply; NUMBER_SUFFIX: the number is followed by a
+    //  suffix like "-days", which is matched instead of the next token
+    public static final byte WORD = 1, UPPER_CASE = 2, LEADING_DIGIT = 4, NUMBER = 8, NUMBER_SUFFIX = 16;
+
+    //  the compiled rules that the ids belong to
+    protected CompiledContextRules rules;
+    protected int size = 0;
+    protected int[] ids, begins, ends;
+    //  token text as given (never case folded, the ids are looked up with case folding instead)
+    protected String[] texts;
+    //  token classes, see WORD, UPPER_CASE, LEADING_DIGIT, NUMBER and NUMBER_SUFFIX
+    protected byte[] flags;
+    //  the leading number of a numeric token (NaN for other tokens) and the token id of its suffix, e.g. "30-days"
+    protected double[] numbers;
+    protected int[] suffixIds;
+
+    public InternedTokens() {
+        this(64);
+    }
+
+    public InternedTokens(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ids = new int[capacity];
+        begins = new int[capacity];
+        ends = new int[capacity];
+        texts = new String[capacity];
+        flags = new byte[capacity];
+        numbers = new double[capacity];
+        suffixIds = new int[capacity];
+    }
+
+    public void clear() {
+        Arrays.fill(texts, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * @param rules the compiled rules that the ids of the tokens added next belong to
+     */
+    public void clear(CompiledContextRules rules) {
+        clear();
+        this.rules = rules;
+    }
+
+    public void add(int id, String text, int begin, int end) {
+        add(id, text, begin, end, id == DoubleArrayRuleTrie.BLANK_TOKEN ? 0 : WORD, Double.NaN, NO_SUFFIX);
+    }
+
+    /**
+     * @param id        token id in the rule vocabulary
+     * @param text      token text
+     * @param begin     begin offset
+     * @param end       end offset
+     * @param flags     token classes, see WORD, UPPER_CASE, LEADING_DIGIT, NUMBER and NUMBER_SUFFIX
+     * @param number    the leading number of the token, or NaN if the token doesn't start with a digit
+     * @param suffixId  the token id of the suffix after the number (e.g. "days" of "30-days"), or NO_SUFFIX
+     */
+    public void add(int id, String text, int begin, int end, int flags, double number, int suffixId) {
+        if (size == ids.length)
+            grow();
+        ids[size] = id;
+        texts[size] = text;
+        this.flags[size] = (byte) flags;
+        begins[size] = begin;
+        ends[size] = end;
+        numbers[size] = number;
+        suffixIds[size] = suffixId;
+        size++;
+    }
+
+    /**
+     * Copy one token from another interned sequence, e.g. to assemble a concept's context from a document's tokens.
+     *
+     * @param source the interned sequence to copy from
+     * @param i      the position of the token in source
+     */
+    public void add(InternedTokens source, int i) {
+        rules = source.rules;
+        add(source.ids[i], source.texts[i], source.begins[i], source.ends[i], source.flags[i], source.numbers[i],
+                source.suffixIds[i]);
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        begins = Arrays.copyOf(begins, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        texts = Arrays.copyOf(texts, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+        suffixIds = Arrays.copyOf(suffixIds, capacity);
+    }
+
+    public CompiledContextRules getRules() {
+        return rules;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    public String getText(int i) {
+        return texts[i];
+    }
+
+    public int getBegin(int i) {
+        return begins[i];
+    }
+
+    public int getEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * @param i the position of the token
+     * @return the token classes, see WORD, UPPER_CASE, LEADING_DIGIT, NUMBER and NUMBER_SUFFIX
+     */
+    public int getFlags(int i) {
+        return flags[i];
+    }
+
+    public boolean isBlank(int i) {
+        return (flags[i] & WORD) == 0;
+    }
+
+    public boolean isUpperCase(int i) {
+        return (flags[i] & UPPER_CASE) != 0;
+    }
+
+    public boolean isNumber(int i) {
+        return (flags[i] & NUMBER) != 0;
+    }
+
+    public double getNumber(int i) {
+        return numbers[i];
+    }
+
+    public int getSuffixId(int i) {
+        return suffixIds[i];
+    }
+}
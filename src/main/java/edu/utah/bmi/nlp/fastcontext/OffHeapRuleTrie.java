@@ -0,0 +1,365 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import java.nio.*;
+
+/**
+ * A {@link DoubleArrayRuleTrie} whose arrays live outside of the Java heap, in one direct or memory-mapped
+ * ByteBuffer, and are read from there while matching. The garbage collector never scans them, and the JVMs that map
+ * the same {@link ContextRuleSnapshot} share its pages through the page cache instead of each keeping a copy.
+ * <p>
+ * The buffer has a header of 8 ints (the number of slots, the length of the token table, the number of tokens, the
+ * number of token characters, the length of the END entries, the number of thresholds, the length of the tails and an
+ * unused int), then the thresholds (doubles), the int arrays (base, check, endIndex, compareIndex, compareCount, ends,
+ * thresholdStates, tails, tokenTable, and the offsets of the tokens in the characters), the token characters and the
+ * flags, in big-endian order. Only the determinant strings, which are a few per modifier, stay on the heap.
+ * <p>
+ * The trie cannot be edited in place: {@link DoubleArrayRuleTrie.Editor} edits a heap copy (see {@link #toHeap()}).
+ */
+public class OffHeapRuleTrie extends DoubleArrayRuleTrie {
+    protected static final int LAYOUT_HEADER_SIZE = 8 * 4;
+
+    protected final ByteBuffer buffer;
+    protected final int slots;
+    protected final IntBuffer base, check, endIndex, compareIndex, compareCount, ends, thresholdStates, tails,
+            tokenTable, tokenOffsets;
+    protected final DoubleBuffer thresholds;
+    protected final CharBuffer tokenChars;
+    protected final ByteBuffer flags;
+    protected final int tokenMask;
+
+    /**
+     * @param buffer       the layout of a trie, from its position to its limit; it is not copied, and must not be
+     *                     changed afterwards
+     * @param determinants determinant id -&gt; determinant string
+     */
+    protected OffHeapRuleTrie(ByteBuffer buffer, String[] determinants) {
+        super(null, null, determinants, null, null, null, null, null, null, null, null, null, null);
+        this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer header = this.buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        slots = header.getInt();
+        int tokenTableLength = header.getInt(), tokenCount = header.getInt(), charCount = header.getInt(),
+                endsLength = header.getInt(), thresholdCount = header.getInt(), tailsLength = header.getInt();
+        int offset = LAYOUT_HEADER_SIZE;
+        thresholds = view(offset, thresholdCount * 8).asDoubleBuffer();
+        offset += thresholdCount * 8;
+        base = view(offset, slots * 4).asIntBuffer();
+        offset += slots * 4;
+        check = view(offset, slots * 4).asIntBuffer();
+        offset += slots * 4;
+        endIndex = view(offset, slots * 4).asIntBuffer();
+        offset += slots * 4;
+        compareIndex = view(offset, slots * 4).asIntBuffer();
+        offset += slots * 4;
+        compareCount = view(offset, slots * 4).asIntBuffer();
+        offset += slots * 4;
+        ends = view(offset, endsLength * 4).asIntBuffer();
+        offset += endsLength * 4;
+        thresholdStates = view(offset, thresholdCount * 4).asIntBuffer();
+        offset += thresholdCount * 4;
+        tails = view(offset, tailsLength * 4).asIntBuffer();
+        offset += tailsLength * 4;
+        tokenTable = view(offset, tokenTableLength * 4).asIntBuffer();
+        offset += tokenTableLength * 4;
+        tokenOffsets = view(offset, (tokenCount + 1) * 4).asIntBuffer();
+        offset += (tokenCount + 1) * 4;
+        tokenChars = view(offset, charCount * 2).asCharBuffer();
+        offset += charCount * 2;
+        flags = view(offset, slots);
+        tokenMask = tokenTableLength - 1;
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset).limit(offset + length);
+        return view.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * @param trie a compiled trie
+     * @return the trie copied into a direct buffer, or the trie itself if it is off the heap already
+     */
+    public static OffHeapRuleTrie copyOf(DoubleArrayRuleTrie trie) {
+        if (trie instanceof OffHeapRuleTrie)
+            return (OffHeapRuleTrie) trie;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(getLayoutSize(trie));
+        writeLayout(trie, buffer);
+        buffer.flip();
+        return new OffHeapRuleTrie(buffer, trie.determinants);
+    }
+
+    /**
+     * @param trie a compiled trie
+     * @return the layout of the trie, from the position to the limit of the returned buffer; the buffer of an
+     * OffHeapRuleTrie is shared, not copied
+     */
+    protected static ByteBuffer getLayout(DoubleArrayRuleTrie trie) {
+        if (trie instanceof OffHeapRuleTrie)
+            return ((OffHeapRuleTrie) trie).buffer.duplicate();
+        ByteBuffer buffer = ByteBuffer.allocate(getLayoutSize(trie));
+        writeLayout(trie, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    protected static int getLayoutSize(DoubleArrayRuleTrie trie) {
+        int charCount = 0;
+        for (String token : trie.vocabulary)
+            charCount += token.length();
+        long size = LAYOUT_HEADER_SIZE + 8L * trie.thresholds.length + 4L * (5L * trie.base.length + trie.ends.length
+                + trie.thresholdStates.length + trie.tails.length + trie.tokenTable.length + trie.vocabulary.length + 1)
+                + 2L * charCount + trie.flags.length;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The compiled rules need " + size
+                    + " bytes, more than a buffer can hold.");
+        return (int) size;
+    }
+
+    private static void writeLayout(DoubleArrayRuleTrie trie, ByteBuffer buffer) {
+        int charCount = 0;
+        for (String token : trie.vocabulary)
+            charCount += token.length();
+        buffer.putInt(trie.base.length).putInt(trie.tokenTable.length).putInt(trie.vocabulary.length)
+                .putInt(charCount).putInt(trie.ends.length).putInt(trie.thresholds.length).putInt(trie.tails.length)
+                .putInt(0);
+        for (double threshold : trie.thresholds)
+            buffer.putDouble(threshold);
+        for (int[] values : new int[][]{trie.base, trie.check, trie.endIndex, trie.compareIndex, trie.compareCount,
+                trie.ends, trie.thresholdStates, trie.tails, trie.tokenTable}) {
+            buffer.asIntBuffer().put(values);
+            buffer.position(buffer.position() + values.length * 4);
+        }
+        int tokenOffset = 0;
+        for (String token : trie.vocabulary) {
+            buffer.putInt(tokenOffset);
+            tokenOffset += token.length();
+        }
+        buffer.putInt(tokenOffset);
+        for (String token : trie.vocabulary)
+            for (int i = 0; i < token.length(); i++)
+                buffer.putChar(token.charAt(i));
+        buffer.put(trie.flags);
+    }
+
+    /**
+     * @return the same trie with its arrays on the heap, e.g. to edit it
+     */
+    public DoubleArrayRuleTrie toHeap() {
+        String[] vocabulary = new String[tokenOffsets.capacity() - 1];
+        char[] chars = new char[tokenChars.capacity()];
+        tokenChars.duplicate().get(chars);
+        for (int id = 0; id < vocabulary.length; id++)
+            vocabulary[id] = new String(chars, tokenOffsets.get(id), tokenOffsets.get(id + 1) - tokenOffsets.get(id));
+        byte[] flags = new byte[slots];
+        this.flags.duplicate().get(flags);
+        double[] thresholds = new double[this.thresholds.capacity()];
+        this.thresholds.duplicate().get(thresholds);
+        return new DoubleArrayRuleTrie(vocabulary, toArray(tokenTable), determinants, toArray(base), toArray(check),
+                flags, toArray(endIndex), toArray(ends), toArray(compareIndex), toArray(compareCount), thresholds,
+                toArray(thresholdStates), toArray(tails));
+    }
+
+    private static int[] toArray(IntBuffer buffer) {
+        int[] values = new int[buffer.capacity()];
+        buffer.duplicate().get(values);
+        return values;
+    }
+
+    /**
+     * @return the bytes of the buffer that the trie is read from
+     */
+    public long getOffHeapBytes() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public int getTokenId(CharSequence text, int begin, int end, boolean ignoreCase) {
+        int slot = foldedHash(text, begin, end) & tokenMask;
+        int id;
+        while ((id = tokenTable.get(slot)) != UNKNOWN_TOKEN) {
+            if (sameToken(id, text, begin, end, ignoreCase))
+                return id;
+            slot = (slot + 1) & tokenMask;
+        }
+        return UNKNOWN_TOKEN;
+    }
+
+    private boolean sameToken(int id, CharSequence text, int begin, int end, boolean ignoreCase) {
+        int offset = tokenOffsets.get(id);
+        if (tokenOffsets.get(id + 1) - offset != end - begin)
+            return false;
+        for (int i = begin; i < end; i++) {
+            char c = text.charAt(i);
+            if (ignoreCase)
+                c = Character.toLowerCase(c);
+            if (c != tokenChars.get(offset++))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int getTokenState(int state, int tokenId) {
+        if (tokenId < 0)
+            return -1;
+        if (state >= slots)
+            return tails.get(state - slots) == tokenId ? state + 1 : -1;
+        int next = getChild(state, tokenId + FIRST_TOKEN_LABEL);
+        if (next == -1 && (flags.get(state) & HAS_TAIL) != 0 && tails.get(base.get(state)) == tokenId)
+            return slots + base.get(state) + 1;
+        return next;
+    }
+
+    @Override
+    public int getTailToken(int state) {
+        if (state >= slots)
+            return Math.max(tails.get(state - slots), -1);
+        return (flags.get(state) & HAS_TAIL) == 0 ? -1 : tails.get(base.get(state));
+    }
+
+    @Override
+    public int getWordState(int state) {
+        return (getFlags(state) & HAS_WORD) == 0 ? -1 : getChild(state, WORD_LABEL);
+    }
+
+    @Override
+    public int getUpperCaseWordState(int state) {
+        return (getFlags(state) & HAS_UPPER_CASE_WORD) == 0 ? -1 : getChild(state, UPPER_CASE_WORD_LABEL);
+    }
+
+    @Override
+    public int getGreaterThanState(int state) {
+        return (getFlags(state) & HAS_GREATER_THAN) == 0 ? -1 : getChild(state, GREATER_THAN_LABEL);
+    }
+
+    @Override
+    public int getLessThanState(int state) {
+        return (getFlags(state) & HAS_LESS_THAN) == 0 ? -1 : getChild(state, LESS_THAN_LABEL);
+    }
+
+    private int getFlags(int state) {
+        if (state < slots)
+            return flags.get(state);
+        return tails.get(state - slots) < 0 ? HAS_END : 0;
+    }
+
+    @Override
+    protected int getChild(int state, int label) {
+        int next = base.get(state) + label;
+        return next < slots && check.get(next) == state ? next : -1;
+    }
+
+    @Override
+    public int getBase(int state) {
+        return base.get(state);
+    }
+
+    @Override
+    public int getCheck(int state) {
+        return check.get(state);
+    }
+
+    @Override
+    public boolean acceptsUnknownToken(int state) {
+        return (getFlags(state) & ~HAS_TAIL) != 0;
+    }
+
+    @Override
+    public boolean hasSpecialEdge(int state) {
+        return (getFlags(state) & (HAS_WORD | HAS_UPPER_CASE_WORD | HAS_GREATER_THAN | HAS_LESS_THAN)) != 0;
+    }
+
+    @Override
+    public boolean hasEnd(int state) {
+        return (getFlags(state) & HAS_END) != 0;
+    }
+
+    @Override
+    public int getEndCount(int state) {
+        return ends.get(getEndIndex(state));
+    }
+
+    private int getEndIndex(int state) {
+        return state < slots ? endIndex.get(state) : -tails.get(state - slots) - 1;
+    }
+
+    @Override
+    public int getEndDeterminantId(int state, int i) {
+        return ends.get(getEndIndex(state) + 1 + i * 2);
+    }
+
+    @Override
+    public int getEndRuleId(int state, int i) {
+        return ends.get(getEndIndex(state) + 2 + i * 2);
+    }
+
+    @Override
+    public int getThresholdCount(int compareState) {
+        return compareState < slots ? compareCount.get(compareState) : 0;
+    }
+
+    @Override
+    public double getThreshold(int compareState, int i) {
+        return thresholds.get(compareIndex.get(compareState) + i);
+    }
+
+    @Override
+    public int getThresholdState(int compareState, int i) {
+        return thresholdStates.get(compareIndex.get(compareState) + i);
+    }
+
+    @Override
+    public int getThresholdFrom(int compareState, char compare, double value) {
+        return compare == '>' ? 0 : searchThreshold(compareState, value, false);
+    }
+
+    @Override
+    public int getThresholdTo(int compareState, char compare, double value) {
+        return compare == '>' ? searchThreshold(compareState, value, true) : compareCount.get(compareState);
+    }
+
+    private int searchThreshold(int compareState, double value, boolean inclusive) {
+        int offset = compareIndex.get(compareState);
+        int low = 0, high = compareCount.get(compareState);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            double threshold = thresholds.get(offset + middle);
+            if (threshold < value || (!inclusive && threshold == value))
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    @Override
+    public int getVocabularySize() {
+        return tokenOffsets.capacity() - 1;
+    }
+
+    @Override
+    public int size() {
+        return slots + tails.capacity();
+    }
+
+    @Override
+    public int getSlotCount() {
+        return slots;
+    }
+}
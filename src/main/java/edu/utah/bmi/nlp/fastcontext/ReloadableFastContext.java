@@ -0,0 +1,285 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.core.IOUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Holds the current FastContext of a rule file, and replaces it when the rule file changes. The new rules are
+ * compiled in the background, then published with one atomic reference swap: a call that has got the old FastContext
+ * finishes on the old rules, the calls after the swap get the new ones. Nothing is locked on the matching path.
+ * <p>
+ * Get the FastContext once per concept (or per sentence), and keep using it for the whole call. The
+ * {@link ConTextWorkspace}s, {@link InternedTokens} and {@link SentenceMatches} are bound to the FastContext they were
+ * made with, so make new ones when {@link #get()} returns a different FastContext.
+ * <p>
+ * The directory of the rule file is watched (so that a rule file replaced by a rename is seen as well), and a reload
+ * waits until the file has been quiet for the debounce delay, so that an editor's several writes make one reload. If
+ * the new rules cannot be loaded, or the rule file has no rules while the current FastContext has some (an emptied or
+ * truncated file, e.g. a half-finished save), the current FastContext is kept.
+ */
+public class ReloadableFastContext implements Closeable {
+    public static Logger logger = IOUtil.getLogger(ReloadableFastContext.class);
+
+    protected final File ruleFile;
+    //  null: parse the rule file on every reload
+    protected final File snapshotFile;
+    protected final boolean caseSensitive;
+    protected final long debounceMillis;
+    protected final AtomicReference<FastContext> current = new AtomicReference<>();
+    //  matching options of the FastContext, applied to the reloaded ones as well
+    protected volatile boolean useTokenAutomaton = false, scanOutward = false, offHeapTrie = false,
+            generatedMatcher = false, directionTries = false;
+    protected volatile Collection<String> requestedFeatures;
+
+    protected WatchService watchService;
+    protected Thread watcher;
+    //  one background thread loads the rules, for the scheduled and the manual reloads alike, so that reloads never
+    //  overlap and the last one to run publishes the latest rule file
+    protected final ScheduledExecutorService compiler;
+    protected ScheduledFuture<?> pendingReload;
+
+    /**
+     * @param ruleFile       the rule file
+     * @param caseSensitive  whether to match the rules case sensitively
+     * @param debounceMillis how long the rule file has to stay unchanged before it is reloaded
+     */
+    public ReloadableFastContext(String ruleFile, boolean caseSensitive, long debounceMillis) {
+        this(ruleFile, null, caseSensitive, debounceMillis);
+    }
+
+    /**
+     * @param ruleFile       the rule file
+     * @param snapshotFile   the snapshot that is loaded instead of the rule file if it is up to date, and rewritten if
+     *                       not (see {@link ContextRuleSnapshot}); null to always parse the rule file
+     * @param caseSensitive  whether to match the rules case sensitively
+     * @param debounceMillis how long the rule file has to stay unchanged before it is reloaded
+     */
+    public ReloadableFastContext(String ruleFile, String snapshotFile, boolean caseSensitive, long debounceMillis) {
+        this.ruleFile = new File(ruleFile).getAbsoluteFile();
+        this.snapshotFile = snapshotFile == null ? null : new File(snapshotFile);
+        this.caseSensitive = caseSensitive;
+        this.debounceMillis = debounceMillis;
+        this.compiler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FastContext rule reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        current.set(load());
+    }
+
+    /**
+     * @return the FastContext of the latest rules that have been loaded
+     */
+    public FastContext get() {
+        return current.get();
+    }
+
+    /**
+     * Load the rule file now, and publish the new FastContext if the rules can be loaded and are not empty (unless the
+     * current rules are empty as well). The rules are loaded on the background thread, after any reload that is
+     * already running, and the call waits for them.
+     *
+     * @return true if the new rules have been published, false if not or if this has been closed
+     */
+    public boolean reload() {
+        try {
+            return compiler.submit(this::loadAndPublish).get();
+        } catch (RejectedExecutionException e) {
+            logger.warning("The reloading of " + ruleFile + " has been closed, keep the current rules.");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            logger.warning("Cannot load the rules from " + ruleFile + ", keep the current rules: " + e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Load and publish the rules, only on the background thread.
+     */
+    protected boolean loadAndPublish() {
+        if (!ruleFile.isFile()) {
+            logger.warning("Rule file " + ruleFile + " doesn't exist, keep the current rules.");
+            return false;
+        }
+        FastContext fastContext;
+        try {
+            fastContext = load();
+        } catch (RuntimeException e) {
+            logger.warning("Cannot load the rules from " + ruleFile + ", keep the current rules: " + e);
+            return false;
+        }
+        FastContext previous = current.get();
+        if (fastContext.crp.rules.isEmpty() && previous != null && !previous.crp.rules.isEmpty()) {
+            logger.warning("No rule is loaded from " + ruleFile + ", keep the current rules.");
+            return false;
+        }
+        synchronized (this) {
+            //  the options may have been changed while the rules were loading
+            configure(fastContext);
+            current.set(fastContext);
+        }
+        logger.info("Reloaded the rules from " + ruleFile);
+        return true;
+    }
+
+    protected FastContext load() {
+        FastContext fastContext = snapshotFile == null ? new FastContext(ruleFile.getPath(), caseSensitive)
+                : new FastContext(ruleFile.getPath(), snapshotFile.getPath(), caseSensitive, offHeapTrie);
+        configure(fastContext);
+        return fastContext;
+    }
+
+    protected void configure(FastContext fastContext) {
+        fastContext.setUseTokenAutomaton(useTokenAutomaton);
+        fastContext.setScanOutward(scanOutward);
+        fastContext.setOffHeapTrie(offHeapTrie);
+        fastContext.setGeneratedMatcher(generatedMatcher);
+        fastContext.setDirectionTries(directionTries);
+        fastContext.setRequestedFeatures(requestedFeatures);
+    }
+
+    /**
+     * @param useTokenAutomaton see {@link FastContext#setUseTokenAutomaton(boolean)}, applies to the reloaded rules
+     *                          as well
+     */
+    public synchronized void setUseTokenAutomaton(boolean useTokenAutomaton) {
+        this.useTokenAutomaton = useTokenAutomaton;
+        current.get().setUseTokenAutomaton(useTokenAutomaton);
+    }
+
+    /**
+     * @param scanOutward see {@link FastContext#setScanOutward(boolean)}, applies to the reloaded rules as well
+     */
+    public synchronized void setScanOutward(boolean scanOutward) {
+        this.scanOutward = scanOutward;
+        current.get().setScanOutward(scanOutward);
+    }
+
+    /**
+     * @param offHeapTrie see {@link FastContext#setOffHeapTrie(boolean)}, applies to the reloaded rules as well, which
+     *                    are read from the mapped snapshot if there is one
+     */
+    public synchronized void setOffHeapTrie(boolean offHeapTrie) {
+        this.offHeapTrie = offHeapTrie;
+        current.get().setOffHeapTrie(offHeapTrie);
+    }
+
+    /**
+     * @param generatedMatcher see {@link FastContext#setGeneratedMatcher(boolean)}, the class is generated again for
+     *                         the reloaded rules
+     */
+    public synchronized void setGeneratedMatcher(boolean generatedMatcher) {
+        this.generatedMatcher = generatedMatcher;
+        current.get().setGeneratedMatcher(generatedMatcher);
+    }
+
+    /**
+     * @param directionTries see {@link FastContext#setDirectionTries(boolean)}, applies to the reloaded rules as well
+     */
+    public synchronized void setDirectionTries(boolean directionTries) {
+        this.directionTries = directionTries;
+        current.get().setDirectionTries(directionTries);
+    }
+
+    /**
+     * @param featureNames see {@link FastContext#setRequestedFeatures(Collection)}, applies to the reloaded rules as
+     *                     well
+     */
+    public synchronized void setRequestedFeatures(Collection<String> featureNames) {
+        this.requestedFeatures = featureNames;
+        current.get().setRequestedFeatures(featureNames);
+    }
+
+    /**
+     * Start watching the rule file, the rules are reloaded in the background when it changes.
+     *
+     * @throws IOException if the directory of the rule file cannot be watched
+     */
+    public synchronized void watch() throws IOException {
+        if (watchService != null)
+            return;
+        Path directory = ruleFile.toPath().getParent();
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        WatchService service = watchService;
+        watcher = new Thread(() -> watch(service), "FastContext rule watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    protected void watch(WatchService service) {
+        Path fileName = ruleFile.toPath().getFileName();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context()))
+                        changed = true;
+                }
+                if (changed)
+                    scheduleReload();
+                if (!key.reset())
+                    break;
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //  closed
+        }
+    }
+
+    /**
+     * Reload the rules once the rule file has been quiet for the debounce delay, any earlier pending reload is
+     * replaced.
+     */
+    protected synchronized void scheduleReload() {
+        if (pendingReload != null)
+            pendingReload.cancel(false);
+        pendingReload = compiler.schedule(this::loadAndPublish, debounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop watching the rule file, the current FastContext can still be used.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+            watcher.interrupt();
+        }
+        compiler.shutdownNow();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import javax.tools.*;
+import java.io.*;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.*;
+
+/**
+ * Generates a {@link GeneratedRuleTrie} for a compiled rule set: a Java class whose
+ * {@link DoubleArrayRuleTrie#getTokenState(int, int)} is a switch over the states with a nested switch over the token
+ * ids of each state, which javac compiles into tableswitch/lookupswitch instructions. The matching (the trie walk and
+ * the {@link TokenAutomaton}) reads the generated trie the same way as any other trie, so the matches are the same.
+ * <p>
+ * The class is either compiled at runtime ({@link #generate(DoubleArrayRuleTrie)}, which needs a JDK) and defined in
+ * its own class loader, so that it is unloaded together with the rules, or its source is written at build time
+ * ({@link #main(String[])}) and compiled with the rest of the application.
+ * <p>
+ * The JIT does not compile huge methods, so the states are split into methods of at most {@link #MAX_METHOD_CASES}
+ * cases each, dispatched by state range, and a state with more than {@link #MAX_STATE_CASES} children (e.g. the root
+ * of a large rule set) keeps the array lookup of the double array, which is faster than a binary search over its
+ * token ids.
+ */
+public class RuleMatcherGenerator {
+    //  constants: they shape the generated source, which the fingerprint in the class name does not cover
+    public static final int MAX_METHOD_CASES = 512, MAX_STATE_CASES = 64;
+    protected static final String GENERATED_PACKAGE = "edu.utah.bmi.nlp.fastcontext.generated";
+
+    /**
+     * Compile the generated class of a trie at runtime.
+     *
+     * @param trie a compiled trie
+     * @return the generated trie, which shares the arrays of the trie (a trie off the heap is copied onto the heap)
+     * @throws IllegalStateException if there is no system Java compiler (e.g. a JRE) or the class does not compile
+     */
+    public static GeneratedRuleTrie generate(DoubleArrayRuleTrie trie) {
+        if (trie instanceof GeneratedRuleTrie)
+            return (GeneratedRuleTrie) trie;
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            throw new IllegalStateException("The rule matcher can only be generated at runtime on a JDK, there is no " +
+                    "system Java compiler.");
+        String className = GENERATED_PACKAGE + ".RuleTrie" + Long.toHexString(GeneratedRuleTrie.getFingerprint(trie));
+        String source = generateSource(trie, className);
+        HashMap<String, ByteArrayOutputStream> classes = new HashMap<>();
+        StringWriter errors = new StringWriter();
+        boolean compiled;
+        try (StandardJavaFileManager files = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            JavaFileManager inMemory = new ForwardingJavaFileManager<JavaFileManager>(files) {
+                @Override
+                public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                                                           FileObject sibling) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    classes.put(name, bytes);
+                    return new SimpleJavaFileObject(URI.create("bytes:///" + name.replace('.', '/') + kind.extension),
+                            kind) {
+                        @Override
+                        public OutputStream openOutputStream() {
+                            return bytes;
+                        }
+                    };
+                }
+            };
+            JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///"
+                    + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+                @Override
+                public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                    return source;
+                }
+            };
+            compiled = compiler.getTask(errors, inMemory, null,
+                    Arrays.asList("-classpath", getClassPath(), "-g:none", "-proc:none"), null,
+                    Collections.singletonList(sourceFile)).call();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (!compiled)
+            throw new IllegalStateException("The generated rule matcher does not compile:\n" + errors);
+        try {
+            return new GeneratedClassLoader(classes).loadClass(className).asSubclass(GeneratedRuleTrie.class)
+                    .getConstructor(DoubleArrayRuleTrie.class).newInstance(trie);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The class path of the application, and where this class is loaded from, in case the application runs in a
+     * container that loads it from somewhere else.
+     */
+    private static String getClassPath() {
+        String classPath = System.getProperty("java.class.path", "");
+        CodeSource codeSource = GeneratedRuleTrie.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null && "file".equals(codeSource.getLocation().getProtocol())) {
+            try {
+                classPath += File.pathSeparator + Paths.get(codeSource.getLocation().toURI());
+            } catch (Exception e) {
+                DoubleArrayRuleTrie.logger.fine("Cannot add " + codeSource.getLocation() + " to the class path: " + e);
+            }
+        }
+        return classPath;
+    }
+
+    /**
+     * Write the source of the generated class of a trie, to be compiled with the application; the class takes the
+     * trie compiled from the same rules in its constructor.
+     *
+     * @param trie      a compiled trie
+     * @param className the fully qualified name of the class
+     * @param directory the source root, the file is written under the directories of the package
+     * @return the source file
+     */
+    public static File writeSource(DoubleArrayRuleTrie trie, String className, File directory) throws IOException {
+        Path file = directory.toPath().resolve(className.replace('.', File.separatorChar) + ".java");
+        Files.createDirectories(file.getParent());
+        Files.write(file, generateSource(trie, className).getBytes(StandardCharsets.UTF_8));
+        return file.toFile();
+    }
+
+    /**
+     * Generate the source of a rule matcher at build time.
+     *
+     * @param args the rule file, the source root to write to, the fully qualified class name, and optionally "true"
+     *             for case-sensitive rules
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: RuleMatcherGenerator <rule file> <source directory> <class name> [caseSensitive]");
+            return;
+        }
+        boolean caseSensitive = args.length > 3 && Boolean.parseBoolean(args[3]);
+        ContextRuleProcessor processor = new ContextRuleProcessor(args[0], caseSensitive);
+        System.out.println(writeSource(processor.getCompiledRules().getTrie(), args[2], new File(args[1])));
+    }
+
+    /**
+     * @param trie      a compiled trie
+     * @param className the fully qualified name of the class
+     * @return the source of the generated class
+     */
+    public static String generateSource(DoubleArrayRuleTrie trie, String className) {
+        int size = trie.size(), slots = trie.getSlotCount();
+        //  the literal children of each state: the double-array slots whose label is a token, and the tail edges
+        int[] childCount = new int[size + 1];
+        for (int state = 0; state < size; state++) {
+            int parent = state < slots ? trie.getCheck(state) : -1;
+            if (parent >= 0 && state - trie.getBase(parent) >= DoubleArrayRuleTrie.FIRST_TOKEN_LABEL)
+                childCount[parent + 1]++;
+            if (trie.getTailToken(state) != -1)
+                childCount[state + 1]++;
+        }
+        for (int i = 0; i < size; i++)
+            childCount[i + 1] += childCount[i];
+        int[] childTokens = new int[childCount[size]];
+        int[] filled = Arrays.copyOf(childCount, size);
+        for (int state = 0; state < size; state++) {
+            int parent = state < slots ? trie.getCheck(state) : -1;
+            if (parent >= 0 && state - trie.getBase(parent) >= DoubleArrayRuleTrie.FIRST_TOKEN_LABEL)
+                childTokens[filled[parent]++] = state - trie.getBase(parent) - DoubleArrayRuleTrie.FIRST_TOKEN_LABEL;
+            if (trie.getTailToken(state) != -1)
+                childTokens[filled[state]++] = trie.getTailToken(state);
+        }
+
+        int dot = className.lastIndexOf('.');
+        String packageName = dot == -1 ? null : className.substring(0, dot);
+        String simpleName = className.substring(dot + 1);
+        StringBuilder code = new StringBuilder();
+        if (packageName != null)
+            code.append("package ").append(packageName).append(";\n\n");
+        code.append("/**\n * Generated by ").append(RuleMatcherGenerator.class.getName()).append(" from a trie of ")
+                .append(size).append(" states, do not edit.\n */\n");
+        code.append("public final class ").append(simpleName).append(" extends ")
+                .append(GeneratedRuleTrie.class.getName()).append(" {\n\n");
+        code.append("    public ").append(simpleName).append("(").append(DoubleArrayRuleTrie.class.getName())
+                .append(" trie) {\n        super(trie, ").append(GeneratedRuleTrie.getFingerprint(trie))
+                .append("L);\n    }\n");
+
+        //  the first state of each method
+        ArrayList<Integer> methodStates = new ArrayList<>();
+        StringBuilder methods = new StringBuilder();
+        int cases = MAX_METHOD_CASES;
+        for (int state = 0; state < size; state++) {
+            int children = childCount[state + 1] - childCount[state];
+            if (children == 0)
+                continue;
+            int stateCases = children > MAX_STATE_CASES ? 1 : children + 1;
+            if (cases + stateCases > MAX_METHOD_CASES) {
+                if (!methodStates.isEmpty())
+                    methods.append("            default:\n                return -1;\n        }\n    }\n");
+                methods.append("\n    private int states").append(methodStates.size())
+                        .append("(int state, int tokenId) {\n        switch (state) {\n");
+                methodStates.add(methodStates.isEmpty() ? 0 : state);
+                cases = 0;
+            }
+            cases += stateCases;
+            methods.append("            case ").append(state).append(":\n");
+            if (children > MAX_STATE_CASES) {
+                methods.append("                return super.getTokenState(state, tokenId);\n");
+            } else if (children == 1) {
+                int child = trie.getTokenState(state, childTokens[childCount[state]]);
+                methods.append("                return tokenId == ").append(childTokens[childCount[state]])
+                        .append(" ? ").append(child).append(" : -1;\n");
+            } else {
+                methods.append("                switch (tokenId) {\n");
+                for (int i = childCount[state]; i < childCount[state + 1]; i++)
+                    methods.append("                    case ").append(childTokens[i]).append(":\n")
+                            .append("                        return ").append(trie.getTokenState(state, childTokens[i]))
+                            .append(";\n");
+                methods.append("                    default:\n                        return -1;\n                }\n");
+            }
+        }
+        if (!methodStates.isEmpty())
+            methods.append("            default:\n                return -1;\n        }\n    }\n");
+
+        code.append("\n    @Override\n    public int getTokenState(int state, int tokenId) {\n");
+        code.append("        if (tokenId < 0)\n            return -1;\n");
+        if (methodStates.isEmpty())
+            code.append("        return -1;\n");
+        else
+            appendDispatch(code, methodStates, 0, methodStates.size(), "        ");
+        code.append("    }\n").append(methods).append("}\n");
+        return code.toString();
+    }
+
+    /**
+     * A binary search over the first states of the methods [from, to), as nested ifs.
+     */
+    private static void appendDispatch(StringBuilder code, ArrayList<Integer> methodStates, int from, int to,
+                                       String indent) {
+        if (to - from == 1) {
+            code.append(indent).append("return states").append(from).append("(state, tokenId);\n");
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        code.append(indent).append("if (state < ").append(methodStates.get(middle)).append(") {\n");
+        appendDispatch(code, methodStates, from, middle, indent + "    ");
+        code.append(indent).append("}\n");
+        appendDispatch(code, methodStates, middle, to, indent);
+    }
+
+    /**
+     * Defines the compiled generated classes, one loader per generated trie, so that the class can be unloaded once
+     * the rules are replaced.
+     */
+    private static class GeneratedClassLoader extends ClassLoader {
+        private final Map<String, ByteArrayOutputStream> classes;
+
+        GeneratedClassLoader(Map<String, ByteArrayOutputStream> classes) {
+            super(GeneratedRuleTrie.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            ByteArrayOutputStream bytes = classes.get(name);
+            if (bytes == null)
+                throw new ClassNotFoundException(name);
+            return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+        }
+    }
+}
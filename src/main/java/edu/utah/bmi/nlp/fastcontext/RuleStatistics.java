@@ -0,0 +1,196 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.context.common.ContextRule;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeMap;
+
+/**
+ * The size and the shape of a set of compiled rules, see {@link FastContext#getRuleStatistics()}.
+ * <p>
+ * The compiler keeps one trie path per distinct rule text: the "both" rules and the rules of the same text under
+ * different modifiers share their path and only add END entries, a rule with the same text and determinant as a later
+ * rule is shadowed by it, and a rule with a numeric comparator that is not followed by a number is skipped. The paths
+ * of the skipped rules are pruned when the rules are compiled, but the rule edits leave the paths of the removed rules
+ * in place, they are counted as dead states until the rules are compiled again.
+ */
+public class RuleStatistics {
+    //  the rules, and the ones that no match can report: skipped, or shadowed by a later rule of the same text and
+    //  determinant
+    public final int rules, skippedRules, shadowedRules;
+    //  the states in use, the slots of the arrays (used or not), the states that no rule ends under, and the states
+    //  that are path-compressed into the tails instead of taking a slot
+    public final int states, slots, deadStates, tailStates;
+    public final int endEntries, tokens, determinants;
+    //  depth (in rule tokens, a threshold counts as one) -> number of states
+    public final int[] depthHistogram;
+    //  number of children (the thresholds of a comparator included) -> number of states, only the numbers that occur
+    public final TreeMap<Integer, Integer> branchingHistogram = new TreeMap<>();
+    //  an estimate of the bytes that the compiled rules retain: the trie arrays, the token and determinant strings, and
+    //  the token automaton if there is one; the ContextRule objects are not counted
+    public final long retainedBytes;
+    //  the bytes of the direct or mapped buffer of an {@link OffHeapRuleTrie}, which are not in retainedBytes
+    public final long offHeapBytes;
+
+    /**
+     * @param compiled the compiled rules
+     * @param rules    the rules that are compiled into them
+     */
+    protected RuleStatistics(CompiledContextRules compiled, Collection<ContextRule> rules) {
+        DoubleArrayRuleTrie trie = compiled.trie;
+        int size = trie.size();
+        boolean[] compiledIds = new boolean[compiled.rulesById.length];
+        int endEntries = 0;
+        for (int state = 0; state < size; state++) {
+            if (!trie.hasEnd(state))
+                continue;
+            for (int i = 0; i < trie.getEndCount(state); i++) {
+                int ruleId = trie.getEndRuleId(state, i);
+                if (ruleId >= 0 && ruleId < compiledIds.length)
+                    compiledIds[ruleId] = true;
+                endEntries++;
+            }
+        }
+        int skippedRules = 0, shadowedRules = 0;
+        for (ContextRule rule : rules) {
+            if (rule.id >= 0 && rule.id < compiledIds.length && compiledIds[rule.id])
+                continue;
+            String ruleString = compiled.lowerCaseRules ? DoubleArrayRuleTrie.foldCase(rule.rule) : rule.rule;
+            if (DoubleArrayRuleTrie.Editor.isValid(DoubleArrayRuleTrie.TOKEN_SEPARATOR.split(ruleString)))
+                shadowedRules++;
+            else
+                skippedRules++;
+        }
+
+        //  the children of each state as index ranges, from the check array, the threshold tables and the tails
+        int slots = trie.getSlotCount();
+        int[] childCount = new int[size + 1];
+        for (int state = 0; state < size; state++) {
+            if (state < slots && trie.getCheck(state) >= 0)
+                childCount[trie.getCheck(state) + 1]++;
+            childCount[state + 1] += trie.getThresholdCount(state);
+            if (trie.getTailToken(state) != -1)
+                childCount[state + 1]++;
+        }
+        for (int i = 0; i < size; i++)
+            childCount[i + 1] += childCount[i];
+        int[] children = new int[childCount[size]];
+        int[] filled = Arrays.copyOf(childCount, size);
+        for (int state = 0; state < size; state++) {
+            if (state < slots && trie.getCheck(state) >= 0)
+                children[filled[trie.getCheck(state)]++] = state;
+            for (int i = 0; i < trie.getThresholdCount(state); i++)
+                children[filled[state]++] = trie.getThresholdState(state, i);
+            if (trie.getTailToken(state) != -1)
+                children[filled[state]++] = trie.getTokenState(state, trie.getTailToken(state));
+        }
+        //  breadth first from the root, then up from the leaves to find the states with an END under them
+        int[] queue = new int[size], depth = new int[size];
+        int head = 0, tail = 0, maxDepth = 0;
+        queue[tail++] = trie.getRoot();
+        while (head < tail) {
+            int state = queue[head++];
+            maxDepth = Math.max(maxDepth, depth[state]);
+            for (int i = childCount[state]; i < childCount[state + 1]; i++) {
+                depth[children[i]] = depth[state] + 1;
+                queue[tail++] = children[i];
+            }
+        }
+        int[] depthHistogram = new int[maxDepth + 1];
+        boolean[] live = new boolean[size];
+        int deadStates = 0, tailStates = 0;
+        for (int i = tail - 1; i >= 0; i--) {
+            int state = queue[i];
+            depthHistogram[depth[state]]++;
+            branchingHistogram.merge(childCount[state + 1] - childCount[state], 1, Integer::sum);
+            for (int j = childCount[state]; j < childCount[state + 1] && !live[state]; j++)
+                live[state] = live[children[j]];
+            live[state] |= trie.hasEnd(state);
+            if (!live[state] && state != trie.getRoot())
+                deadStates++;
+            if (state >= slots)
+                tailStates++;
+        }
+
+        long bytes = strings(trie.determinants), offHeapBytes = 0;
+        if (trie instanceof OffHeapRuleTrie)
+            offHeapBytes = ((OffHeapRuleTrie) trie).getOffHeapBytes();
+        else
+            bytes += intArray(slots) * 5 + byteArray(slots) + intArray(trie.ends.length)
+                    + doubleArray(trie.thresholds.length) + intArray(trie.thresholdStates.length)
+                    + intArray(trie.tails.length) + intArray(trie.tokenTable.length) + strings(trie.vocabulary);
+        if (compiled.tokenAutomaton != null)
+            bytes += intArray(size) * 4;
+
+        this.rules = rules.size();
+        this.skippedRules = skippedRules;
+        this.shadowedRules = shadowedRules;
+        this.states = tail;
+        this.slots = slots;
+        this.tailStates = tailStates;
+        this.deadStates = deadStates;
+        this.endEntries = endEntries;
+        this.tokens = trie.getVocabularySize();
+        this.determinants = trie.getDeterminantCount();
+        this.depthHistogram = depthHistogram;
+        this.retainedBytes = bytes;
+        this.offHeapBytes = offHeapBytes;
+    }
+
+    /**
+     * @return the rules that are compiled into the trie, i.e. not skipped or shadowed
+     */
+    public int getCompiledRules() {
+        return rules - skippedRules - shadowedRules;
+    }
+
+    //  array header and elements, and a string object with its Latin-1 array
+    private static long intArray(int length) {
+        return 16 + 4L * length;
+    }
+
+    private static long byteArray(int length) {
+        return 16 + (long) length;
+    }
+
+    private static long doubleArray(int length) {
+        return 16 + 8L * length;
+    }
+
+    private static long strings(String[] strings) {
+        long bytes = 16 + 4L * strings.length;
+        for (String string : strings)
+            bytes += 24 + byteArray(string.length());
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "rules: " + rules + " (" + getCompiledRules() + " compiled, " + skippedRules + " skipped, "
+                + shadowedRules + " shadowed)\n"
+                + "states: " + states + " in " + slots + " slots and " + tailStates + " tail states (" + deadStates
+                + " dead), " + endEntries
+                + " END entries, " + tokens + " tokens, " + determinants + " determinants\n"
+                + "depth histogram: " + Arrays.toString(depthHistogram) + "\n"
+                + "branching histogram: " + branchingHistogram + "\n"
+                + "retained bytes: " + retainedBytes + (offHeapBytes > 0 ? ", off-heap bytes: " + offHeapBytes : "");
+    }
+}
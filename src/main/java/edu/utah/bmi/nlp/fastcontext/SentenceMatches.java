@@ -0,0 +1,119 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.context.common.ContextRule;
+
+import java.util.Arrays;
+
+/**
+ * Every rule match (trigger, pseudo and termination) of a whole sentence, found once by
+ * {@link ContextRuleProcessor#matchSentence(InternedTokens, SentenceMatches)}. The contexts of any concept in the
+ * sentence are then resolved from these matches
+ * ({@link FastContext#processContextWEvidence(SentenceMatches, int, int, ConTextWorkspace)}), instead of walking the
+ * rule trie over the pre- and post-context of each concept again.
+ * <p>
+ * Matches are kept in the order of the trie walk, which is the order of their begin positions. The index reads the
+ * interned tokens it was made from, so they must not be changed while it is in use. Like the other per-thread handles,
+ * it is reused across {@link ContextRuleProcessor#matchSentence(InternedTokens, SentenceMatches)} calls and is not
+ * thread-safe.
+ */
+public class SentenceMatches {
+    //  the compiled rules that the trie states belong to
+    protected final CompiledContextRules rules;
+    protected InternedTokens tokens;
+    //  (trie state, begin, end) of each match, the end is the position where the walk reached the END of the state,
+    //  after the blank tokens that follow the match
+    protected final DeterminantMatches.MatchRecords records = new DeterminantMatches.MatchRecords();
+    //  match -> the position after its last (non-blank) token, a context that ends before it doesn't have the match
+    protected int[] tokenEnds = new int[16];
+    //  position -> the first match that begins at or after it, plus one entry for the end of the sentence
+    protected int[] firstMatches = new int[17];
+    //  the stack of the trie walk
+    protected final DeterminantMatches walkMatches;
+
+    public SentenceMatches(CompiledContextRules rules) {
+        this.rules = rules;
+        this.walkMatches = new DeterminantMatches(rules);
+    }
+
+    protected void clear(InternedTokens tokens) {
+        this.tokens = tokens;
+        records.clear();
+        if (firstMatches.length < tokens.size() + 1)
+            firstMatches = new int[tokens.size() + 1];
+    }
+
+    /**
+     * @return the interned tokens of the sentence
+     */
+    public InternedTokens getTokens() {
+        return tokens;
+    }
+
+    public int getMatchCount() {
+        return records.count;
+    }
+
+    /**
+     * @param i match index
+     * @return the position of the first token of the match
+     */
+    public int getMatchBegin(int i) {
+        return records.getBegin(i);
+    }
+
+    /**
+     * @param i match index
+     * @return the position of the last token of the match
+     */
+    public int getMatchEnd(int i) {
+        return tokenEnds[i] - 1;
+    }
+
+    /**
+     * @param i match index
+     * @return the number of rules that the match applies
+     */
+    public int getMatchRuleCount(int i) {
+        return rules.trie.getEndCount(records.getState(i));
+    }
+
+    /**
+     * @param i match index
+     * @param k the k-th rule of the match
+     * @return the compiled copy of the rule
+     */
+    public ContextRule getMatchRule(int i, int k) {
+        return rules.getRule(rules.trie.getEndRuleId(records.getState(i), k));
+    }
+
+    /**
+     * @param position token position, up to the number of tokens
+     * @return the index of the first match that begins at or after the position
+     */
+    public int getFirstMatch(int position) {
+        return firstMatches[position];
+    }
+
+    protected void setTokenEnd(int i, int tokenEnd) {
+        if (i == tokenEnds.length)
+            tokenEnds = Arrays.copyOf(tokenEnds, tokenEnds.length * 2);
+        tokenEnds[i] = tokenEnd;
+    }
+}
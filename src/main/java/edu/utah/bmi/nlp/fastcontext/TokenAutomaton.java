@@ -0,0 +1,463 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+package edu.utah.bmi.nlp.fastcontext;
+
+import java.util.Arrays;
+
+/**
+ * An Aho-Corasick style token automaton over a compiled {@link DoubleArrayRuleTrie}, which finds the matches of all
+ * start positions in one left-to-right pass, instead of restarting a trie walk from every token.
+ * <p>
+ * The states that can be reached from the root through literal tokens only (the "skeleton") get failure links and
+ * output links, so that a single current state tracks every literal rule prefix ending at the current token. The
+ * wildcard ("\w+", "\W+") and numeric comparator edges make the automaton nondeterministic, so they are followed by
+ * threads: whenever a skeleton state with such an edge is active (found through the special links), a thread is
+ * spawned for the current token, and the thread then follows all the edges of the trie until it dies out.
+ * <p>
+ * ContextRuleProcessor resolves conflicting matches in the order of the recursive walk (by begin position, then by
+ * depth first order), so the matches found here are sorted in the same order before they are applied, which gives
+ * identical results to {@link ContextRuleProcessor#processRules(java.util.List, int, java.util.LinkedHashMap)}.
+ */
+public class TokenAutomaton {
+    //  the order of the edges in the recursive walk, the END of a state is checked between "\W+" and the literal token
+    protected static final int WORD_CHOICE = 0, UPPER_CASE_WORD_CHOICE = 1, END_CHOICE = 2, TOKEN_CHOICE = 3,
+            FIRST_DIGIT_CHOICE = 4;
+
+    protected final DoubleArrayRuleTrie trie;
+    //  token depth of the skeleton states, -1 for the other states
+    protected final int[] depth;
+    protected final int[] fail;
+    //  the closest state on the failure chain (excluding itself) that has an END, or a wildcard/comparator edge
+    protected final int[] outputLink, specialLink;
+
+    public TokenAutomaton(DoubleArrayRuleTrie trie) {
+        this.trie = trie;
+        int size = trie.size(), slots = trie.getSlotCount();
+        //  collect the literal children of each state and their token ids, from the check array and the tails
+        int[] childCount = new int[size + 1];
+        for (int state = 0; state < size; state++) {
+            int parent = state < slots ? trie.getCheck(state) : -1;
+            if (parent >= 0 && state - trie.getBase(parent) >= DoubleArrayRuleTrie.FIRST_TOKEN_LABEL)
+                childCount[parent + 1]++;
+            if (trie.getTailToken(state) != -1)
+                childCount[state + 1]++;
+        }
+        for (int i = 0; i < size; i++)
+            childCount[i + 1] += childCount[i];
+        int[] children = new int[childCount[size]], childTokens = new int[childCount[size]];
+        int[] filled = Arrays.copyOf(childCount, size);
+        for (int state = 0; state < size; state++) {
+            int parent = state < slots ? trie.getCheck(state) : -1;
+            if (parent >= 0 && state - trie.getBase(parent) >= DoubleArrayRuleTrie.FIRST_TOKEN_LABEL) {
+                childTokens[filled[parent]] = state - trie.getBase(parent) - DoubleArrayRuleTrie.FIRST_TOKEN_LABEL;
+                children[filled[parent]++] = state;
+            }
+            int tailToken = trie.getTailToken(state);
+            if (tailToken != -1) {
+                childTokens[filled[state]] = tailToken;
+                children[filled[state]++] = trie.getTokenState(state, tailToken);
+            }
+        }
+
+        depth = new int[size];
+        fail = new int[size];
+        outputLink = new int[size];
+        specialLink = new int[size];
+        Arrays.fill(depth, -1);
+        int root = trie.getRoot();
+        depth[root] = 0;
+        fail[root] = root;
+        outputLink[root] = -1;
+        specialLink[root] = -1;
+        int[] queue = new int[size];
+        int head = 0, tail = 0;
+        queue[tail++] = root;
+        while (head < tail) {
+            int state = queue[head++];
+            for (int i = childCount[state]; i < childCount[state + 1]; i++) {
+                int child = children[i];
+                int tokenId = childTokens[i];
+                depth[child] = depth[state] + 1;
+                int f = root;
+                if (state != root) {
+                    f = fail[state];
+                    while (f != root && trie.getTokenState(f, tokenId) == -1)
+                        f = fail[f];
+                    int next = trie.getTokenState(f, tokenId);
+                    if (next != -1)
+                        f = next;
+                }
+                fail[child] = f;
+                outputLink[child] = trie.hasEnd(f) ? f : outputLink[f];
+                specialLink[child] = trie.hasSpecialEdge(f) ? f : specialLink[f];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * Find all the rule matches within [startposition, to) in one pass, and store them in the scratch sorted in the
+     * order of the recursive walk.
+     *
+     * @param tokens        The interned tokens
+     * @param startposition The position where matching starts
+     * @param to            The last token of the context (exclusive)
+     * @param scratch       Reusable arrays of the pass
+     */
+    public void match(InternedTokens tokens, int startposition, int to, Scratch scratch) {
+        scratch.clear();
+        //  blank tokens are skipped over, so the automaton runs on the positions of the other tokens
+        for (int i = startposition; i < to; i++)
+            if ((tokens.getFlags(i) & InternedTokens.WORD) != 0)
+                scratch.addPosition(i);
+        int length = scratch.positionCount;
+        int root = trie.getRoot();
+        int current = root;
+        for (int p = 0; p < length; p++) {
+            int position = scratch.positions[p];
+            int tokenId = tokens.getId(position);
+            //  advance the threads
+            scratch.swapThreads();
+            for (int i = 0; i < scratch.activeCount; i++) {
+                int thread = scratch.active[i];
+                step(tokens, position, p, scratch.threadState[thread], thread, -1, scratch.threadBegin[thread], scratch);
+            }
+            //  spawn threads from the active skeleton states that have wildcard or comparator edges
+            int special = trie.hasSpecialEdge(current) ? current : specialLink[current];
+            while (special != -1) {
+                step(tokens, position, p, special, -1, special, p - depth[special], scratch);
+                special = specialLink[special];
+            }
+            //  follow the literal token
+            current = next(current, tokenId);
+            int output = trie.hasEnd(current) ? current : outputLink[current];
+            while (output != -1) {
+                scratch.addMatch(p + 1 - depth[output], p + 1, output, -1, depth[output]);
+                output = outputLink[output];
+            }
+        }
+        scratch.sortMatches(tokens, startposition, to);
+    }
+
+    protected int next(int state, int tokenId) {
+        if (tokenId < 0)
+            return trie.getRoot();
+        while (state != trie.getRoot() && trie.getTokenState(state, tokenId) == -1)
+            state = fail[state];
+        int next = trie.getTokenState(state, tokenId);
+        return next == -1 ? trie.getRoot() : next;
+    }
+
+    /**
+     * Consume the token at position from state, and spawn a thread for each edge that matches.
+     *
+     * @param tokens   The interned tokens
+     * @param position The position of the token
+     * @param p        The index of the position among the non-blank positions
+     * @param state    The trie state
+     * @param parent   The thread that is in the state, or -1 if the state is a skeleton state
+     * @param anchor   The skeleton state where the threads branch off (only used when parent is -1)
+     * @param begin    The begin (non-blank index) of the match
+     * @param scratch  Reusable arrays of the pass
+     */
+    protected void step(InternedTokens tokens, int position, int p, int state, int parent, int anchor, int begin,
+                        Scratch scratch) {
+        int flags = tokens.getFlags(position);
+        int next = trie.getWordState(state);
+        if (next != -1)
+            scratch.addThread(next, parent, anchor, WORD_CHOICE, begin, p + 1, trie.hasEnd(next));
+        next = trie.getUpperCaseWordState(state);
+        if (next != -1 && (flags & InternedTokens.UPPER_CASE) != 0)
+            scratch.addThread(next, parent, anchor, UPPER_CASE_WORD_CHOICE, begin, p + 1, trie.hasEnd(next));
+        if (parent != -1) {
+            //  the literal edges of skeleton states are followed by the automaton itself
+            next = trie.getTokenState(state, tokens.getId(position));
+            if (next != -1)
+                scratch.addThread(next, parent, anchor, TOKEN_CHOICE, begin, p + 1, trie.hasEnd(next));
+        }
+        if ((flags & InternedTokens.NUMBER) != 0) {
+            int choice = FIRST_DIGIT_CHOICE;
+            next = trie.getGreaterThanState(state);
+            if (next != -1)
+                choice = stepDigits(tokens, position, p, '>', next, parent, anchor, begin, choice, scratch);
+            next = trie.getLessThanState(state);
+            if (next != -1)
+                stepDigits(tokens, position, p, '<', next, parent, anchor, begin, choice, scratch);
+        }
+    }
+
+    /**
+     * The same as {@link ContextRuleProcessor#processDigits(InternedTokens, char, int, int, DeterminantMatches)},
+     * numbering the threads in the order the depth first walk would visit them.
+     *
+     * @return the next choice number
+     */
+    protected int stepDigits(InternedTokens tokens, int position, int p, char compare, int compareState, int parent,
+                             int anchor, int begin, int choice, Scratch scratch) {
+        double thisDigit = tokens.getNumber(position);
+        boolean suffixed = (tokens.getFlags(position) & InternedTokens.NUMBER_SUFFIX) != 0;
+        int suffixId = tokens.getSuffixId(position);
+        int to = trie.getThresholdTo(compareState, compare, thisDigit);
+        for (int i = trie.getThresholdFrom(compareState, compare, thisDigit); i < to; i++) {
+            int next = trie.getThresholdState(compareState, i);
+            if (!suffixed) {
+                int compareNext = trie.getGreaterThanState(next);
+                if (compareNext != -1)
+                    choice = stepDigits(tokens, position, p, '>', compareNext, parent, anchor, begin, choice, scratch);
+                compareNext = trie.getLessThanState(next);
+                if (compareNext != -1)
+                    choice = stepDigits(tokens, position, p, '<', compareNext, parent, anchor, begin, choice, scratch);
+                scratch.addThread(next, parent, anchor, choice++, begin, p + 1, trie.hasEnd(next));
+            } else {
+                next = trie.getTokenState(next, suffixId);
+                if (next != -1)
+                    scratch.addThread(next, parent, anchor, choice++, begin, p + 1, trie.hasEnd(next));
+            }
+        }
+        return choice;
+    }
+
+    /**
+     * The reusable arrays of one pass. The matches are read through {@link #getMatchCount()},
+     * {@link #getMatchBegin(int)}, {@link #getMatchEnd(int)} and {@link #getMatchState(int)} after
+     * {@link TokenAutomaton#match(InternedTokens, int, int, Scratch)}.
+     */
+    public static class Scratch {
+        protected int[] positions = new int[64];
+        protected int positionCount;
+
+        //  threads, each one remembers its parent thread and the edge it took, to rebuild the walk order
+        protected int[] threadState = new int[64], threadParent = new int[64], threadAnchorDepth = new int[64],
+                threadChoice = new int[64], threadLevel = new int[64], threadBegin = new int[64];
+        protected int threadCount;
+        protected int[] active = new int[16], spawned = new int[16];
+        protected int activeCount, spawnedCount;
+
+        //  matches, begin and end are indexes of the non-blank positions until sortMatches
+        protected int[] matchBegin = new int[16], matchEnd = new int[16], matchState = new int[16],
+                matchThread = new int[16], matchAnchorDepth = new int[16];
+        protected int matchCount;
+        protected int[] order = new int[16], sortBuffer = new int[16];
+        protected TokenAutomaton automaton;
+
+        protected Scratch(TokenAutomaton automaton) {
+            this.automaton = automaton;
+        }
+
+        protected void clear() {
+            positionCount = 0;
+            threadCount = 0;
+            activeCount = 0;
+            spawnedCount = 0;
+            matchCount = 0;
+        }
+
+        protected void addPosition(int position) {
+            if (positionCount == positions.length)
+                positions = Arrays.copyOf(positions, positionCount * 2);
+            positions[positionCount++] = position;
+        }
+
+        /**
+         * The threads spawned at the previous token become the active threads.
+         */
+        protected void swapThreads() {
+            int[] tmp = active;
+            active = spawned;
+            activeCount = spawnedCount;
+            spawned = tmp;
+            spawnedCount = 0;
+        }
+
+        protected void addThread(int state, int parent, int anchor, int choice, int begin, int end, boolean hasEnd) {
+            if (threadCount == threadState.length) {
+                int capacity = threadCount * 2;
+                threadState = Arrays.copyOf(threadState, capacity);
+                threadParent = Arrays.copyOf(threadParent, capacity);
+                threadAnchorDepth = Arrays.copyOf(threadAnchorDepth, capacity);
+                threadChoice = Arrays.copyOf(threadChoice, capacity);
+                threadLevel = Arrays.copyOf(threadLevel, capacity);
+                threadBegin = Arrays.copyOf(threadBegin, capacity);
+            }
+            int thread = threadCount++;
+            threadState[thread] = state;
+            threadParent[thread] = parent;
+            threadChoice[thread] = choice;
+            threadBegin[thread] = begin;
+            if (parent == -1) {
+                threadAnchorDepth[thread] = automaton.depth[anchor];
+                threadLevel[thread] = 1;
+            } else {
+                threadAnchorDepth[thread] = threadAnchorDepth[parent];
+                threadLevel[thread] = threadLevel[parent] + 1;
+            }
+            if (spawnedCount == spawned.length)
+                spawned = Arrays.copyOf(spawned, spawnedCount * 2);
+            spawned[spawnedCount++] = thread;
+            if (hasEnd)
+                addMatch(begin, end, state, thread, threadAnchorDepth[thread]);
+        }
+
+        protected void addMatch(int begin, int end, int state, int thread, int anchorDepth) {
+            if (matchCount == matchBegin.length) {
+                int capacity = matchCount * 2;
+                matchBegin = Arrays.copyOf(matchBegin, capacity);
+                matchEnd = Arrays.copyOf(matchEnd, capacity);
+                matchState = Arrays.copyOf(matchState, capacity);
+                matchThread = Arrays.copyOf(matchThread, capacity);
+                matchAnchorDepth = Arrays.copyOf(matchAnchorDepth, capacity);
+            }
+            matchBegin[matchCount] = begin;
+            matchEnd[matchCount] = end;
+            matchState[matchCount] = state;
+            matchThread[matchCount] = thread;
+            matchAnchorDepth[matchCount] = anchorDepth;
+            matchCount++;
+        }
+
+        /**
+         * Map the matches back to token positions, add the matches that start from the blank tokens in front of
+         * them (the recursive walk skips over those), and sort the matches in the recursive walk order.
+         */
+        protected void sortMatches(InternedTokens tokens, int startposition, int to) {
+            int count = matchCount;
+            for (int i = 0; i < count; i++) {
+                int begin = matchBegin[i];
+                matchEnd[i] = matchEnd[i] < positionCount ? positions[matchEnd[i]] : to;
+                matchBegin[i] = positions[begin];
+                int previous = begin > 0 ? positions[begin - 1] : startposition - 1;
+                for (int blank = previous + 1; blank < matchBegin[i]; blank++)
+                    addMatch(blank, matchEnd[i], matchState[i], matchThread[i], matchAnchorDepth[i]);
+            }
+            if (order.length < matchCount) {
+                order = new int[matchBegin.length];
+                sortBuffer = new int[matchBegin.length];
+            }
+            for (int i = 0; i < matchCount; i++)
+                order[i] = i;
+            mergeSort(0, matchCount);
+        }
+
+        private void mergeSort(int from, int to) {
+            if (to - from < 2)
+                return;
+            if (to - from <= 8) {
+                for (int i = from + 1; i < to; i++) {
+                    int value = order[i];
+                    int j = i - 1;
+                    while (j >= from && compare(order[j], value) > 0) {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = value;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            mergeSort(from, middle);
+            mergeSort(middle, to);
+            int i = from, j = middle, k = from;
+            while (i < middle && j < to)
+                sortBuffer[k++] = compare(order[i], order[j]) <= 0 ? order[i++] : order[j++];
+            while (i < middle)
+                sortBuffer[k++] = order[i++];
+            while (j < to)
+                sortBuffer[k++] = order[j++];
+            System.arraycopy(sortBuffer, from, order, from, to - from);
+        }
+
+        /**
+         * Compare two matches by begin, then by the order the recursive walk would reach them: a walk from the same
+         * begin first follows the literal tokens to the skeleton state (the anchor) where the match branches off,
+         * and the choices made after that are compared edge by edge.
+         */
+        protected int compare(int a, int b) {
+            if (matchBegin[a] != matchBegin[b])
+                return Integer.compare(matchBegin[a], matchBegin[b]);
+            int threadA = matchThread[a], threadB = matchThread[b];
+            if (matchAnchorDepth[a] != matchAnchorDepth[b]) {
+                //  the deeper match follows one more literal token from the shallower anchor
+                if (matchAnchorDepth[a] < matchAnchorDepth[b])
+                    return Integer.compare(firstChoice(threadA), TOKEN_CHOICE);
+                else
+                    return Integer.compare(TOKEN_CHOICE, firstChoice(threadB));
+            }
+            if (threadA == -1 || threadB == -1)
+                return Integer.compare(firstChoice(threadA), firstChoice(threadB));
+            int choiceA = END_CHOICE, choiceB = END_CHOICE;
+            while (threadLevel[threadA] > threadLevel[threadB]) {
+                choiceA = threadChoice[threadA];
+                threadA = threadParent[threadA];
+            }
+            while (threadLevel[threadB] > threadLevel[threadA]) {
+                choiceB = threadChoice[threadB];
+                threadB = threadParent[threadB];
+            }
+            if (threadA == threadB)
+                return Integer.compare(choiceA, choiceB);
+            while (threadParent[threadA] != threadParent[threadB]) {
+                threadA = threadParent[threadA];
+                threadB = threadParent[threadB];
+            }
+            return Integer.compare(threadChoice[threadA], threadChoice[threadB]);
+        }
+
+        /**
+         * @return the edge a match takes from its anchor, END_CHOICE if it ends at the anchor itself
+         */
+        private int firstChoice(int thread) {
+            if (thread == -1)
+                return END_CHOICE;
+            while (threadParent[thread] != -1)
+                thread = threadParent[thread];
+            return threadChoice[thread];
+        }
+
+        public int getMatchCount() {
+            return matchCount;
+        }
+
+        /**
+         * @param i the i-th match in the recursive walk order
+         * @return the begin position of the match
+         */
+        public int getMatchBegin(int i) {
+            return matchBegin[order[i]];
+        }
+
+        /**
+         * @param i the i-th match in the recursive walk order
+         * @return the position where the END is reached (exclusive end of the match)
+         */
+        public int getMatchEnd(int i) {
+            return matchEnd[order[i]];
+        }
+
+        /**
+         * @param i the i-th match in the recursive walk order
+         * @return the trie state that holds the END
+         */
+        public int getMatchState(int i) {
+            return matchState[order[i]];
+        }
+    }
+
+    public Scratch newScratch() {
+        return new Scratch(this);
+    }
+}
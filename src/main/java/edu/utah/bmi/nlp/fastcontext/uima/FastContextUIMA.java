@@ -21,7 +21,9 @@ import edu.utah.bmi.nlp.context.common.ConTextSpan;
 import edu.utah.bmi.nlp.context.common.ContextRule;
 import edu.utah.bmi.nlp.context.common.ContextValueSet;
 import edu.utah.bmi.nlp.core.IOUtil;
+import edu.utah.bmi.nlp.fastcontext.CompiledContextRules;
 import edu.utah.bmi.nlp.fastcontext.FastContext;
+import edu.utah.bmi.nlp.fastcontext.InternedTokens;
 import org.apache.uima.jcas.tcas.Annotation;
 
 import java.util.*;
@@ -91,22 +93,44 @@ public class FastContextUIMA extends FastContext {
     }
 
     protected LinkedHashMap<String, ConTextSpan> processContextWEvidence(List<Annotation> preContext, List<Annotation> postContext) {
+        return processContextWEvidence(internAnnotations(preContext), internAnnotations(postContext));
+    }
+
+    /**
+     * Intern the token annotations of a document once, then assemble the pre/post contexts of each concept from it
+     * with {@link InternedTokens#add(InternedTokens, int)}.
+     *
+     * @param tokens token annotations
+     * @return interned tokens aligned with the annotations
+     */
+    public InternedTokens internAnnotations(List<Annotation> tokens) {
+        return ((UIMAContextRuleProcessor) crp).internAnnotations(tokens, new InternedTokens(tokens.size()));
+    }
+
+    protected LinkedHashMap<String, ConTextSpan> processContextWEvidence(InternedTokens preContext, InternedTokens postContext) {
+        return processContextWEvidence(preContext, postContext, getInternedRules(preContext, postContext));
+    }
+
+    /**
+     * The same as {@link #processContextWEvidence(InternedTokens, InternedTokens)}, but matches a view of the rules
+     * that the tokens are interned with, e.g. the rules of a concept type ({@link #getConceptRules(String)}).
+     */
+    protected LinkedHashMap<String, ConTextSpan> processContextWEvidence(InternedTokens preContext, InternedTokens postContext,
+                                                                         CompiledContextRules rules) {
         LinkedHashMap<String, ConTextSpan> matchedPreRules = new LinkedHashMap<>();
         LinkedHashMap<String, ConTextSpan> matchedPostRules = new LinkedHashMap<>();
-        matchedPreRules.clear();
-        matchedPostRules.clear();
-        ((UIMAContextRuleProcessor) crp).processTokensWRules(preContext, matchedPreRules);
-        ((UIMAContextRuleProcessor) crp).processTokensWRules(postContext, matchedPostRules);
+        crp.processPreContext(preContext, preContext.size(), rules, matchedPreRules);
+        crp.processPostContext(postContext, 0, rules, matchedPostRules);
         if (logger.isLoggable(Level.FINE)) {
             logger.fine("pre context matches:");
             for (Map.Entry<String, ConTextSpan> ent : matchedPreRules.entrySet()) {
-                logger.fine(ent.getValue().ruleId + ": " + ent.getKey() + " " + crp.rules.get(ent.getValue().ruleId).triggerType + ":\t" + ent.getValue().begin + "-" + ent.getValue().end);
-                logger.fine(crp.rules.get(ent.getValue().ruleId) + "\n");
+                logger.fine(ent.getValue().ruleId + ": " + ent.getKey() + " " + crp.getContextRuleById(ent.getValue().ruleId).triggerType + ":\t" + ent.getValue().begin + "-" + ent.getValue().end);
+                logger.fine(crp.getContextRuleById(ent.getValue().ruleId) + "\n");
             }
             logger.fine("post context matches:");
             for (Map.Entry<String, ConTextSpan> ent : matchedPostRules.entrySet()) {
-                logger.fine(ent.getValue().ruleId + ": " + ent.getKey() + " " + crp.rules.get(ent.getValue().ruleId).triggerType + ":\t" + ent.getValue().begin + "-" + ent.getValue().end);
-                logger.fine(crp.rules.get(ent.getValue().ruleId) + "\n");
+                logger.fine(ent.getValue().ruleId + ": " + ent.getKey() + " " + crp.getContextRuleById(ent.getValue().ruleId).triggerType + ":\t" + ent.getValue().begin + "-" + ent.getValue().end);
+                logger.fine(crp.getContextRuleById(ent.getValue().ruleId) + "\n");
             }
         }
         LinkedHashMap<String, ConTextSpan> contexts = new LinkedHashMap<>();
@@ -117,9 +141,14 @@ public class FastContextUIMA extends FastContext {
         return contexts;
     }
 
+    /**
+     * @deprecated the contexts are matched on the interned tokens, replaced by
+     * {@link #applyAnnotationConTexts(InternedTokens, HashMap, LinkedHashMap, ContextValueSet.TriggerTypes, int)}
+     */
+    @Deprecated
     protected void applyAnnotationConTexts(List<Annotation> tokens, HashMap<String, ConTextSpan> matchedRules, LinkedHashMap<String, ConTextSpan> contexts, ContextValueSet.TriggerTypes direction, int conceptBegin) {
         for (Map.Entry<String, ConTextSpan> ent : matchedRules.entrySet()) {
-            ContextRule matchedRule = crp.rules.get(ent.getValue().ruleId);
+            ContextRule matchedRule = crp.getContextRuleById(ent.getValue().ruleId);
             ConTextSpan relativeSpan = ent.getValue();
             if (matchedRule.triggerType == ContextValueSet.TriggerTypes.trigger && relativeSpan.matchedDirection == direction) {
                 if (direction == ContextValueSet.TriggerTypes.forward || direction == ContextValueSet.TriggerTypes.both) {
@@ -129,7 +158,7 @@ public class FastContextUIMA extends FastContext {
                     if (ent.getValue().begin <= matchedRule.windowSize) {
 //                        if (contexts.containsKey(matchedRule.modifier)) {
 //                            ConTextSpan previousSpan = contexts.get(matchedRule.modifier);
-//                            ContextRule previousMatchedRule = crp.rules.get(previousSpan.ruleId);
+//                            ContextRule previousMatchedRule = crp.getContextRuleById(previousSpan.ruleId);
 //
 //
 //                        } else
@@ -144,6 +173,27 @@ public class FastContextUIMA extends FastContext {
         }
     }
 
+    protected void applyAnnotationConTexts(InternedTokens tokens, HashMap<String, ConTextSpan> matchedRules, LinkedHashMap<String, ConTextSpan> contexts, ContextValueSet.TriggerTypes direction, int conceptBegin) {
+        for (Map.Entry<String, ConTextSpan> ent : matchedRules.entrySet()) {
+            ContextRule matchedRule = crp.getContextRuleById(ent.getValue().ruleId);
+            ConTextSpan relativeSpan = ent.getValue();
+            if (matchedRule.triggerType == ContextValueSet.TriggerTypes.trigger && relativeSpan.matchedDirection == direction) {
+                if (direction == ContextValueSet.TriggerTypes.forward || direction == ContextValueSet.TriggerTypes.both) {
+                    if (conceptBegin - ent.getValue().end <= matchedRule.windowSize)
+                        contexts.put(matchedRule.modifier, new ConTextSpan(tokens.getBegin(relativeSpan.begin), tokens.getEnd(relativeSpan.end), relativeSpan.ruleId));
+                } else if (direction == ContextValueSet.TriggerTypes.backward || direction == ContextValueSet.TriggerTypes.both) {
+                    if (ent.getValue().begin <= matchedRule.windowSize) {
+                        contexts.put(matchedRule.modifier, new ConTextSpan(tokens.getBegin(relativeSpan.begin), tokens.getEnd(relativeSpan.end), relativeSpan.ruleId));
+                    } else if (contexts.containsKey(matchedRule.modifier)) {
+                        if (contexts.get(matchedRule.modifier).winBegin > ent.getValue().begin)
+                            contexts.put(matchedRule.modifier, new ConTextSpan(tokens.getBegin(relativeSpan.begin), tokens.getEnd(relativeSpan.end), relativeSpan.ruleId));
+                    }
+                }
+
+            }
+        }
+    }
+
     public LinkedHashMap<String, ConTextSpan> getFullContextFeatures(String conceptTypeName, List<Annotation> tokens, int conceptStartPosition,
                                                                      int conceptEndPosition) {
         LinkedHashMap<String, ConTextSpan> contexts = processContextWEvidence(tokens, conceptStartPosition, conceptEndPosition);
@@ -156,5 +206,21 @@ public class FastContextUIMA extends FastContext {
         return updateFeaturesWEvidence(conceptTypeName, contexts);
     }
 
+    /**
+     * Only the rules of the concept type's features are matched, see {@link #getConceptRules(String)}.
+     */
+    protected LinkedHashMap<String, ConTextSpan> getFullContextFeatures(String conceptTypeName, InternedTokens preContext, InternedTokens postContext) {
+        LinkedHashMap<String, ConTextSpan> contexts = processContextWEvidence(preContext, postContext,
+                getConceptRules(conceptTypeName, getInternedRules(preContext, postContext)));
+        return updateFeaturesWEvidence(conceptTypeName, contexts);
+    }
+
+    //  the rules that the tokens are interned with, an empty sequence may have none
+    private CompiledContextRules getInternedRules(InternedTokens preContext, InternedTokens postContext) {
+        if (preContext.getRules() != null)
+            return preContext.getRules();
+        return postContext.getRules() != null ? postContext.getRules() : crp.getCompiledRules();
+    }
+
 
 }
@@ -24,6 +24,7 @@ import edu.utah.bmi.nlp.core.IntervalST;
 import edu.utah.bmi.nlp.core.Interval1D;
 import edu.utah.bmi.nlp.core.TypeDefinition;
 import edu.utah.bmi.nlp.core.WildCardChecker;
+import edu.utah.bmi.nlp.fastcontext.InternedTokens;
 import edu.utah.bmi.nlp.type.system.ConceptBASE;
 import edu.utah.bmi.nlp.type.system.Context;
 import edu.utah.bmi.nlp.uima.ae.RuleBasedAEInf;
@@ -59,6 +60,8 @@ public class FastContext_General_AE
     public static final String PARAM_CASE_SENSITIVE = DeterminantValueSet.PARAM_CASE_SENSITIVE;
     public static final String PARAM_MARK_CLUE = "MarkClues";
     public static final String PARAM_AUTO_EXPAND_SCOPE = "AutoExpanScope";
+    //  comma separated feature names, only these features are matched and saved; empty or not set: all of them
+    public static final String PARAM_REQUESTED_FEATURES = "RequestedFeatures";
     @Deprecated
     public static final String PARAM_DEBUG = "Debug";
 
@@ -117,6 +120,15 @@ public class FastContext_General_AE
 
         cp = new FastContextUIMA(contextRuleStr, caseSensitive);
 
+        paraObj = cont.getConfigParameterValue(PARAM_REQUESTED_FEATURES);
+        if (paraObj != null && paraObj instanceof String && ((String) paraObj).trim().length() > 0) {
+            ArrayList<String> requestedFeatures = new ArrayList<>();
+            for (String featureName : ((String) paraObj).split(","))
+                if (featureName.trim().length() > 0)
+                    requestedFeatures.add(featureName.trim());
+            cp.setRequestedFeatures(requestedFeatures);
+        }
+
         HashMap<String, TypeDefinition> conceptFeatureMap = cp.getTypeDefinitions();
         for (String conceptName : conceptFeatureMap.keySet()) {
             TypeDefinition typeDefinition = conceptFeatureMap.get(conceptName);
@@ -146,15 +158,26 @@ public class FastContext_General_AE
 
         IntervalST<Integer> sentenceIndex = AnnotationOper.indexAnnotation(jcas, sentenceTypeId, sentences);
         IntervalST<Integer> tokenIndex = AnnotationOper.indexAnnotation(jcas, tokenTypeId, tokens);
+        //  look up the tokens in the rule vocabulary once per document, instead of once per concept
+        InternedTokens documentTokens = cp.internAnnotations(tokens);
 
         for (String conceptName : conceptFeatures.keySet()) {
-            process(jcas, docText, sentences, tokens, sentenceIndex, tokenIndex, conceptClassMap.get(conceptName));
+            process(jcas, docText, sentences, tokens, documentTokens, sentenceIndex, tokenIndex, conceptClassMap.get(conceptName));
         }
     }
 
 
     public void process(JCas jcas, String docText, ArrayList<Annotation> sentences, ArrayList<Annotation> tokens,
                         IntervalST<Integer> sentenceIndex, IntervalST<Integer> tokenIndex, Class conceptClass) {
+        process(jcas, docText, sentences, tokens, cp.internAnnotations(tokens), sentenceIndex, tokenIndex, conceptClass);
+    }
+
+    /**
+     * @param documentTokens the tokens interned by {@link FastContextUIMA#internAnnotations(List)}, aligned with tokens
+     */
+    public void process(JCas jcas, String docText, ArrayList<Annotation> sentences, ArrayList<Annotation> tokens,
+                        InternedTokens documentTokens, IntervalST<Integer> sentenceIndex, IntervalST<Integer> tokenIndex,
+                        Class conceptClass) {
         ArrayList<Annotation> concepts = new ArrayList<>();
         concepts.addAll(JCasUtil.select(jcas, conceptClass));
         if (concepts.size() == 0) {
@@ -196,19 +219,27 @@ public class FastContext_General_AE
                 }
             }
             Iterable<Integer> tokensInSentence = tokenIndex.getAll(new Interval1D(scopeBegin, scopeEnd));
-            ArrayList<Annotation> preContext = new ArrayList<>();
-            ArrayList<Annotation> postContext = new ArrayList<>();
+            ArrayList<Integer> preContextIds = new ArrayList<>();
+            ArrayList<Integer> postContextIds = new ArrayList<>();
             for (Integer tokenId : tokensInSentence) {
                 Annotation token = tokens.get(tokenId);
                 if (token.getEnd() <= concept.getBegin()) {
-                    preContext.add(token);
+                    preContextIds.add(tokenId);
                 } else if (token.getBegin() >= concept.getEnd()) {
-                    postContext.add(token);
+                    postContextIds.add(tokenId);
                 }
             }
-            Collections.sort(preContext, new AnnotationComparator());
-            Collections.sort(postContext, new AnnotationComparator());
+            AnnotationComparator comparator = new AnnotationComparator();
+            preContextIds.sort((a, b) -> comparator.compare(tokens.get(a), tokens.get(b)));
+            postContextIds.sort((a, b) -> comparator.compare(tokens.get(a), tokens.get(b)));
+            InternedTokens preContext = new InternedTokens(preContextIds.size());
+            InternedTokens postContext = new InternedTokens(postContextIds.size());
+            for (int tokenId : preContextIds)
+                preContext.add(documentTokens, tokenId);
+            for (int tokenId : postContextIds)
+                postContext.add(documentTokens, tokenId);
             logger.finest("Detect context for concept:\t"+concept.getCoveredText());
+            //  only the rules of the concept class's features are matched, see FastContext#getConceptRules
             LinkedHashMap<String, ConTextSpan> contextInfo = cp.getFullContextFeatures(conceptClass.getCanonicalName(), preContext, postContext);
             saveContext(jcas, docText, conceptClass, concept, contextInfo);
         }
@@ -20,9 +20,12 @@ package edu.utah.bmi.nlp.fastcontext.uima;
 
 import edu.utah.bmi.nlp.context.common.ConTextSpan;
 import edu.utah.bmi.nlp.fastcontext.ContextRuleProcessor;
+import edu.utah.bmi.nlp.fastcontext.DoubleArrayRuleTrie;
+import edu.utah.bmi.nlp.fastcontext.InternedTokens;
 import org.apache.uima.jcas.tcas.Annotation;
 
 import java.util.*;
+import java.util.regex.Matcher;
 
 /**
  * Process directly on UIMA annotations without conversion to Spans.
@@ -59,15 +62,37 @@ public class UIMAContextRuleProcessor extends ContextRuleProcessor {
         // use the first "startposition" to remember the original start matching
         // position.
         // use the 2nd one to remember the start position in which recursion.
+        InternedTokens tokens = internAnnotations(contextTokens, new InternedTokens(contextTokens.size()));
+        processRules(tokens, 0, startposition, tokens.size(), matches);
+    }
 
-
-        for (int i = startposition; i < contextTokens.size(); i++) {
-            // System.out.println(contextTokens.get(i));
-            processTokensWRules(contextTokens, rulesMap, i, i, matches);
+    /**
+     * Map each token annotation to its id in the rule vocabulary. The covered text is only read once per token here,
+     * instead of at every step of the rule matching. Blank tokens (in case the tokens are not tokenized correctly) are
+     * interned as {@link DoubleArrayRuleTrie#BLANK_TOKEN}, which the matching skips over.
+     *
+     * @param contextTokens The token annotations of a sentence or a document
+     * @param target        The interned tokens to (re)fill
+     * @return target
+     */
+    public InternedTokens internAnnotations(List<Annotation> contextTokens, InternedTokens target) {
+        target.clear(compiledRules);
+        for (Annotation token : contextTokens) {
+            String text = token.getCoveredText();
+            if (text.trim().length() == 0) {
+                target.add(DoubleArrayRuleTrie.BLANK_TOKEN, text, token.getBegin(), token.getEnd());
+                continue;
+            }
+            addToken(target, text, token.getBegin(), token.getEnd());
         }
-
+        return target;
     }
 
+    /**
+     * @deprecated recursive walk over the nested rulesMap (one call per blank token), replaced by the iterative walk
+     * of {@link #processRules(InternedTokens, int, int, int, int, int, int, edu.utah.bmi.nlp.fastcontext.DeterminantMatches)}
+     */
+    @Deprecated
     protected void processTokensWRules(List<Annotation> contextTokens, HashMap rule, int matchBegin, int currentPosition,
                                        LinkedHashMap<String, ConTextSpan> matches) {
         // when reach the end of the tunedcontext, end the iteration
@@ -80,7 +105,7 @@ public class UIMAContextRuleProcessor extends ContextRuleProcessor {
                 return;
             }
             if (!caseSensitive)
-                thisToken = thisToken.toLowerCase();
+                thisToken = DoubleArrayRuleTrie.foldCase(thisToken);
 //			System.out.println("thisToken-"+thisToken+"<");
             if (rule.containsKey("\\w+")) {
                 processTokensWRules(contextTokens, (HashMap) rule.get("\\w+"), matchBegin, currentPosition + 1, matches);
@@ -107,12 +132,16 @@ public class UIMAContextRuleProcessor extends ContextRuleProcessor {
         }
     }
 
+    /**
+     * @deprecated replaced by the numeric thresholds compiled into the rule trie
+     */
+    @Deprecated
     protected void processDigitTokens(List<Annotation> contextTokens, char compare,HashMap rule, int matchBegin, int currentPosition,
                                       LinkedHashMap<String, ConTextSpan> matches) {
         String thisToken=contextTokens.get(currentPosition).getCoveredText();
         if(!caseSensitive)
-            thisToken=thisToken.toLowerCase();
-        mt = pdigit.matcher(thisToken);
+            thisToken=DoubleArrayRuleTrie.foldCase(thisToken);
+        Matcher mt = pdigit.matcher(thisToken);
         if (mt.find()) {
             double thisDigit;
 //			prevent length over limit
@@ -0,0 +1,205 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.context.common.ConTextSpan;
+import edu.utah.bmi.nlp.context.common.ContextRule;
+import edu.utah.bmi.nlp.core.SimpleParser;
+import edu.utah.bmi.nlp.core.Span;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+
+/**
+ * Test the reusable workspace APIs against the map based APIs, and that they don't allocate once warmed up.
+ */
+public class TestConTextWorkspace {
+    private FastContext fc;
+    private String[] sentences = new String[]{
+            "The patient denied any fever , although he complained some headache .",
+            "No evidence of pneumonia was found on the chest x-ray 3 days ago .",
+            "Her mother has a history of breast cancer , but she may have a mild cough .",
+            "The pain started 30-days ago and was not relieved by ibuprofen ."};
+
+    @BeforeEach
+    public void init() {
+        fc = new FastContext("conf/context.txt");
+    }
+
+    @Test
+    public void testSameAsMapAPI() {
+        ConTextWorkspace workspace = fc.newWorkspace();
+        for (String sentence : sentences) {
+            ArrayList<Span> tokens = SimpleParser.tokenizeOnWhitespaces(sentence);
+            InternedTokens internedTokens = fc.internTokens(tokens);
+            for (int i = 0; i < tokens.size(); i++) {
+                LinkedHashMap<String, ConTextSpan> expected = fc.getFullContextFeatures("Concept", internedTokens, i, i);
+                fc.getFullContextFeatures("Concept", internedTokens, i, i, workspace);
+                assert (workspace.getFeatureCount() == expected.size());
+                int j = 0;
+                for (Map.Entry<String, ConTextSpan> entry : expected.entrySet()) {
+                    ConTextSpan span = workspace.getFeature(j);
+                    assert (workspace.getFeatureName(j).equals(entry.getKey()));
+                    assert (span.begin == entry.getValue().begin && span.end == entry.getValue().end
+                            && span.ruleId == entry.getValue().ruleId);
+                    j++;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConceptFeatures() {
+        FastContext fc = new FastContext(new ArrayList<>(Arrays.asList("@CONCEPT_FEATURES|Concept|Negation",
+                "@CONCEPT_FEATURES|Finding|Negation|Temporality", "@FEATURE_VALUES|Negation|affirm|negated",
+                "@FEATURE_VALUES|Temporality|present|historical", "no|forward|trigger|negated|30",
+                "history of|forward|trigger|historical|30", "but|both|termination|negated|30")), false);
+        ConTextWorkspace workspace = fc.newWorkspace();
+        String[] sentences = new String[]{"no history of cough", "history of cough but no fever", "no fever"};
+        for (String sentence : sentences) {
+            ArrayList<Span> tokens = SimpleParser.tokenizeOnWhitespaces(sentence);
+            InternedTokens internedTokens = fc.internTokens(tokens);
+            SentenceMatches sentenceMatches = fc.matchSentence(internedTokens);
+            for (int i = 0; i < tokens.size(); i++) {
+//                Concept owns only Negation, Finding owns both features
+                for (String conceptTypeName : new String[]{"Concept", "Finding", "Concept"}) {
+                    LinkedHashMap<String, ConTextSpan> expected = fc.getFullContextFeatures(conceptTypeName,
+                            internedTokens, i, i);
+                    assert (expected.keySet().equals(conceptTypeName.equals("Concept")
+                            ? Collections.singleton("Negation") : new HashSet<>(Arrays.asList("Negation", "Temporality"))));
+                    assertSame(expected, fc.getFullContextFeatures(conceptTypeName, sentenceMatches, i, i));
+                    LinkedHashMap<String, ConTextSpan> spanFeatures = fc.getFullContextFeatures(conceptTypeName,
+                            tokens, i, i, sentence);
+                    assert (spanFeatures.keySet().equals(expected.keySet()));
+                    for (String featureName : expected.keySet())
+                        assert (spanFeatures.get(featureName).ruleId == expected.get(featureName).ruleId);
+                    assertSame(expected, fc.getFullContextFeatures(conceptTypeName, internedTokens, i, i, workspace));
+                    assertSame(expected, fc.getFullContextFeatures(conceptTypeName, sentenceMatches, i, i, workspace));
+                }
+            }
+        }
+    }
+
+    private void assertSame(LinkedHashMap<String, ConTextSpan> expected, LinkedHashMap<String, ConTextSpan> actual) {
+        assert (actual.keySet().equals(expected.keySet()));
+        for (Map.Entry<String, ConTextSpan> entry : expected.entrySet()) {
+            ConTextSpan span = actual.get(entry.getKey());
+            assert (span.begin == entry.getValue().begin && span.end == entry.getValue().end
+                    && span.ruleId == entry.getValue().ruleId);
+        }
+    }
+
+    private void assertSame(LinkedHashMap<String, ConTextSpan> expected, ConTextWorkspace workspace) {
+        assert (workspace.getFeatureCount() == expected.size());
+        for (Map.Entry<String, ConTextSpan> entry : expected.entrySet()) {
+            ConTextSpan span = workspace.getFeature(entry.getKey());
+            assert (span != null && span.begin == entry.getValue().begin && span.end == entry.getValue().end
+                    && span.ruleId == entry.getValue().ruleId);
+        }
+    }
+
+    @Test
+    public void testNoAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadMXBean.isThreadAllocatedMemoryEnabled())
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        ConTextWorkspace workspace = fc.newWorkspace();
+        ArrayList<InternedTokens> internedSentences = new ArrayList<>();
+        int concepts = 0;
+        for (String sentence : sentences) {
+            internedSentences.add(fc.internTokens(SimpleParser.tokenizeOnWhitespaces(sentence)));
+            concepts += internedSentences.get(internedSentences.size() - 1).size();
+        }
+        for (int round = 0; round < 2000; round++)
+            matchAll(internedSentences, workspace);
+        long threadId = Thread.currentThread().getId();
+        //  before JDK 14, reading the allocated bytes allocates by itself: subtract what two back-to-back reads count
+        long calibration = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long first = threadMXBean.getThreadAllocatedBytes(threadId);
+            calibration = Math.min(calibration, threadMXBean.getThreadAllocatedBytes(threadId) - first);
+        }
+        int rounds = 100, matched = 0;
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int round = 0; round < rounds; round++)
+            matched += matchAll(internedSentences, workspace);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before - calibration;
+        assert (matched > 0);
+        //  no call allocates: a stray object or two of the JIT or the MXBean itself is tolerated, while one allocation
+        //  per call would add up to tens of kilobytes
+        long calls = (long) rounds * concepts;
+        assert (allocated <= 64) : allocated + " bytes allocated in " + calls + " calls";
+    }
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        ConTextWorkspace workspace = fc.newWorkspace();
+        ArrayList<InternedTokens> internedSentences = new ArrayList<>();
+        for (String sentence : sentences)
+            internedSentences.add(fc.internTokens(SimpleParser.tokenizeOnWhitespaces(sentence)));
+        int expected = matchAll(internedSentences, workspace);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        ArrayList<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            results.add(executor.submit(() -> {
+                //  share the FastContext and the interned tokens, one workspace per thread
+                ConTextWorkspace threadWorkspace = fc.newWorkspace();
+                int matched = 0;
+                for (int round = 0; round < 200; round++)
+                    matched += matchAll(internedSentences, threadWorkspace);
+                return matched;
+            }));
+        }
+        for (Future<Integer> result : results)
+            assert (result.get() == expected * 200);
+        executor.shutdown();
+        //  compiling the rules doesn't change them
+        for (ContextRule rule : fc.crp.rules.values())
+            assert (rule.determinant.equals(rule.direction + "_" + rule.modifier));
+    }
+
+    private int matchAll(ArrayList<InternedTokens> internedSentences, ConTextWorkspace workspace) {
+        int matched = 0;
+        for (int s = 0; s < internedSentences.size(); s++) {
+            InternedTokens tokens = internedSentences.get(s);
+            for (int i = 0; i < tokens.size(); i++) {
+                fc.getFullContextFeatures("Concept", tokens, i, i, workspace);
+                if (workspace.getFeature("Negation").ruleId != -1)
+                    matched++;
+            }
+        }
+        return matched;
+    }
+}
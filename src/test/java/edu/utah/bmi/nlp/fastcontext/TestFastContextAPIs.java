@@ -19,6 +19,8 @@
 package edu.utah.bmi.nlp.fastcontext;
 
 import edu.utah.bmi.nlp.context.common.ConTextSpan;
+import edu.utah.bmi.nlp.context.common.ContextRule;
+import edu.utah.bmi.nlp.context.common.ContextValueSet.TriggerTypes;
 import edu.utah.bmi.nlp.core.SimpleParser;
 import edu.utah.bmi.nlp.core.Span;
 
@@ -26,9 +28,22 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
 
 
 /**
@@ -119,4 +134,690 @@ public class TestFastContextAPIs {
         assert (inputString.substring(conTextSpan.begin, conTextSpan.end).equals("denied"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void test7() {
+        ArrayList<String> rules = new ArrayList<>();
+        rules.add("denied|forward|trigger|negated|30");
+        rules.add("although|forward|termination|negated|10");
+        FastContext caseInsensitiveFc = new FastContext(rules, false);
+        String upperCaseInput = "The patient DENIED any fever , Although he complained some headache .";
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces(upperCaseInput);
+        LinkedHashMap<String, ConTextSpan> matches = caseInsensitiveFc.processContextWEvidence(sent, 4, 4, upperCaseInput, 30);
+        ConTextSpan conTextSpan = matches.get("negated");
+        assert (conTextSpan.begin == 12 && conTextSpan.end == 18 && conTextSpan.ruleId == 0);
+//        the tokens are matched case-insensitively, but not changed
+        assert (sent.get(2).text.equals("DENIED") && sent.get(6).text.equals("Although"));
+    }
+
+
+    @Test
+    public void test8() {
+        ArrayList<String> rules = new ArrayList<>();
+        rules.add("mother|forward|trigger|nonpatient|30");
+        rules.add("mother \\w+|forward|trigger|nonpatient|4");
+        rules.add("denies|backward|trigger|negated|10");
+        FastContext fc = new FastContext(rules, false);
+        CompiledContextRules compiled = fc.crp.getCompiledRules();
+        assert (compiled.getMaxWindowSize(TriggerTypes.forward) == 30 && compiled.getMaxRuleLength(TriggerTypes.forward) == 2);
+        assert (compiled.getMaxWindowSize(TriggerTypes.backward) == 10 && compiled.getMaxRuleLength(TriggerTypes.backward) == 1);
+        StringBuilder sb = new StringBuilder("his mother had it");
+        for (int i = 0; i < 40; i++)
+            sb.append(" and");
+        sb.append(" mother had it , and so on and on the pneumonia");
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces(sb.toString());
+        int concept = sent.size() - 1;
+//        the matching skips the first "mother had", but it still decides the match of the second one
+        LinkedHashMap<String, ConTextSpan> matches = fc.processContextWEvidence(sent, concept, concept, sb.toString(), 30);
+        assert (matches.get("nonpatient") != null && matches.get("nonpatient").ruleId == 0);
+        InternedTokens tokens = fc.internTokens(sent);
+        LinkedHashMap<String, ConTextSpan> bounded = new LinkedHashMap<>(), unbounded = new LinkedHashMap<>();
+        fc.crp.processPreContext(tokens, concept, bounded);
+        fc.crp.processRules(tokens, 0, concept, unbounded);
+        assert (bounded.get("forward_nonpatient").begin == unbounded.get("forward_nonpatient").begin);
+    }
+
+    @Test
+    public void test9() {
+        ArrayList<String> rules = new ArrayList<>();
+        rules.add("no|forward|trigger|negated|30");
+        rules.add("no \\w+ of|forward|trigger|negated|8");
+        rules.add("denies|backward|trigger|negated|10");
+        rules.add("history of|forward|trigger|historical|30");
+        rules.add("ago|backward|trigger|historical|30");
+        rules.add("but|both|termination|negated|30");
+        rules.add("but|both|termination|historical|30");
+        rules.add("but not|both|termination|negated|30");
+        FastContext walk = new FastContext(rules, false);
+        FastContext outward = new FastContext(rules, false);
+        outward.setScanOutward(true);
+        String sentence = "no history of fever but not much , no sign of cough but cold but it denies 3 days ago but denies";
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces(sentence);
+        InternedTokens walkTokens = walk.internTokens(sent), outwardTokens = outward.internTokens(sent);
+        for (int i = 0; i < sent.size(); i++) {
+            LinkedHashMap<String, ConTextSpan> expected = walk.processContextWEvidence(walkTokens, i, i);
+            LinkedHashMap<String, ConTextSpan> actual = outward.processContextWEvidence(outwardTokens, i, i);
+            assert (expected.size() == actual.size()) : "@" + i;
+            for (String modifier : expected.keySet())
+                assert (actual.get(modifier).begin == expected.get(modifier).begin
+                        && actual.get(modifier).ruleId == expected.get(modifier).ruleId) : "@" + i + " " + modifier;
+        }
+//        both modifiers are blocked by the "but" right before "cold", the matching stops there
+        DeterminantMatches matches = outward.crp.newDeterminantMatches();
+        outward.crp.processPreContext(outwardTokens, 14, matches);
+        assert (matches.outwardScan.blockedCount == 2);
+    }
+
+    @Test
+    public void test10() {
+        FastContext fc = new FastContext("conf/context.txt");
+        String sentence = "He denies any fever , but had a history of cough 3 days ago , no sign of pneumonia .";
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces(sentence);
+        InternedTokens tokens = fc.internTokens(sent);
+        SentenceMatches sentenceMatches = fc.matchSentence(tokens);
+        assert (sentenceMatches.getMatchCount() > 0);
+        ConTextWorkspace workspace = fc.newWorkspace();
+        for (int begin = 0; begin < sent.size(); begin++) {
+            for (int end = begin; end < Math.min(begin + 3, sent.size()); end++) {
+                LinkedHashMap<String, ConTextSpan> expected = fc.processContextWEvidence(tokens, begin, end);
+                LinkedHashMap<String, ConTextSpan> actual = fc.processContextWEvidence(sentenceMatches, begin, end);
+                assert (expected.size() == actual.size()) : "@" + begin + "-" + end;
+                for (String modifier : expected.keySet())
+                    assert (actual.get(modifier).begin == expected.get(modifier).begin
+                            && actual.get(modifier).end == expected.get(modifier).end
+                            && actual.get(modifier).ruleId == expected.get(modifier).ruleId) : "@" + begin + "-" + end + " " + modifier;
+                fc.processContextWEvidence(sentenceMatches, begin, end, workspace);
+                assert (workspace.getContextCount() == expected.size()) : "@" + begin + "-" + end;
+            }
+        }
+//        "fever" and "pneumonia" are negated, "cough" is not
+        assert (fc.processContextWEvidence(sentenceMatches, 3, 3).containsKey("negated"));
+        assert (!fc.processContextWEvidence(sentenceMatches, 10, 10).containsKey("negated"));
+        assert (fc.processContextWEvidence(sentenceMatches, 18, 18).containsKey("negated"));
+    }
+
+    @Test
+    public void test11() throws IOException {
+        Path dir = Files.createTempDirectory("fastcontext");
+        File ruleFile = dir.resolve("context.txt").toFile(), snapshotFile = dir.resolve("context.snapshot").toFile();
+        Files.copy(new File("conf/context.txt").toPath(), ruleFile.toPath());
+//        the first one parses the rules and writes the snapshot, the second one loads the snapshot
+        FastContext parsed = new FastContext(ruleFile.getPath(), snapshotFile.getPath(), false);
+        assert (snapshotFile.isFile());
+        FastContext loaded = new FastContext(ruleFile.getPath(), snapshotFile.getPath(), false);
+        assert (!parsed.crp.isLoadedFromSnapshot());
+        assert (loaded.crp.isLoadedFromSnapshot() && loaded.crp.rules.size() == parsed.crp.rules.size());
+//        the nested rulesMap of the deprecated matching is only built on demand, from the loaded rules as well
+        assert (parsed.crp.rulesMap == null && loaded.crp.rulesMap == null);
+        assert (!loaded.crp.getRulesMap().isEmpty() && loaded.crp.getRulesMap().equals(parsed.crp.getRulesMap()));
+        assert (loaded.getTypeDefinitions().keySet().equals(parsed.getTypeDefinitions().keySet()));
+        assert (loaded.crp.valueWeightMap.equals(parsed.crp.valueWeightMap));
+        String sentence = "He denies any fever , but had a history of cough 3 days ago , no sign of pneumonia .";
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces(sentence);
+        InternedTokens parsedTokens = parsed.internTokens(sent), loadedTokens = loaded.internTokens(sent);
+        for (int i = 0; i < sent.size(); i++) {
+            LinkedHashMap<String, ConTextSpan> expected = parsed.getFullContextFeatures("Concept", parsedTokens, i, i);
+            LinkedHashMap<String, ConTextSpan> actual = loaded.getFullContextFeatures("Concept", loadedTokens, i, i);
+            assert (expected.keySet().equals(actual.keySet())) : "@" + i;
+            for (String feature : expected.keySet())
+                assert (expected.get(feature).ruleId == actual.get(feature).ruleId) : "@" + i + " " + feature;
+        }
+//        a snapshot of an older version of the rule file is not loaded
+        Files.write(ruleFile.toPath(), "no|forward|trigger|negated|30\n".getBytes(), StandardOpenOption.APPEND);
+        FastContext changed = new FastContext(ruleFile.getPath(), snapshotFile.getPath(), false);
+        assert (!changed.crp.isLoadedFromSnapshot());
+//        the case-sensitive rules have their own snapshot, so the two case sensitivities don't rewrite each other's
+        File caseSensitiveFile = ContextRuleSnapshot.getSnapshotFile(snapshotFile.getPath(), true);
+        assert (caseSensitiveFile.getName().equals("context.case-sensitive.snapshot"));
+        assert (!new FastContext(ruleFile.getPath(), snapshotFile.getPath(), true).crp.isLoadedFromSnapshot());
+        assert (caseSensitiveFile.isFile());
+        assert (new FastContext(ruleFile.getPath(), snapshotFile.getPath(), true).crp.isLoadedFromSnapshot());
+        assert (new FastContext(ruleFile.getPath(), snapshotFile.getPath(), false).crp.isLoadedFromSnapshot());
+        Files.delete(caseSensitiveFile.toPath());
+        Files.delete(snapshotFile.toPath());
+        Files.delete(ruleFile.toPath());
+        Files.delete(dir);
+    }
+
+    @Test
+    public void test12() throws IOException {
+        Path dir = Files.createTempDirectory("fastcontext");
+        Path ruleFile = dir.resolve("context.txt");
+        Files.write(ruleFile, Arrays.asList("no|forward|trigger|negated|30"));
+        ReloadableFastContext reloadable = new ReloadableFastContext(ruleFile.toString(), false, 200);
+        FastContext before = reloadable.get();
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces("denies cough");
+        assert (!before.processContextWEvidence(before.internTokens(sent), 1, 1).containsKey("negated"));
+
+        Files.write(ruleFile, Arrays.asList("no|forward|trigger|negated|30", "denies|forward|trigger|negated|30"));
+        assert (reloadable.reload());
+        FastContext after = reloadable.get();
+        assert (after != before);
+        assert (after.processContextWEvidence(after.internTokens(sent), 1, 1).containsKey("negated"));
+//        the old version still works for the calls that have got it
+        assert (!before.processContextWEvidence(before.internTokens(sent), 1, 1).containsKey("negated"));
+
+//        an emptied rule file (e.g. a half-finished save) keeps the current rules
+        Files.write(ruleFile, new byte[0]);
+        assert (!reloadable.reload());
+        assert (reloadable.get() == after);
+
+//        a missing rule file keeps the current rules
+        Files.delete(ruleFile);
+        assert (!reloadable.reload());
+        assert (reloadable.get() == after);
+        reloadable.close();
+        Files.delete(dir);
+    }
+
+    @Test
+    public void test13() {
+        FastContext fc = new FastContext(new ArrayList<>(Arrays.asList("@FEATURE_VALUES|Negation|affirm|negated",
+                "no|forward|trigger|negated|30")), false);
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces("denies cough but fever");
+        InternedTokens before = fc.internTokens(sent);
+        ConTextWorkspace workspace = fc.newWorkspace();
+        assert (!fc.processContextWEvidence(before, 1, 1).containsKey("negated"));
+
+        int id = fc.addRule("Denies|forward|trigger|negated|30");
+        assert (fc.getContextRuleByRuleId(id).rule.equals("Denies"));
+        assert (fc.processContextWEvidence(fc.internTokens(sent), 1, 1).containsKey("negated"));
+        assert (fc.processContextWEvidence(fc.internTokens(sent), 3, 3).containsKey("negated"));
+//        the tokens interned before the edit are still matched against the rules they were interned with
+        assert (!fc.processContextWEvidence(before, 1, 1).containsKey("negated"));
+//        the workspace follows the new rules
+        assert (fc.processContextWEvidence(fc.internTokens(sent), 1, 1, workspace).getContext("negated") != null);
+
+        int termination = fc.addRule("but|both|termination|negated|30");
+        assert (fc.processContextWEvidence(fc.internTokens(sent), 1, 1).containsKey("negated"));
+        assert (!fc.processContextWEvidence(fc.internTokens(sent), 3, 3).containsKey("negated"));
+
+        assert (fc.updateRule(termination, "however|both|termination|negated|30"));
+        assert (fc.processContextWEvidence(fc.internTokens(sent), 3, 3).containsKey("negated"));
+        assert (fc.removeRule(id));
+        assert (!fc.removeRule(id));
+        assert (fc.getContextRuleByRuleId(id) == null);
+        assert (fc.processContextWEvidence(fc.internTokens(sent), 1, 1, workspace).getContext("negated") == null);
+
+        for (String invalid : new String[]{"denies|forward|trigger|uncertain|30", "denies \\> days|forward|trigger|negated|30",
+                "@FEATURE_VALUES|Certainty|certain|uncertain", "denies|sideways|trigger|negated|30"}) {
+            try {
+                fc.addRule(invalid);
+                assert (false);
+            } catch (IllegalArgumentException e) {
+//                expected
+            }
+        }
+        assert (fc.crp.rules.size() == 2);
+    }
+
+    @Test
+    public void test14() {
+        FastContext xlsx = new FastContext("conf/context.xlsx", false);
+        FastContext txt = new FastContext("conf/context.txt", false);
+        assert (xlsx.crp.rules.size() == txt.crp.rules.size());
+        Iterator<ContextRule> txtRules = txt.crp.rules.values().iterator();
+        for (ContextRule rule : xlsx.crp.rules.values()) {
+            ContextRule expected = txtRules.next();
+            assert (rule.rule.equals(expected.rule) && rule.determinant.equals(expected.determinant)
+                    && rule.triggerType == expected.triggerType && rule.windowSize == expected.windowSize);
+        }
+        assert (xlsx.getFeatureDefaultValueMap().equals(txt.getFeatureDefaultValueMap()));
+    }
+
+    @Test
+    public void test15() throws IOException {
+        ArrayList<String> lines = new ArrayList<>(Files.readAllLines(Path.of("conf/context.txt")));
+        FastContext sequential = new FastContext(), parallel = new FastContext();
+        sequential.crp = new ContextRuleProcessor(lines, false, Integer.MAX_VALUE);
+        parallel.crp = new ContextRuleProcessor(lines, false, 0);
+        DoubleArrayRuleTrie expected = sequential.crp.compiledRules.trie, trie = parallel.crp.compiledRules.trie;
+        assert (Arrays.equals(expected.base, trie.base) && Arrays.equals(expected.check, trie.check)
+                && Arrays.equals(expected.ends, trie.ends) && Arrays.equals(expected.vocabulary, trie.vocabulary)
+                && Arrays.equals(expected.determinants, trie.determinants)
+                && Arrays.equals(expected.thresholds, trie.thresholds) && Arrays.equals(expected.tails, trie.tails));
+        String sentence = "He denies any fever , but had a history of cough 3 days ago , no sign of pneumonia .";
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces(sentence);
+        InternedTokens sequentialTokens = sequential.internTokens(sent), parallelTokens = parallel.internTokens(sent);
+        for (int i = 0; i < sent.size(); i++) {
+            LinkedHashMap<String, ConTextSpan> expectedContexts = sequential.processContextWEvidence(sequentialTokens, i, i);
+            LinkedHashMap<String, ConTextSpan> contexts = parallel.processContextWEvidence(parallelTokens, i, i);
+            assert (expectedContexts.keySet().equals(contexts.keySet())) : "@" + i;
+            for (String modifier : expectedContexts.keySet())
+                assert (expectedContexts.get(modifier).ruleId == contexts.get(modifier).ruleId) : "@" + i;
+        }
+    }
+
+    @Test
+    public void test16() {
+        ArrayList<String> rules = new ArrayList<>(Arrays.asList("no|forward|trigger|negated|10",
+                "no|forward|trigger|negated|10", "no \\> abc|forward|trigger|negated|10", "denies|both|trigger|negated|10"));
+        FastContext fc = new FastContext(rules, false);
+        RuleStatistics statistics = fc.getRuleStatistics();
+        assert (statistics.rules == 4 && statistics.shadowedRules == 1 && statistics.skippedRules == 1);
+        assert (statistics.getCompiledRules() == 2);
+//        the comparator that the skipped rule leaves under "no" is pruned
+        assert (statistics.states == 3 && statistics.deadStates == 0);
+        assert (Arrays.equals(statistics.depthHistogram, new int[]{1, 2}));
+        assert (statistics.endEntries == 3);
+
+        assert (fc.removeRule(3));
+        assert (fc.getRuleStatistics().deadStates == 1);
+    }
+
+    @Test
+    public void test17() throws IOException {
+        Path dir = Files.createTempDirectory("fastcontext");
+        File ruleFile = dir.resolve("context.txt").toFile(), snapshotFile = dir.resolve("context.snapshot").toFile();
+        Files.copy(new File("conf/context.txt").toPath(), ruleFile.toPath());
+        FastContext heap = new FastContext(ruleFile.getPath(), false);
+//        the first one writes the snapshot and copies its trie off the heap, the second one maps the snapshot
+        FastContext direct = new FastContext(ruleFile.getPath(), snapshotFile.getPath(), false, true);
+        FastContext mapped = new FastContext(ruleFile.getPath(), snapshotFile.getPath(), false, true);
+        assert (direct.crp.compiledRules.isOffHeapTrie() && mapped.crp.compiledRules.isOffHeapTrie());
+        assert (mapped.getRuleStatistics().offHeapBytes > 0);
+        mapped.setUseTokenAutomaton(true);
+        String sentence = "He denies any fever , but had a history of cough 3 days ago , no sign of pneumonia .";
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces(sentence);
+        InternedTokens heapTokens = heap.internTokens(sent);
+        for (FastContext offHeap : new FastContext[]{direct, mapped}) {
+            InternedTokens offHeapTokens = offHeap.internTokens(sent);
+            for (int i = 0; i < sent.size(); i++) {
+                LinkedHashMap<String, ConTextSpan> expected = heap.getFullContextFeatures("Concept", heapTokens, i, i);
+                LinkedHashMap<String, ConTextSpan> actual = offHeap.getFullContextFeatures("Concept", offHeapTokens, i, i);
+                assert (expected.keySet().equals(actual.keySet())) : "@" + i;
+                for (String feature : expected.keySet())
+                    assert (expected.get(feature).ruleId == actual.get(feature).ruleId) : "@" + i + " " + feature;
+            }
+        }
+//        an edit keeps the trie off the heap
+        int id = mapped.addRule("had a|forward|trigger|negated|10");
+        assert (mapped.crp.compiledRules.isOffHeapTrie());
+        assert (mapped.getFullContextFeatures("Concept", mapped.internTokens(sent), 10, 10).get("Negation").ruleId == id);
+        Files.delete(snapshotFile.toPath());
+        Files.delete(ruleFile.toPath());
+        Files.delete(dir);
+    }
+
+    @Test
+    public void test18() {
+        FastContext plain = new FastContext("conf/context.txt", false);
+        FastContext generated = new FastContext("conf/context.txt", false);
+        generated.setGeneratedMatcher(true);
+        assert (generated.crp.compiledRules.isGeneratedMatcher());
+        String sentence = "He denies any fever , but had a history of cough 3 days ago , no sign of pneumonia .";
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces(sentence);
+        for (boolean useTokenAutomaton : new boolean[]{false, true}) {
+            plain.setUseTokenAutomaton(useTokenAutomaton);
+            generated.setUseTokenAutomaton(useTokenAutomaton);
+            InternedTokens plainTokens = plain.internTokens(sent), generatedTokens = generated.internTokens(sent);
+            for (int i = 0; i < sent.size(); i++) {
+                LinkedHashMap<String, ConTextSpan> expected = plain.getFullContextFeatures("Concept", plainTokens, i, i);
+                LinkedHashMap<String, ConTextSpan> actual = generated.getFullContextFeatures("Concept", generatedTokens, i, i);
+                assert (expected.keySet().equals(actual.keySet())) : "@" + i;
+                for (String feature : expected.keySet())
+                    assert (expected.get(feature).ruleId == actual.get(feature).ruleId) : "@" + i + " " + feature;
+            }
+        }
+//        the generated class only takes the trie that it is generated from
+        GeneratedRuleTrie trie = (GeneratedRuleTrie) generated.crp.compiledRules.getTrie();
+        CompiledContextRules other = new FastContext(new ArrayList<>(Arrays.asList("no|forward|trigger|negated|10")),
+                false).crp.compiledRules;
+        try {
+            other.withGeneratedMatcher(trie);
+            assert (false);
+        } catch (IllegalArgumentException e) {
+        }
+//        the edited rules are matched with a matcher generated for them
+        int id = generated.addRule("any fever|forward|trigger|negated|10");
+        assert (generated.crp.compiledRules.isGeneratedMatcher());
+        assert (generated.crp.ruleEditor.trie == generated.crp.compiledRules.getFullRules().getTrie());
+        InternedTokens tokens = generated.internTokens(SimpleParser.tokenizeOnWhitespaces("any fever cough"));
+        assert (generated.processContextWEvidence(tokens, 2, 2).get("negated").ruleId == id);
+        generated.removeRule(id);
+        assert (generated.crp.compiledRules.isGeneratedMatcher());
+        assert (generated.crp.ruleEditor.trie == generated.crp.compiledRules.getFullRules().getTrie());
+    }
+
+    @Test
+    public void test19() {
+        FastContext plain = new FastContext("conf/context.txt", false);
+        FastContext split = new FastContext("conf/context.txt", false);
+        split.setDirectionTries(true);
+        CompiledContextRules compiled = split.crp.compiledRules;
+        assert (compiled.isDirectionTries());
+        assert (compiled.getTrie(TriggerTypes.forward).size() < compiled.getTrie().size());
+        assert (compiled.getTrie(TriggerTypes.backward).size() < compiled.getTrie().size());
+        String sentence = "He denies any fever , but had a history of cough 3 days ago , no sign of pneumonia .";
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces(sentence);
+        for (int round = 0; round < 2; round++) {
+            for (boolean useTokenAutomaton : new boolean[]{false, true}) {
+                plain.setUseTokenAutomaton(useTokenAutomaton);
+                split.setUseTokenAutomaton(useTokenAutomaton);
+                InternedTokens plainTokens = plain.internTokens(sent), splitTokens = split.internTokens(sent);
+                for (int i = 0; i < sent.size(); i++) {
+                    LinkedHashMap<String, ConTextSpan> expected = plain.getFullContextFeatures("Concept", plainTokens, i, i);
+                    LinkedHashMap<String, ConTextSpan> actual = split.getFullContextFeatures("Concept", splitTokens, i, i);
+                    assert (expected.keySet().equals(actual.keySet())) : "@" + i;
+                    for (String feature : expected.keySet())
+                        assert (expected.get(feature).ruleId == actual.get(feature).ruleId) : "@" + i + " " + feature;
+                }
+            }
+//            the edited rules are split again
+            plain.addRule("any fever|both|trigger|negated|10");
+            split.addRule("any fever|both|trigger|negated|10");
+            assert (split.crp.compiledRules.isDirectionTries());
+        }
+    }
+
+    @Test
+    public void test20() {
+        FastContext plain = new FastContext("conf/context.txt", false);
+        FastContext masked = new FastContext("conf/context.txt", false);
+        masked.setRequestedFeatures(Collections.singletonList("Negation"));
+        CompiledContextRules compiled = masked.crp.compiledRules;
+        assert (compiled.getModifiers().equals(new HashSet<>(Arrays.asList("affirm", "negated"))));
+        assert (compiled.getTrie().size() < compiled.getFullRules().getTrie().size());
+        String sentence = "He denies any fever , but had a history of cough 3 days ago , no sign of pneumonia .";
+        ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces(sentence);
+        for (int round = 0; round < 2; round++) {
+            for (boolean scanOutward : new boolean[]{false, true}) {
+                plain.setScanOutward(scanOutward);
+                masked.setScanOutward(scanOutward);
+                InternedTokens plainTokens = plain.internTokens(sent), maskedTokens = masked.internTokens(sent);
+                for (int i = 0; i < sent.size(); i++) {
+                    LinkedHashMap<String, ConTextSpan> expected = plain.getFullContextFeatures("Concept", plainTokens, i, i);
+                    LinkedHashMap<String, ConTextSpan> actual = masked.getFullContextFeatures("Concept", maskedTokens, i, i);
+                    assert (actual.keySet().equals(Collections.singleton("Negation"))) : "@" + i;
+                    assert (expected.get("Negation").ruleId == actual.get("Negation").ruleId) : "@" + i;
+                }
+            }
+//            the edited rules are masked again
+            plain.addRule("any fever|both|trigger|negated|10");
+            masked.addRule("any fever|both|trigger|negated|10");
+            assert (masked.crp.compiledRules.getModifiers() != null);
+        }
+        masked.setRequestedFeatures(null);
+        assert (masked.crp.compiledRules == masked.crp.compiledRules.getFullRules());
+    }
+
+    @Test
+    public void test21() {
+        FastContext fc = new FastContext(new ArrayList<>(Arrays.asList("@CONCEPT_FEATURES|Concept|Negation",
+                "@CONCEPT_FEATURES|Finding|Negation|Temporality", "@FEATURE_VALUES|Negation|affirm|negated",
+                "@FEATURE_VALUES|Temporality|present|historical", "no|forward|trigger|negated|30",
+                "history of|forward|trigger|historical|30", "but|both|termination|negated|30")), false);
+        CompiledContextRules conceptRules = fc.getConceptRules("Concept");
+        assert (conceptRules.getModifiers().equals(new HashSet<>(Arrays.asList("affirm", "negated"))));
+        assert (conceptRules.getTrie().size() < fc.crp.compiledRules.getTrie().size());
+        assert (fc.getConceptRules("Concept") == conceptRules);
+        assert (fc.getConceptRules("Finding") == fc.crp.compiledRules);
+//        the tokens interned with the full rules are matched with the views
+        InternedTokens tokens = fc.internTokens(SimpleParser.tokenizeOnWhitespaces("no history of cough"));
+        LinkedHashMap<String, ConTextSpan> concept = fc.getFullContextFeatures("Concept", tokens, 3, 3);
+        LinkedHashMap<String, ConTextSpan> finding = fc.getFullContextFeatures("Finding", tokens, 3, 3);
+        assert (concept.keySet().equals(Collections.singleton("Negation")));
+        assert (concept.get("Negation").ruleId != -1);
+        assert (concept.get("Negation").ruleId == finding.get("Negation").ruleId);
+        assert (finding.get("Temporality").ruleId != -1);
+//        the views are built again for the edited rules
+        fc.addRule("history|forward|trigger|historical|30");
+        assert (fc.getConceptRules("Concept") != conceptRules);
+        tokens = fc.internTokens(SimpleParser.tokenizeOnWhitespaces("no history of cough"));
+        assert (fc.getFullContextFeatures("Concept", tokens, 3, 3).get("Negation").ruleId != -1);
+    }
+
+    @Test
+    public void test22() {
+        Locale locale = Locale.getDefault();
+        try {
+//            under a Turkish locale, String.toLowerCase turns "I" into a dotless i, which the token lookup doesn't do
+            Locale.setDefault(new Locale("tr", "TR"));
+            FastContext fc = new FastContext(new ArrayList<>(Arrays.asList("@FEATURE_VALUES|Negation|affirm|negated",
+                    "NO IV|forward|trigger|negated|10", "\u0130NR|forward|trigger|negated|10")), false);
+            for (String sentence : new String[]{"no iv fever", "NO IV fever", "No Iv fever", "inr fever"}) {
+                InternedTokens tokens = fc.internTokens(SimpleParser.tokenizeOnWhitespaces(sentence));
+                assert (fc.processContextWEvidence(tokens, tokens.size() - 1, tokens.size() - 1)
+                        .containsKey("negated")) : sentence;
+            }
+//            the nested rulesMap of the deprecated matching folds the rules the same way
+            assert (((java.util.HashMap) fc.crp.getRulesMap().get("no")).containsKey("iv"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void test23() throws Exception {
+        Path dir = Files.createTempDirectory("fastcontext");
+        Path ruleFile = dir.resolve("context.txt");
+        ReloadableFastContext reloadable = null;
+        try {
+            Files.write(ruleFile, Arrays.asList("no|forward|trigger|negated|30"));
+            reloadable = new ReloadableFastContext(ruleFile.toString(), false, 50);
+            FastContext before = reloadable.get();
+            ArrayList<Span> sent = SimpleParser.tokenizeOnWhitespaces("denies cough");
+//            a scheduled reload swaps the rules after the debounce delay
+            Files.write(ruleFile, Arrays.asList("no|forward|trigger|negated|30", "denies|forward|trigger|negated|30"));
+            reloadable.scheduleReload();
+            assert ((Boolean) reloadable.pendingReload.get());
+            FastContext after = reloadable.get();
+            assert (after != before);
+            assert (after.processContextWEvidence(after.internTokens(sent), 1, 1).containsKey("negated"));
+//            a manual reload doesn't overlap the pending one, the one that runs last reads the latest rule file
+            Files.write(ruleFile, Arrays.asList("no|forward|trigger|negated|30"));
+            reloadable.scheduleReload();
+            Files.write(ruleFile, Arrays.asList("denies|forward|trigger|negated|30"));
+            assert (reloadable.reload());
+            reloadable.pendingReload.get();
+            FastContext latest = reloadable.get();
+            assert (latest.processContextWEvidence(latest.internTokens(sent), 1, 1).containsKey("negated"));
+            sent = SimpleParser.tokenizeOnWhitespaces("no cough");
+            assert (!latest.processContextWEvidence(latest.internTokens(sent), 1, 1).containsKey("negated"));
+        } finally {
+            if (reloadable != null)
+                reloadable.close();
+            Files.deleteIfExists(ruleFile);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void test24() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("fastcontext");
+        Path ruleFile = dir.resolve("context.txt");
+        ReloadableFastContext reloadable = null;
+        try {
+            Files.write(ruleFile, Arrays.asList("no|forward|trigger|negated|30"));
+            reloadable = new ReloadableFastContext(ruleFile.toString(), false, 100);
+            FastContext before = reloadable.get();
+            reloadable.watch();
+//            the watcher reloads the rewritten rule file, some platforms poll the directory only every few seconds
+            Files.write(ruleFile, Arrays.asList("no|forward|trigger|negated|30", "denies|forward|trigger|negated|30"));
+            long deadline = System.currentTimeMillis() + 60000;
+            while (reloadable.get() == before && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+            assert (reloadable.get() != before) : "the rule file is not reloaded";
+        } finally {
+            if (reloadable != null)
+                reloadable.close();
+            Files.deleteIfExists(ruleFile);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void test25() {
+        FastContext fc = new FastContext("conf/context.txt", false);
+        ContextRuleProcessor crp = fc.crp;
+        String[] sentences = new String[]{
+                "The patient denied any fever , although he complained some headache .",
+                "No evidence of pneumonia was found on the chest x-ray 3 days ago .",
+                "Her mother has a history of breast cancer , but she may have a mild cough .",
+                "The pain started 30-days ago and was not relieved by ibuprofen .",
+                "He DENIES chest pain for 2.5 weeks , no fever in the past 14 days , but may have had a 1 day cough ."};
+        int matched = 0;
+        for (String sentence : sentences) {
+            ArrayList<Span> tokens = SimpleParser.tokenizeOnWhitespaces(sentence);
+            InternedTokens internedTokens = fc.internTokens(tokens);
+            for (int concept = 0; concept < tokens.size(); concept++) {
+//                the pre- and the post-context of the concept, matched from every position of the context
+                for (int[] context : new int[][]{{0, concept}, {concept + 1, tokens.size()}}) {
+                    LinkedHashMap<String, ConTextSpan> expected = new LinkedHashMap<>();
+                    List<Span> contextTokens = SimpleParser.tokenizeOnWhitespaces(sentence.toLowerCase())
+                            .subList(context[0], context[1]);
+                    for (int i = 0; i < contextTokens.size(); i++)
+                        crp.processRules(contextTokens, crp.getRulesMap(), i, i, expected);
+                    LinkedHashMap<String, ConTextSpan> matches = new LinkedHashMap<>();
+                    crp.processRules(internedTokens, context[0], context[0], context[1], matches);
+                    matched += matches.size();
+                    assert (matches.keySet().equals(expected.keySet())) : sentence + " @" + concept;
+                    for (String determinant : expected.keySet())
+                        assert (matches.get(determinant).ruleId == expected.get(determinant).ruleId)
+                                : sentence + " @" + concept + ": " + determinant;
+                }
+            }
+        }
+        assert (matched > 0);
+    }
+
+    @Test
+    public void test26() {
+        FastContext fc = new FastContext("conf/context.txt", false);
+        InternedTokens expectedTokens = fc.internTokens(SimpleParser.tokenizeOnWhitespaces("no evidence of cough"));
+        LinkedHashMap<String, ConTextSpan> expected = fc.processContextWEvidence(expectedTokens, 3, 3);
+        assert (expected.containsKey("negated"));
+//        the blank tokens of a badly tokenized sentence (see UIMAContextRuleProcessor#internAnnotations) are skipped
+//        over without recursing once per token
+        int blanks = 100000;
+        InternedTokens tokens = new InternedTokens();
+        tokens.clear(fc.crp.getCompiledRules());
+        fc.crp.addToken(tokens, "no", 0, 2);
+        for (int i = 0; i < blanks; i++)
+            tokens.add(DoubleArrayRuleTrie.BLANK_TOKEN, " ", 2 + i, 3 + i);
+        int offset = 2 + blanks;
+        for (String token : new String[]{"evidence", "of", "cough"}) {
+            fc.crp.addToken(tokens, token, offset + 1, offset + 1 + token.length());
+            offset += 1 + token.length();
+        }
+        int concept = tokens.size() - 1;
+        LinkedHashMap<String, ConTextSpan> contexts = fc.processContextWEvidence(tokens, concept, concept);
+        assert (contexts.keySet().equals(expected.keySet()));
+        for (String modifier : expected.keySet())
+            assert (contexts.get(modifier).ruleId == expected.get(modifier).ruleId) : modifier;
+    }
+
+    @Test
+    public void test27() {
+//        the numbers and suffixes parsed once by addToken are the same as what pdigit finds in the token
+        String[] texts = new String[]{"30-days", "3.5", "30.", "30.55", "1234", "0", "5-", "12.5-days", "3a-days",
+                "2--days", "\u06630-days", "\u0663", "30-DAYS", "days"};
+        for (boolean caseSensitive : new boolean[]{false, true}) {
+            ContextRuleProcessor crp = new FastContext("conf/context.txt", caseSensitive).crp;
+            DoubleArrayRuleTrie trie = crp.getCompiledRules().trie;
+            InternedTokens tokens = new InternedTokens();
+            tokens.clear(crp.getCompiledRules());
+            for (String text : texts)
+                crp.addToken(tokens, text, 0, text.length());
+            for (int i = 0; i < texts.length; i++) {
+                String text = texts[i];
+                boolean leadingDigit = Character.isDigit(text.charAt(0));
+                Matcher matcher = crp.pdigit.matcher(text);
+                boolean number = leadingDigit && matcher.find();
+                assert (((tokens.getFlags(i) & InternedTokens.LEADING_DIGIT) != 0) == leadingDigit) : text;
+                assert (tokens.isNumber(i) == number) : text;
+                if (!number) {
+                    assert (Double.isNaN(tokens.getNumber(i)) && tokens.getSuffixId(i) == InternedTokens.NO_SUFFIX)
+                            : text;
+                    continue;
+                }
+                double expected = matcher.group(1).length() < 4 ? Double.parseDouble(matcher.group(1)) : 1000;
+                assert (tokens.getNumber(i) == expected) : text;
+                assert (((tokens.getFlags(i) & InternedTokens.NUMBER_SUFFIX) != 0) == (matcher.group(2) != null))
+                        : text;
+                if (matcher.group(2) == null) {
+                    assert (tokens.getSuffixId(i) == InternedTokens.NO_SUFFIX) : text;
+                } else {
+//                    the deprecated matching lower cased the whole token for the case-insensitive rules
+                    String suffix = matcher.group(2).substring(1);
+                    if (!caseSensitive)
+                        suffix = suffix.toLowerCase(Locale.ROOT);
+                    assert (tokens.getSuffixId(i) == trie.getTokenId(suffix)) : text;
+                }
+            }
+//            an upper case suffix is found under the case-insensitive rules
+            assert (caseSensitive || tokens.getSuffixId(12) != DoubleArrayRuleTrie.UNKNOWN_TOKEN);
+        }
+    }
+
+    @Test
+    public void test28() {
+        String[] texts = new String[]{"NO", "No", "no", "123", "A1", "ÉTÉ", "", " "};
+        for (boolean caseSensitive : new boolean[]{false, true}) {
+            FastContext fc = new FastContext(new ArrayList<>(Arrays.asList("@FEATURE_VALUES|Negation|affirm|negated",
+                    "\\W+ cough|forward|trigger|negated|10")), caseSensitive);
+            ContextRuleProcessor crp = fc.crp;
+            InternedTokens tokens = new InternedTokens();
+            tokens.clear(crp.getCompiledRules());
+            for (String text : texts)
+                crp.addToken(tokens, text, 0, text.length());
+            for (int i = 0; i < texts.length; i++) {
+                String text = texts[i];
+                boolean upperCase = true;
+                for (char c : text.toCharArray())
+                    upperCase &= Character.isUpperCase(c);
+//                "\w+" matches any token of the Span path, "\W+" only the upper case ones of the case-sensitive rules
+                assert (!tokens.isBlank(i)) : text;
+                assert (tokens.isUpperCase(i) == (caseSensitive && upperCase)) : text;
+                assert (((tokens.getFlags(i) & InternedTokens.LEADING_DIGIT) != 0)
+                        == (text.length() > 0 && Character.isDigit(text.charAt(0)))) : text;
+                assert (tokens.isNumber(i) == text.equals("123")) : text;
+//                the same match as the deprecated matching, which tested "\W+" on the (lower cased) token text
+                ArrayList<Span> context = new ArrayList<>(Arrays.asList(new Span(0, text.length(), text),
+                        new Span(text.length() + 1, text.length() + 6, "cough")));
+                List<Span> legacyContext = new ArrayList<>();
+                for (Span span : context)
+                    legacyContext.add(new Span(span.begin, span.end, caseSensitive ? span.text : span.text.toLowerCase()));
+                LinkedHashMap<String, ConTextSpan> expected = new LinkedHashMap<>();
+                for (int position = 0; position < legacyContext.size(); position++)
+                    crp.processRules(legacyContext, crp.getRulesMap(), position, position, expected);
+                LinkedHashMap<String, ConTextSpan> matches = new LinkedHashMap<>();
+                crp.processRules(context, matches);
+                assert (matches.keySet().equals(expected.keySet())) : text;
+            }
+//            a blank token of the UIMA path (see UIMAContextRuleProcessor#internAnnotations) has no class at all
+            tokens.add(DoubleArrayRuleTrie.BLANK_TOKEN, " ", 0, 1);
+            assert (tokens.getFlags(tokens.size() - 1) == 0 && tokens.isBlank(tokens.size() - 1));
+        }
+    }
+
+    @Test
+    public void test29() {
+//        trigger and termination rules of the same determinants that overlap, with the rule ids and spans that the
+//        conflict resolution picked before it read the rules from the compiled tables, by determinant
+        ContextRuleProcessor crp = new ContextRuleProcessor(new ArrayList<>(Arrays.asList(
+                "@FEATURE_VALUES|Negation|affirm|negated", "no|forward|trigger|negated|10",
+                "no further|forward|termination|negated|10", "no evidence|forward|trigger|negated|2",
+                "but|both|termination|negated|30", "ruled out|backward|trigger|negated|10",
+                "out of|backward|termination|negated|10", "free|backward|trigger|negated|1",
+                "free of|backward|termination|negated|1")));
+        String[][] cases = new String[][]{
+                {"no further fever", "forward_negated=2@0-1"},
+                {"no evidence of cough", "forward_negated=1@0-0"},
+                {"no further no evidence of fever", "forward_negated=1@2-2"},
+                {"fever ruled out of cough", "backward_negated=6@2-3"},
+                {"cough but no fever", "backward_negated=4@1-1 forward_negated=1@2-2"},
+                {"fever free of cough", "backward_negated=8@1-2"},
+                {"no fever but cough ruled out", "backward_negated=4@2-2 forward_negated=4@2-2"}};
+        for (String[] testCase : cases) {
+            LinkedHashMap<String, ConTextSpan> matches = new LinkedHashMap<>();
+            crp.processRules(SimpleParser.tokenizeOnWhitespaces(testCase[0]), matches);
+            StringBuilder actual = new StringBuilder();
+            for (Map.Entry<String, ConTextSpan> entry : new TreeMap<>(matches).entrySet()) {
+                ConTextSpan span = entry.getValue();
+                actual.append(actual.length() == 0 ? "" : " ").append(entry.getKey()).append('=').append(span.ruleId)
+                        .append('@').append(span.begin).append('-').append(span.end);
+            }
+            assert (actual.toString().equals(testCase[1])) : testCase[0] + ": " + actual;
+        }
+    }
+}
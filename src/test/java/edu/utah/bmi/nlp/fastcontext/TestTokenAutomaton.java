@@ -0,0 +1,82 @@
+/*
+ * ******************************************************************************
+ *  * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ *  * <p>
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  * <p>
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  * <p>
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *  ******************************************************************************
+ */
+
+package edu.utah.bmi.nlp.fastcontext;
+
+import edu.utah.bmi.nlp.context.common.ConTextSpan;
+import edu.utah.bmi.nlp.core.SimpleParser;
+import edu.utah.bmi.nlp.core.Span;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Test that the one pass token automaton finds the same context spans as the trie walk from every token.
+ */
+public class TestTokenAutomaton {
+    private String[] sentences = new String[]{
+            "No evidence of pneumonia was found on the chest x-ray 3 days ago .",
+            "He DENIES any fever but had a mild cough 2 days ago .",
+            "Her mother has a history of of breast cancer , no sign of recurrence .",
+            "The pain started 30-days ago and was not relieved by ibuprofen 4.5 days ago ."};
+
+    @Test
+    public void testSameAsTrieWalk() {
+        compare(new FastContext("conf/context.txt"), new FastContext("conf/context.txt"));
+        ArrayList<String> rules = new ArrayList<>();
+        rules.add("@CONCEPT_FEATURES|Concept|Negation|Certainty|Temporality|Experiencer");
+        rules.add("@FEATURE_VALUES|Negation|affirm|negated");
+        rules.add("@FEATURE_VALUES|Certainty|certain|uncertain");
+        rules.add("@FEATURE_VALUES|Temporality|present|historical|hypothetical");
+        rules.add("@FEATURE_VALUES|Experiencer|patient|nonpatient");
+        rules.add("no|forward|trigger|negated|30");
+        rules.add("no \\w+ of|both|trigger|negated|8");
+        rules.add("\\w+ of|forward|trigger|negated|5");
+        rules.add("\\W+ any|forward|trigger|negated|30");
+        rules.add("but|both|termination|negated|30");
+        rules.add("\\> 0 \\< 5 days ago|backward|trigger|historical|30");
+        rules.add("\\> 2 -days ago|backward|trigger|historical|30");
+        rules.add("\\w+ \\w+ ago|backward|pseudo|historical|30");
+        rules.add("history of|forward|trigger|historical|30");
+        rules.add("of of|forward|trigger|hypothetical|9");
+        rules.add("mother \\w+|forward|trigger|nonpatient|4");
+        compare(new FastContext(rules, true), new FastContext(rules, true));
+    }
+
+    private void compare(FastContext walk, FastContext automaton) {
+        automaton.setUseTokenAutomaton(true);
+        for (String sentence : sentences) {
+            ArrayList<Span> tokens = SimpleParser.tokenizeOnWhitespaces(sentence);
+            InternedTokens walkTokens = walk.internTokens(tokens);
+            InternedTokens automatonTokens = automaton.internTokens(tokens);
+            for (int i = 0; i < tokens.size(); i++) {
+                LinkedHashMap<String, ConTextSpan> expected = walk.processContextWEvidence(walkTokens, i, i);
+                LinkedHashMap<String, ConTextSpan> actual = automaton.processContextWEvidence(automatonTokens, i, i);
+                assert (expected.size() == actual.size()) : sentence + " @" + i;
+                for (Map.Entry<String, ConTextSpan> entry : expected.entrySet()) {
+                    ConTextSpan span = actual.get(entry.getKey());
+                    assert (span != null && span.begin == entry.getValue().begin && span.end == entry.getValue().end
+                            && span.ruleId == entry.getValue().ruleId) : sentence + " @" + i + " " + entry.getKey();
+                }
+            }
+        }
+    }
+}